@@ -1,30 +1,47 @@
 package BL;
 
+import CleanupThread.CascadeDeleter;
+import Connections.ConnectionRouter;
 import Exceptions.AlreadyExistsException;
 import Exceptions.FieldNotMutableException;
+import Exceptions.InvalidCredentialsException;
 import Exceptions.NoSuchCompanyException;
+import Exceptions.NoSuchCouponException;
 import Exceptions.NoSuchCustomerException;
+import Stock.FlashSaleStockEngine;
 import javaBeans.Company;
-import javaBeans.Coupon;
 import javaBeans.Customer;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class AdminFacade extends ClientFacade{
-    public AdminFacade() throws SQLException {
+    private final CascadeDeleter cascadeDeleter;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile AdminFacade instance;
+
+    private AdminFacade() throws SQLException {
+        cascadeDeleter = new CascadeDeleter(companiesDBDAO, couponsDBDAO, customerDBDAO);
     }
 
-    /**
-     * Logs in a user with the specified email and password.
-     *
-     * @param email    The email address of the user.
-     * @param password The password of the user.
-     * @return True if the login is successful; false otherwise.
-     * @throws SQLException If there is an issue with the database operation.
-     */
-    @Override
-    public boolean login(String email, String password) throws SQLException {
+    public static AdminFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new AdminFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    static boolean checkCredentials(String email, String password) {
         return email.equals("admin@admin.com") && password.equals("admin");
     }
 
@@ -36,17 +53,25 @@ public class AdminFacade extends ClientFacade{
      * If a company with the same email exists, it throws an AlreadyExistsException with the email of the existing company.
      * Otherwise, it adds the new company to the database.
      *
+     * @param session The session of the logged-in administrator.
      * @param company The Company object to be added.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws AlreadyExistsException If a company with the same name or email already exists.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void addCompany(Company company) throws Exception {
-        if (companiesDBDAO.nameAlreadyExists(company.getName()))
-            throw new AlreadyExistsException(company.getName(), "name");
-        else if (companiesDBDAO.emailAlreadyExists(company.getEmail()))
-            throw new AlreadyExistsException(company.getEmail(), "email");
-        else {
-            companiesDBDAO.addCompany(company);
+    public void addCompany(SessionContext session, Company company) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (companiesDBDAO.nameAlreadyExists(company.getName()))
+                throw new AlreadyExistsException(company.getName(), "name");
+            else if (companiesDBDAO.emailAlreadyExists(company.getEmail()))
+                throw new AlreadyExistsException(company.getEmail(), "email");
+            else {
+                companiesDBDAO.addCompany(company);
+                LoginManger.getInstance().accountAdded(ClientType.COMPANY, company.getEmail());
+            }
+        } finally {
+            ConnectionRouter.unbind();
         }
     }
 
@@ -58,21 +83,30 @@ public class AdminFacade extends ClientFacade{
      * If the provided company's name or email differs from the existing one, it throws a FieldNotMutableException.
      * Otherwise, it updates the company's information in the database.
      *
+     * @param session The session of the logged-in administrator.
      * @param company The updated Company object with the new information.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCompanyException If the company with the specified ID does not exist.
      * @throws FieldNotMutableException If the company's name or email is changed (immutable fields).
      * @throws Exception If there is an issue with the database operation.
      */
-    public void updateCompany(Company company) throws Exception {
-        Company copy = companiesDBDAO.getOneCompany(company.getId());
-        if (copy == null)
-            throw new NoSuchCompanyException(company.getId());
-        else if(!company.getName().equals(copy.getName()))
-            throw new FieldNotMutableException("company name");
-        else if(!company.getEmail().equals(copy.getEmail()))
-            throw new FieldNotMutableException("company email");
-        else
-            companiesDBDAO.updateCompany(company);
+    public void updateCompany(SessionContext session, Company company) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            Company copy = companiesDBDAO.getOneCompany(company.getId());
+            if (copy == null)
+                throw new NoSuchCompanyException(company.getId());
+            else if(!company.getName().equals(copy.getName()))
+                throw new FieldNotMutableException("company name");
+            else if(!company.getEmail().equals(copy.getEmail()))
+                throw new FieldNotMutableException("company email");
+            else {
+                companiesDBDAO.updateCompany(company);
+                LoginManger.getInstance().accountChanged(ClientType.COMPANY, company.getId(), company.getEmail());
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -80,25 +114,93 @@ public class AdminFacade extends ClientFacade{
      *
      * This method first checks if the company with the specified ID exists in the system.
      * If the company does not exist, it throws a NoSuchCompanyException.
-     * Otherwise, it proceeds to delete all coupons associated with the company and their purchases.
-     * Finally, it deletes the company itself from the database.
+     * Otherwise, it deletes the purchases of the company's coupons, the coupons and the company itself with three
+     * set-based statements in one transaction, so a failure leaves nothing half-deleted.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param companyID The unique identifier (ID) of the company to be deleted.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws NoSuchCompanyException If the company with the specified ID does not exist.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public void deleteCompany(SessionContext session, int companyID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (!companiesDBDAO.companyExists(companyID))
+                throw new NoSuchCompanyException(companyID);
+
+            cascadeDeleter.deleteCompany(companyID);
+            LoginManger.getInstance().accountChanged(ClientType.COMPANY, companyID, null);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Deletes a very large company in the background, a chunk of coupons per transaction.
      *
+     * The company itself is deleted together with the last chunk.
+     *
+     * @param session The session of the logged-in administrator.
      * @param companyID The unique identifier (ID) of the company to be deleted.
+     * @return A future that completes when the company is gone.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCompanyException If the company with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void deleteCompany(int companyID) throws Exception{
-        Company company = companiesDBDAO.getOneCompany(companyID);
-        if (company == null)
-            throw new NoSuchCompanyException(companyID);
+    public CompletableFuture<Void> deleteCompanyInBackground(SessionContext session, int companyID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (!companiesDBDAO.companyExists(companyID))
+                throw new NoSuchCompanyException(companyID);
+
+            LoginManger loginManger = LoginManger.getInstance();
+            loginManger.accountChanged(ClientType.COMPANY, companyID, null);
+            return cascadeDeleter.deleteCompanyInBackground(companyID)
+                    .whenComplete((done, e) -> loginManger.accountChanged(ClientType.COMPANY, companyID, null));
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
 
-        ArrayList<Coupon> coupons = couponsDBDAO.getCompanyCouponsByID(companyID);
+    /**
+     * Puts a coupon on flash sale, so its purchases are admitted in memory by the FlashSaleStockEngine.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param couponID The unique identifier (ID) of the coupon.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws IllegalStateException If flash sales are not enabled.
+     * @throws NoSuchCouponException If the coupon with the specified ID does not exist.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public void startFlashSale(SessionContext session, int couponID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (!FlashSaleStockEngine.ENABLED)
+                throw new IllegalStateException("flash sales are disabled, set coupons.flashSale.enabled=true");
+            if (!FlashSaleStockEngine.getInstance().loadHotCoupon(couponID))
+                throw new NoSuchCouponException(couponID);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
 
-        for (Coupon coupon: coupons) {
-            couponsDBDAO.deletePurchaseByCouponID(coupon.getId());
+    /**
+     * Ends a coupon's flash sale, writing all of its purchases to the database.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param couponID The unique identifier (ID) of the coupon.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public void endFlashSale(SessionContext session, int couponID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (FlashSaleStockEngine.ENABLED)
+                FlashSaleStockEngine.getInstance().release(couponID);
+        } finally {
+            ConnectionRouter.unbind();
         }
-        couponsDBDAO.deleteCouponsByCompanyID(companyID);
-        companiesDBDAO.deleteCompany(companyID);
     }
 
     /**
@@ -106,11 +208,58 @@ public class AdminFacade extends ClientFacade{
      *
      * This method retrieves and returns a list of all companies currently registered in the system.
      *
+     * @param session The session of the logged-in administrator.
      * @return An ArrayList containing all registered companies.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws Exception If there is an issue with the database operation.
      */
-    public ArrayList<Company> getAllCompanies() throws SQLException {
-        return companiesDBDAO.getAllCompanies();
+    public ArrayList<Company> getAllCompanies(SessionContext session) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return companiesDBDAO.getAllCompanies();
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Streams all companies registered in the system without loading them into memory at once.
+     *
+     * The stream holds a database connection until it is closed, so it must be used in a try-with-resources block.
+     *
+     * @param session The session of the logged-in administrator.
+     * @return A stream over all registered companies, in ID order.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Company> streamAllCompanies(SessionContext session) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return companiesDBDAO.streamAllCompanies();
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves one page of the companies registered in the system.
+     *
+     * Pass 0 for the first page, then the ID of the last company of each page to get the next one.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param afterID The ID of the last company on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of companies to return.
+     * @return An ArrayList containing up to limit companies, in ID order; empty when there are no more.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Company> getCompaniesPage(SessionContext session, int afterID, int limit) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return companiesDBDAO.getCompaniesPage(afterID, limit);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -119,17 +268,43 @@ public class AdminFacade extends ClientFacade{
      * This method retrieves and returns a single company from the system based on the provided company ID.
      * If no company with the specified ID is found, it throws a NoSuchCompanyException.
      *
+     * The company's coupons are loaded only if getCoupons is called on it.
+     *
+     * @param session The session of the logged-in administrator.
      * @param companyID The unique identifier (ID) of the company to retrieve.
      * @return The Company object representing the retrieved company.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCompanyException If the company with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public Company getOneCompany(int companyID) throws Exception {
-        Company company = companiesDBDAO.getOneCompany(companyID);
-        if (company == null)
-            throw new NoSuchCompanyException(companyID);
-        else
-            return company;
+    public Company getOneCompany(SessionContext session, int companyID) throws Exception {
+        return getOneCompany(session, companyID, false);
+    }
+
+    /**
+     * Retrieves a single company from the system, choosing whether its coupons are fetched along with it.
+     *
+     * Without coupons the company's coupons are loaded only if getCoupons is called on it.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param companyID   The unique identifier (ID) of the company to retrieve.
+     * @param withCoupons True to fetch the company's coupons in the same round.
+     * @return The Company object representing the retrieved company.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws NoSuchCompanyException If the company with the specified ID does not exist.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public Company getOneCompany(SessionContext session, int companyID, boolean withCoupons) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            Company company = companiesDBDAO.getOneCompany(companyID, withCoupons);
+            if (company == null)
+                throw new NoSuchCompanyException(companyID);
+            else
+                return company;
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -139,15 +314,24 @@ public class AdminFacade extends ClientFacade{
      * If a customer with the same email exists, it throws an AlreadyExistsException with the email of the existing customer.
      * Otherwise, it adds the new customer to the database.
      *
+     * @param session The session of the logged-in administrator.
      * @param customer The Customer object to be added.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws AlreadyExistsException If a customer with the same email already exists.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void addCustomer(Customer customer) throws Exception {
-        if (customerDBDAO.emailAlreadyExists(customer.getEmail()))
-            throw new AlreadyExistsException(customer.getEmail(), "email");
-        else
-            customerDBDAO.addCustomer(customer);
+    public void addCustomer(SessionContext session, Customer customer) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (customerDBDAO.emailAlreadyExists(customer.getEmail()))
+                throw new AlreadyExistsException(customer.getEmail(), "email");
+            else {
+                customerDBDAO.addCustomer(customer);
+                LoginManger.getInstance().accountAdded(ClientType.CUSTOMER, customer.getEmail());
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -157,16 +341,25 @@ public class AdminFacade extends ClientFacade{
      * If the customer does not exist, it throws a NoSuchCustomerException.
      * Otherwise, it updates the customer's information in the database.
      *
+     * @param session The session of the logged-in administrator.
      * @param customer The updated Customer object with the new information.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCustomerException If the customer with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void updateCustomer(Customer customer) throws Exception {
-        Customer copy = customerDBDAO.getOneCustomer(customer.getId());
-        if (copy == null)
-            throw new NoSuchCustomerException(customer.getId());
-        else
-            customerDBDAO.updateCustomer(customer);
+    public void updateCustomer(SessionContext session, Customer customer) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            Customer copy = customerDBDAO.getOneCustomer(customer.getId());
+            if (copy == null)
+                throw new NoSuchCustomerException(customer.getId());
+            else {
+                customerDBDAO.updateCustomer(customer);
+                LoginManger.getInstance().accountChanged(ClientType.CUSTOMER, customer.getId(), customer.getEmail());
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -174,20 +367,52 @@ public class AdminFacade extends ClientFacade{
      *
      * This method first checks if the customer with the specified ID exists in the system.
      * If the customer does not exist, it throws a NoSuchCustomerException.
-     * Otherwise, it proceeds to delete all coupon purchases associated with the customer.
-     * Finally, it deletes the customer itself from the database.
+     * Otherwise, it deletes all coupon purchases associated with the customer and the customer itself in one
+     * transaction.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customerID The unique identifier (ID) of the customer to be deleted.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws NoSuchCustomerException If the customer with the specified ID does not exist.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public void deleteCustomer(SessionContext session, int customerID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (!customerDBDAO.customerExists(customerID))
+                throw new NoSuchCustomerException(customerID);
+
+            cascadeDeleter.deleteCustomer(customerID);
+            LoginManger.getInstance().accountChanged(ClientType.CUSTOMER, customerID, null);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Deletes a customer with a very large purchase history in the background, a chunk of purchases per transaction.
+     *
+     * The customer itself is deleted together with the last chunk.
      *
+     * @param session The session of the logged-in administrator.
      * @param customerID The unique identifier (ID) of the customer to be deleted.
+     * @return A future that completes when the customer is gone.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCustomerException If the customer with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void deleteCustomer(int customerID) throws Exception{
-        Customer copy = customerDBDAO.getOneCustomer(customerID);
-        if (copy == null)
-            throw new NoSuchCustomerException(customerID);
-        else {
-            couponsDBDAO.deletePurchaseByCustomerID(customerID);
-            customerDBDAO.deleteCustomer(customerID);
+    public CompletableFuture<Void> deleteCustomerInBackground(SessionContext session, int customerID) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            if (!customerDBDAO.customerExists(customerID))
+                throw new NoSuchCustomerException(customerID);
+
+            LoginManger loginManger = LoginManger.getInstance();
+            loginManger.accountChanged(ClientType.CUSTOMER, customerID, null);
+            return cascadeDeleter.deleteCustomerInBackground(customerID)
+                    .whenComplete((done, e) -> loginManger.accountChanged(ClientType.CUSTOMER, customerID, null));
+        } finally {
+            ConnectionRouter.unbind();
         }
     }
 
@@ -196,11 +421,58 @@ public class AdminFacade extends ClientFacade{
      *
      * This method retrieves and returns a list of all customers currently registered in the system.
      *
+     * @param session The session of the logged-in administrator.
      * @return An ArrayList containing all registered customers.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Customer> getAllCustomers(SessionContext session) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return customerDBDAO.getAllCustomers();
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Streams all customers registered in the system without loading them into memory at once.
+     *
+     * The stream holds a database connection until it is closed, so it must be used in a try-with-resources block.
+     *
+     * @param session The session of the logged-in administrator.
+     * @return A stream over all registered customers, in ID order.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Customer> streamAllCustomers(SessionContext session) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return customerDBDAO.streamAllCustomers();
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves one page of the customers registered in the system.
+     *
+     * Pass 0 for the first page, then the ID of the last customer of each page to get the next one.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param afterID The ID of the last customer on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of customers to return.
+     * @return An ArrayList containing up to limit customers, in ID order; empty when there are no more.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Customer> getAllCustomers() throws SQLException {
-        return customerDBDAO.getAllCustomers();
+    public ArrayList<Customer> getCustomersPage(SessionContext session, int afterID, int limit) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            return customerDBDAO.getCustomersPage(afterID, limit);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -209,16 +481,42 @@ public class AdminFacade extends ClientFacade{
      * This method retrieves and returns a single customer from the system based on the provided customer ID.
      * If no customer with the specified ID is found, it throws a NoSuchCustomerException.
      *
+     * The customer's coupons are loaded only if getCoupons is called on it.
+     *
+     * @param session The session of the logged-in administrator.
      * @param customerID The unique identifier (ID) of the customer to retrieve.
      * @return The Customer object representing the retrieved customer.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
      * @throws NoSuchCustomerException If the customer with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public Customer getOneCustomer(int customerID) throws Exception {
-        Customer customer = customerDBDAO.getOneCustomer(customerID);
-        if (customer == null)
-            throw new NoSuchCustomerException(customerID);
-        else
-            return customer;
+    public Customer getOneCustomer(SessionContext session, int customerID) throws Exception {
+        return getOneCustomer(session, customerID, false);
+    }
+
+    /**
+     * Retrieves a single customer from the system, choosing whether their coupons are fetched along with them.
+     *
+     * Without coupons the customer's coupons are loaded only if getCoupons is called on it.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customerID  The unique identifier (ID) of the customer to retrieve.
+     * @param withCoupons True to fetch the customer's coupons in the same round.
+     * @return The Customer object representing the retrieved customer.
+     * @throws InvalidCredentialsException If the session is not a current administrator session.
+     * @throws NoSuchCustomerException If the customer with the specified ID does not exist.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public Customer getOneCustomer(SessionContext session, int customerID, boolean withCoupons) throws Exception {
+        requireClient(session, ClientType.ADMINISTRATOR);
+        try {
+            Customer customer = customerDBDAO.getOneCustomer(customerID, withCoupons);
+            if (customer == null)
+                throw new NoSuchCustomerException(customerID);
+            else
+                return customer;
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 }
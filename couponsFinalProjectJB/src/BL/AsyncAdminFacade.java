@@ -0,0 +1,244 @@
+package BL;
+
+import javaBeans.Company;
+import javaBeans.Customer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * the operations of AdminFacade that return a CompletableFuture instead of blocking, run by the FacadeExecutor.
+ *
+ * a future fails with the exception the blocking method throws, and can be cancelled or given a deadline with
+ * orTimeout. reads time out after FacadeExecutor.DEFAULT_TIMEOUT of running, writes never do on their own; see
+ * FacadeExecutor. methods returning a Stream have no async variant, since the stream holds a connection until the
+ * caller closes it.
+ */
+public class AsyncAdminFacade {
+    private final AdminFacade facade;
+    private final FacadeExecutor executor;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile AsyncAdminFacade instance;
+
+    private AsyncAdminFacade() throws SQLException {
+        facade = AdminFacade.getInstance();
+        executor = FacadeExecutor.getInstance();
+    }
+
+    public static AsyncAdminFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new AsyncAdminFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a new company to the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param company The Company object to be added.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#addCompany(SessionContext, Company)
+     */
+    public CompletableFuture<Void> addCompany(SessionContext session, Company company) {
+        return executor.run(() -> facade.addCompany(session, company), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Updates an existing company's information in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param company The updated Company object with the new information.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#updateCompany(SessionContext, Company)
+     */
+    public CompletableFuture<Void> updateCompany(SessionContext session, Company company) {
+        return executor.run(() -> facade.updateCompany(session, company), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Deletes a company from the system, including its associated coupons and purchases, without blocking the calling
+     * thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param companyID The unique identifier (ID) of the company to be deleted.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#deleteCompany(SessionContext, int)
+     */
+    public CompletableFuture<Void> deleteCompany(SessionContext session, int companyID) {
+        return executor.run(() -> facade.deleteCompany(session, companyID), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Puts a coupon on flash sale, so its purchases are admitted in memory by the FlashSaleStockEngine, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param couponID The unique identifier (ID) of the coupon.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#startFlashSale(SessionContext, int)
+     */
+    public CompletableFuture<Void> startFlashSale(SessionContext session, int couponID) {
+        return executor.run(() -> facade.startFlashSale(session, couponID), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Ends a coupon's flash sale, writing all of its purchases to the database, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param couponID The unique identifier (ID) of the coupon.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#endFlashSale(SessionContext, int)
+     */
+    public CompletableFuture<Void> endFlashSale(SessionContext session, int couponID) {
+        return executor.run(() -> facade.endFlashSale(session, couponID), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Retrieves a list of all companies registered in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @return A future of the result of AdminFacade.getAllCompanies.
+     * @see AdminFacade#getAllCompanies(SessionContext)
+     */
+    public CompletableFuture<ArrayList<Company>> getAllCompanies(SessionContext session) {
+        return executor.call(() -> facade.getAllCompanies(session));
+    }
+
+    /**
+     * Retrieves one page of the companies registered in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param afterID The ID of the last company on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of companies to return.
+     * @return A future of the result of AdminFacade.getCompaniesPage.
+     * @see AdminFacade#getCompaniesPage(SessionContext, int, int)
+     */
+    public CompletableFuture<ArrayList<Company>> getCompaniesPage(SessionContext session, int afterID, int limit) {
+        return executor.call(() -> facade.getCompaniesPage(session, afterID, limit));
+    }
+
+    /**
+     * Retrieves a single company from the system based on its unique identifier (company ID), without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param companyID The unique identifier (ID) of the company to retrieve.
+     * @return A future of the result of AdminFacade.getOneCompany.
+     * @see AdminFacade#getOneCompany(SessionContext, int)
+     */
+    public CompletableFuture<Company> getOneCompany(SessionContext session, int companyID) {
+        return executor.call(() -> facade.getOneCompany(session, companyID));
+    }
+
+    /**
+     * Retrieves a single company from the system, choosing whether its coupons are fetched along with it, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param companyID   The unique identifier (ID) of the company to retrieve.
+     * @param withCoupons True to fetch the company's coupons in the same round.
+     * @return A future of the result of AdminFacade.getOneCompany.
+     * @see AdminFacade#getOneCompany(SessionContext, int, boolean)
+     */
+    public CompletableFuture<Company> getOneCompany(SessionContext session, int companyID, boolean withCoupons) {
+        return executor.call(() -> facade.getOneCompany(session, companyID, withCoupons));
+    }
+
+    /**
+     * Adds a new customer to the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customer The Customer object to be added.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#addCustomer(SessionContext, Customer)
+     */
+    public CompletableFuture<Void> addCustomer(SessionContext session, Customer customer) {
+        return executor.run(() -> facade.addCustomer(session, customer), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Updates an existing customer's information in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customer The updated Customer object with the new information.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#updateCustomer(SessionContext, Customer)
+     */
+    public CompletableFuture<Void> updateCustomer(SessionContext session, Customer customer) {
+        return executor.run(() -> facade.updateCustomer(session, customer), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Deletes a customer from the system, including their associated coupon purchases, without blocking the calling
+     * thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customerID The unique identifier (ID) of the customer to be deleted.
+     * @return A future that completes when the operation is done.
+     * @see AdminFacade#deleteCustomer(SessionContext, int)
+     */
+    public CompletableFuture<Void> deleteCustomer(SessionContext session, int customerID) {
+        return executor.run(() -> facade.deleteCustomer(session, customerID), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Retrieves a list of all customers registered in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @return A future of the result of AdminFacade.getAllCustomers.
+     * @see AdminFacade#getAllCustomers(SessionContext)
+     */
+    public CompletableFuture<ArrayList<Customer>> getAllCustomers(SessionContext session) {
+        return executor.call(() -> facade.getAllCustomers(session));
+    }
+
+    /**
+     * Retrieves one page of the customers registered in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param afterID The ID of the last customer on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of customers to return.
+     * @return A future of the result of AdminFacade.getCustomersPage.
+     * @see AdminFacade#getCustomersPage(SessionContext, int, int)
+     */
+    public CompletableFuture<ArrayList<Customer>> getCustomersPage(SessionContext session, int afterID, int limit) {
+        return executor.call(() -> facade.getCustomersPage(session, afterID, limit));
+    }
+
+    /**
+     * Retrieves a single customer from the system based on their unique identifier (customer ID), without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customerID The unique identifier (ID) of the customer to retrieve.
+     * @return A future of the result of AdminFacade.getOneCustomer.
+     * @see AdminFacade#getOneCustomer(SessionContext, int)
+     */
+    public CompletableFuture<Customer> getOneCustomer(SessionContext session, int customerID) {
+        return executor.call(() -> facade.getOneCustomer(session, customerID));
+    }
+
+    /**
+     * Retrieves a single customer from the system, choosing whether their coupons are fetched along with them, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in administrator.
+     * @param customerID  The unique identifier (ID) of the customer to retrieve.
+     * @param withCoupons True to fetch the customer's coupons in the same round.
+     * @return A future of the result of AdminFacade.getOneCustomer.
+     * @see AdminFacade#getOneCustomer(SessionContext, int, boolean)
+     */
+    public CompletableFuture<Customer> getOneCustomer(SessionContext session, int customerID, boolean withCoupons) {
+        return executor.call(() -> facade.getOneCustomer(session, customerID, withCoupons));
+    }
+}
@@ -0,0 +1,184 @@
+package BL;
+
+import javaBeans.Category;
+import javaBeans.Company;
+import javaBeans.Coupon;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * the operations of CompanyFacade that return a CompletableFuture instead of blocking, run by the FacadeExecutor.
+ *
+ * a future fails with the exception the blocking method throws, and can be cancelled or given a deadline with
+ * orTimeout. reads time out after FacadeExecutor.DEFAULT_TIMEOUT of running, writes never do on their own; see
+ * FacadeExecutor. methods returning a Stream have no async variant, since the stream holds a connection until the
+ * caller closes it.
+ */
+public class AsyncCompanyFacade {
+    private final CompanyFacade facade;
+    private final FacadeExecutor executor;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile AsyncCompanyFacade instance;
+
+    private AsyncCompanyFacade() throws SQLException {
+        facade = CompanyFacade.getInstance();
+        executor = FacadeExecutor.getInstance();
+    }
+
+    public static AsyncCompanyFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new AsyncCompanyFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a new coupon to the system for the associated company, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param coupon The Coupon object to be added.
+     * @return A future that completes when the operation is done.
+     * @see CompanyFacade#addCoupon(SessionContext, Coupon)
+     */
+    public CompletableFuture<Void> addCoupon(SessionContext session, Coupon coupon) {
+        return executor.run(() -> facade.addCoupon(session, coupon), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Imports a stream of coupons for the associated company, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param coupons  The coupons to import.
+     * @param progress Called with the running report after each batch is written, or null.
+     * @return A future of the result of CompanyFacade.importCoupons.
+     * @see CompanyFacade#importCoupons(SessionContext, Iterator, Consumer)
+     */
+    public CompletableFuture<CouponImportReport> importCoupons(SessionContext session, Iterator<Coupon> coupons, Consumer<CouponImportReport> progress) {
+        return executor.call(() -> facade.importCoupons(session, coupons, progress), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Updates an existing coupon's information in the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param coupon The updated Coupon object with the new information.
+     * @return A future that completes when the operation is done.
+     * @see CompanyFacade#updateCoupon(SessionContext, Coupon)
+     */
+    public CompletableFuture<Void> updateCoupon(SessionContext session, Coupon coupon) {
+        return executor.run(() -> facade.updateCoupon(session, coupon), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Deletes a coupon from the system, including its associated purchases, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param couponID The unique identifier (ID) of the coupon to be deleted.
+     * @return A future that completes when the operation is done.
+     * @see CompanyFacade#deleteCoupon(SessionContext, int)
+     */
+    public CompletableFuture<Void> deleteCoupon(SessionContext session, int couponID) {
+        return executor.run(() -> facade.deleteCoupon(session, couponID), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @return A future of the result of CompanyFacade.getCompanyCoupons.
+     * @see CompanyFacade#getCompanyCoupons(SessionContext)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCompanyCoupons(SessionContext session) {
+        return executor.call(() -> facade.getCompanyCoupons(session));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company and a specific category, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param category The category of coupons to retrieve.
+     * @return A future of the result of CompanyFacade.getCompanyCoupons.
+     * @see CompanyFacade#getCompanyCoupons(SessionContext, Category)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCompanyCoupons(SessionContext session, Category category) {
+        return executor.call(() -> facade.getCompanyCoupons(session, category));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company up to a specified maximum price, without blocking
+     * the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CompanyFacade.getCompanyCoupons.
+     * @see CompanyFacade#getCompanyCoupons(SessionContext, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCompanyCoupons(SessionContext session, double maxPrice) {
+        return executor.call(() -> facade.getCompanyCoupons(session, maxPrice));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company in a specific category, up to a specified,
+     * without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param category The category of coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CompanyFacade.getCompanyCoupons.
+     * @see CompanyFacade#getCompanyCoupons(SessionContext, Category, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCompanyCoupons(SessionContext session, Category category, double maxPrice) {
+        return executor.call(() -> facade.getCompanyCoupons(session, category, maxPrice));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company within a price range, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CompanyFacade.getCompanyCoupons.
+     * @see CompanyFacade#getCompanyCoupons(SessionContext, double, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCompanyCoupons(SessionContext session, double minPrice, double maxPrice) {
+        return executor.call(() -> facade.getCompanyCoupons(session, minPrice, maxPrice));
+    }
+
+    /**
+     * Retrieves details of the current company from the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @return A future of the result of CompanyFacade.getCompanyDetails.
+     * @see CompanyFacade#getCompanyDetails(SessionContext)
+     */
+    public CompletableFuture<Company> getCompanyDetails(SessionContext session) {
+        return executor.call(() -> facade.getCompanyDetails(session));
+    }
+
+    /**
+     * Retrieves details of the current company, choosing whether its coupons are fetched along with it, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in company.
+     * @param withCoupons True to fetch the company's coupons in the same round.
+     * @return A future of the result of CompanyFacade.getCompanyDetails.
+     * @see CompanyFacade#getCompanyDetails(SessionContext, boolean)
+     */
+    public CompletableFuture<Company> getCompanyDetails(SessionContext session, boolean withCoupons) {
+        return executor.call(() -> facade.getCompanyDetails(session, withCoupons));
+    }
+}
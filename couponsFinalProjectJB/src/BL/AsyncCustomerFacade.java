@@ -0,0 +1,214 @@
+package BL;
+
+import DAOs.PurchaseResult;
+import javaBeans.Category;
+import javaBeans.Coupon;
+import javaBeans.Customer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * the operations of CustomerFacade that return a CompletableFuture instead of blocking, run by the FacadeExecutor.
+ *
+ * a future fails with the exception the blocking method throws, and can be cancelled or given a deadline with
+ * orTimeout. reads time out after FacadeExecutor.DEFAULT_TIMEOUT of running, writes never do on their own; see
+ * FacadeExecutor. methods returning a Stream have no async variant, since the stream holds a connection until the
+ * caller closes it.
+ */
+public class AsyncCustomerFacade {
+    private final CustomerFacade facade;
+    private final FacadeExecutor executor;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile AsyncCustomerFacade instance;
+
+    private AsyncCustomerFacade() throws SQLException {
+        facade = CustomerFacade.getInstance();
+        executor = FacadeExecutor.getInstance();
+    }
+
+    public static AsyncCustomerFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new AsyncCustomerFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Purchases a coupon for the logged-in customer, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param coupon The Coupon object to be purchased.
+     * @return A future that completes when the operation is done.
+     * @see CustomerFacade#purchaseCoupon(SessionContext, Coupon)
+     */
+    public CompletableFuture<Void> purchaseCoupon(SessionContext session, Coupon coupon) {
+        return executor.run(() -> facade.purchaseCoupon(session, coupon), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Purchases a cart of coupons for the logged-in customer, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param coupons The coupons in the cart.
+     * @return A future of the result of CustomerFacade.purchaseCoupons.
+     * @see CustomerFacade#purchaseCoupons(SessionContext, List)
+     */
+    public CompletableFuture<ArrayList<PurchaseResult>> purchaseCoupons(SessionContext session, List<Coupon> coupons) {
+        return executor.call(() -> facade.purchaseCoupons(session, coupons), FacadeExecutor.NO_TIMEOUT);
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @return A future of the result of CustomerFacade.getCustomerCoupons.
+     * @see CustomerFacade#getCustomerCoupons(SessionContext)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCoupons(SessionContext session) {
+        return executor.call(() -> facade.getCustomerCoupons(session));
+    }
+
+    /**
+     * Retrieves one page of the coupons associated with the logged-in customer, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param afterID The ID of the last coupon on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of coupons to return.
+     * @return A future of the result of CustomerFacade.getCustomerCouponsPage.
+     * @see CustomerFacade#getCustomerCouponsPage(SessionContext, int, int)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCouponsPage(SessionContext session, int afterID, int limit) {
+        return executor.call(() -> facade.getCustomerCouponsPage(session, afterID, limit));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer and a specific category, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve.
+     * @return A future of the result of CustomerFacade.getCustomerCoupons.
+     * @see CustomerFacade#getCustomerCoupons(SessionContext, Category)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCoupons(SessionContext session, Category category) {
+        return executor.call(() -> facade.getCustomerCoupons(session, category));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer up to a specified maximum price, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CustomerFacade.getCustomerCoupons.
+     * @see CustomerFacade#getCustomerCoupons(SessionContext, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCoupons(SessionContext session, double maxPrice) {
+        return executor.call(() -> facade.getCustomerCoupons(session, maxPrice));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer in a specific category, up to a specified,
+     * without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CustomerFacade.getCustomerCoupons.
+     * @see CustomerFacade#getCustomerCoupons(SessionContext, Category, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCoupons(SessionContext session, Category category, double maxPrice) {
+        return executor.call(() -> facade.getCustomerCoupons(session, category, maxPrice));
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer within a price range, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CustomerFacade.getCustomerCoupons.
+     * @see CustomerFacade#getCustomerCoupons(SessionContext, double, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCustomerCoupons(SessionContext session, double minPrice, double maxPrice) {
+        return executor.call(() -> facade.getCustomerCoupons(session, minPrice, maxPrice));
+    }
+
+    /**
+     * Retrieves the coupons of the whole catalog within a price range, for browsing the store, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return A future of the result of CustomerFacade.getCouponsInPriceRange.
+     * @see CustomerFacade#getCouponsInPriceRange(SessionContext, Category, double, double)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCouponsInPriceRange(SessionContext session, Category category, double minPrice, double maxPrice) {
+        return executor.call(() -> facade.getCouponsInPriceRange(session, category, minPrice, maxPrice));
+    }
+
+    /**
+     * Retrieves the cheapest coupons of the whole catalog, for browsing the store, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param limit    The maximum number of coupons to return.
+     * @return A future of the result of CustomerFacade.getCheapestCoupons.
+     * @see CustomerFacade#getCheapestCoupons(SessionContext, Category, int)
+     */
+    public CompletableFuture<ArrayList<Coupon>> getCheapestCoupons(SessionContext session, Category category, int limit) {
+        return executor.call(() -> facade.getCheapestCoupons(session, category, limit));
+    }
+
+    /**
+     * Searches the store for coupons whose title or description contains every word of a text, without blocking the
+     * calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param text  The words to search for.
+     * @param limit The maximum number of coupons to return.
+     * @return A future of the result of CustomerFacade.searchCoupons.
+     * @see CustomerFacade#searchCoupons(SessionContext, String, int)
+     */
+    public CompletableFuture<ArrayList<Coupon>> searchCoupons(SessionContext session, String text, int limit) {
+        return executor.call(() -> facade.searchCoupons(session, text, limit));
+    }
+
+    /**
+     * Retrieves details of the logged-in customer from the system, without blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @return A future of the result of CustomerFacade.getCustomerDetails.
+     * @see CustomerFacade#getCustomerDetails(SessionContext)
+     */
+    public CompletableFuture<Customer> getCustomerDetails(SessionContext session) {
+        return executor.call(() -> facade.getCustomerDetails(session));
+    }
+
+    /**
+     * Retrieves details of the logged-in customer, choosing whether their coupons are fetched along with them, without
+     * blocking the calling thread.
+     *
+     * @param session The session of the logged-in customer.
+     * @param withCoupons True to fetch the customer's coupons in the same round.
+     * @return A future of the result of CustomerFacade.getCustomerDetails.
+     * @see CustomerFacade#getCustomerDetails(SessionContext, boolean)
+     */
+    public CompletableFuture<Customer> getCustomerDetails(SessionContext session, boolean withCoupons) {
+        return executor.call(() -> facade.getCustomerDetails(session, withCoupons));
+    }
+}
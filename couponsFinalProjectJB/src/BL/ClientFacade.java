@@ -1,21 +1,41 @@
 package BL;
 
+import Connections.ConnectionRouter;
 import DAOs.CompaniesDBDAO;
 import DAOs.CouponsDBDAO;
 import DAOs.CustomerDBDAO;
+import Exceptions.InvalidCredentialsException;
 
 import java.sql.SQLException;
 
+/**
+ * the facades are shared singletons and keep no per-client state: every call gets the SessionContext of the client it
+ * is made for. the DAOs are stateless and come from SharedDAOs, so all facades use the same ones. a facade call binds
+ * the client's read-your-writes tracking to the calling thread through requireClient, and unbinds it before it
+ * returns, so a pooled thread doesn't carry one client's tracking into its next task.
+ */
 public abstract class ClientFacade {
-    protected CompaniesDBDAO companiesDBDAO;
-    protected CouponsDBDAO couponsDBDAO;
-    protected CustomerDBDAO customerDBDAO;
+    protected final CompaniesDBDAO companiesDBDAO;
+    protected final CouponsDBDAO couponsDBDAO;
+    protected final CustomerDBDAO customerDBDAO;
 
     protected ClientFacade() throws SQLException {
-        this.companiesDBDAO = new CompaniesDBDAO();
-        this.couponsDBDAO = new CouponsDBDAO();
-        this.customerDBDAO = new CustomerDBDAO();
+        SharedDAOs daos = SharedDAOs.getInstance();
+        this.companiesDBDAO = daos.getCompaniesDBDAO();
+        this.couponsDBDAO = daos.getCouponsDBDAO();
+        this.customerDBDAO = daos.getCustomerDBDAO();
     }
 
-    public abstract boolean login(String email, String password) throws SQLException;
+    /**
+     * checks the session and binds its read-your-writes tracking to the calling thread
+     * @return the client ID of the session
+     * @throws InvalidCredentialsException if there is no session, it belongs to another client type, or its account
+     * was changed or deleted since the login
+     */
+    protected static int requireClient(SessionContext session, ClientType clientType) throws InvalidCredentialsException {
+        if (session == null || session.getClientType() != clientType || !session.isCurrent())
+            throw new InvalidCredentialsException();
+        ConnectionRouter.bind(session.getRecentWrites());
+        return session.getClientID();
+    }
 }
@@ -1,49 +1,49 @@
 package BL;
 
+import Connections.ConnectionRouter;
+import DAOs.CouponColumns;
 import Exceptions.AlreadyExistsException;
 import Exceptions.FieldNotMutableException;
+import Exceptions.InvalidCredentialsException;
 import Exceptions.NoSuchCompanyException;
 import Exceptions.NoSuchCouponException;
+import Lifecycle.CouponLifecycle;
+import Stock.FlashSaleStockEngine;
 import javaBeans.Category;
 import javaBeans.Company;
 import javaBeans.Coupon;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class CompanyFacade extends ClientFacade{
 
-    private int companyID;
-    public CompanyFacade() throws SQLException {
-    }
+    public static final int IMPORT_BATCH_SIZE = 500;
 
-    /**
-     * Gets the unique identifier (ID) of the company associated with this object.
-     *
-     * @return The unique identifier (ID) of the company.
-     */
-    public int getCompanyID() {
-        return companyID;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CompanyFacade instance;
+
+    private CompanyFacade() throws SQLException {
     }
 
-    /**
-     * Logs in a user with the specified email and password.
-     *
-     * This method attempts to authenticate a user by their email and password.
-     * If successful, it sets the company ID associated with the user.
-     *
-     * @param email    The email address of the user.
-     * @param password The password of the user.
-     * @return True if the login is successful; false otherwise.
-     * @throws SQLException If there is an issue with the database operation.
-     */
-    @Override
-    public boolean login(String email, String password) throws SQLException {
-        companyID = companiesDBDAO.getID(email, password);
-        if (companyID == -1)
-            return false;
-        else
-            return true;
+    public static CompanyFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CompanyFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
     }
 
     /**
@@ -53,15 +53,126 @@ public class CompanyFacade extends ClientFacade{
      * If a coupon with the same title exists, it throws an AlreadyExistsException specifying the title and company.
      * Otherwise, it adds the new coupon to the database.
      *
+     * @param session The session of the logged-in company.
      * @param coupon The Coupon object to be added.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws AlreadyExistsException If a coupon with the same title exists for this company.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void addCoupon(Coupon coupon) throws Exception {
-        if (couponsDBDAO.titleInCompanyExists(coupon))
-            throw new AlreadyExistsException(coupon.getTitle(), "title, for this company");
-        else
-            couponsDBDAO.addCoupon(coupon);
+    public void addCoupon(SessionContext session, Coupon coupon) throws Exception {
+        requireClient(session, ClientType.COMPANY);
+        try {
+            if (couponsDBDAO.titleInCompanyExists(coupon))
+                throw new AlreadyExistsException(coupon.getTitle(), "title, for this company");
+            else {
+                couponsDBDAO.addCoupon(coupon);
+                if (CouponLifecycle.ENABLED)
+                    CouponLifecycle.getInstance().schedule(coupon.getId(), coupon.getStartDate(), coupon.getEndDate());
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Imports a stream of coupons for the associated company.
+     *
+     * Coupons are read one at a time and written in multi-row inserts of IMPORT_BATCH_SIZE, so memory use does not
+     * grow with the size of the input or of the company's catalog: before each batch is written, its titles are
+     * checked against the database in one query. Each coupon is assigned to this company. Rows whose title already
+     * exists for the company (in the database, in an earlier batch or earlier in the same batch), whose end date is
+     * before the start date, or whose amount or price is negative are rejected and recorded in the report; malformed
+     * rows from a CouponCsvReader are rejected the same way.
+     *
+     * @param session The session of the logged-in company.
+     * @param coupons  The coupons to import.
+     * @param progress Called with the running report after each batch is written, or null.
+     * @return The import report.
+     * @throws InvalidCredentialsException If the session is not a current company session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public CouponImportReport importCoupons(SessionContext session, Iterator<Coupon> coupons, Consumer<CouponImportReport> progress) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            CouponImportReport report = new CouponImportReport();
+            Map<String, Coupon> batch = new LinkedHashMap<>();
+
+            while (coupons.hasNext()) {
+                Coupon coupon;
+                try {
+                    coupon = coupons.next();
+                } catch (IllegalArgumentException e) {
+                    report.addRejected(e.getMessage());
+                    continue;
+                }
+
+                String reason = validateImport(coupon);
+                if (reason == null && batch.containsKey(coupon.getTitle()))
+                    reason = duplicateTitle(coupon);
+                if (reason != null) {
+                    report.addRejected(reason);
+                    continue;
+                }
+
+                coupon.setCompanyID(companyID);
+                batch.put(coupon.getTitle(), coupon);
+                if (batch.size() == IMPORT_BATCH_SIZE) {
+                    addImported(companyID, batch, report);
+                    batch.clear();
+                    if (progress != null)
+                        progress.accept(report);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                addImported(companyID, batch, report);
+                if (progress != null)
+                    progress.accept(report);
+            }
+            return report;
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * writes a batch of coupons keyed by title, rejecting the ones whose title the company already has
+     */
+    private void addImported(int companyID, Map<String, Coupon> batch, CouponImportReport report) throws SQLException {
+        Set<String> taken = couponsDBDAO.findCompanyCouponTitles(companyID, batch.keySet());
+        List<Coupon> coupons = new ArrayList<>(batch.size());
+        for (Coupon coupon: batch.values()) {
+            if (taken.contains(coupon.getTitle()))
+                report.addRejected(duplicateTitle(coupon));
+            else
+                coupons.add(coupon);
+        }
+        if (coupons.isEmpty())
+            return;
+
+        couponsDBDAO.addCoupons(coupons);
+        report.addImported(coupons.size());
+        if (CouponLifecycle.ENABLED) {
+            for (Coupon coupon: coupons) {
+                CouponLifecycle.getInstance().schedule(coupon.getId(), coupon.getStartDate(), coupon.getEndDate());
+            }
+        }
+    }
+
+    private static String duplicateTitle(Coupon coupon) {
+        return "title " + coupon.getTitle() + " already exists for this company";
+    }
+
+    private static String validateImport(Coupon coupon) {
+        if (coupon.getTitle() == null || coupon.getTitle().isEmpty())
+            return "missing title";
+        if (coupon.getCategory() == null || coupon.getStartDate() == null || coupon.getEndDate() == null)
+            return "missing field in coupon " + coupon.getTitle();
+        if (coupon.getEndDate().before(coupon.getStartDate()))
+            return "end date is before start date in coupon " + coupon.getTitle();
+        if (coupon.getAmount() < 0 || coupon.getPrice() < 0)
+            return "negative amount or price in coupon " + coupon.getTitle();
+        return null;
     }
 
     /**
@@ -72,19 +183,31 @@ public class CompanyFacade extends ClientFacade{
      * If the provided coupon's associated company ID differs from the existing one, it throws a FieldNotMutableException.
      * Otherwise, it updates the coupon's information in the database.
      *
+     * @param session The session of the logged-in company.
      * @param coupon The updated Coupon object with the new information.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws NoSuchCouponException   If the coupon with the specified ID does not exist.
      * @throws FieldNotMutableException If the associated company ID is changed (immutable field).
      * @throws Exception               If there is an issue with the database operation.
      */
-    public void updateCoupon(Coupon coupon) throws Exception {
-        Coupon copy = couponsDBDAO.getOneCoupon(coupon.getId());
-        if (copy == null)
-            throw new NoSuchCouponException(coupon.getId());
-        else if (coupon.getCompanyID() != copy.getCompanyID())
-            throw new FieldNotMutableException("company_id");
-        else
-            couponsDBDAO.updateCoupon(coupon);
+    public void updateCoupon(SessionContext session, Coupon coupon) throws Exception {
+        requireClient(session, ClientType.COMPANY);
+        try {
+            Coupon copy = couponsDBDAO.getOneCoupon(coupon.getId());
+            if (copy == null)
+                throw new NoSuchCouponException(coupon.getId());
+            else if (coupon.getCompanyID() != copy.getCompanyID())
+                throw new FieldNotMutableException("company_id");
+            else {
+                if (FlashSaleStockEngine.ENABLED)
+                    FlashSaleStockEngine.getInstance().release(coupon.getId());
+                couponsDBDAO.updateCoupon(coupon);
+                if (CouponLifecycle.ENABLED)
+                    CouponLifecycle.getInstance().schedule(coupon.getId(), coupon.getStartDate(), coupon.getEndDate());
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -95,17 +218,28 @@ public class CompanyFacade extends ClientFacade{
      * Otherwise, it proceeds to delete all purchases associated with the coupon.
      * Finally, it deletes the coupon itself from the database.
      *
+     * @param session The session of the logged-in company.
      * @param couponID The unique identifier (ID) of the coupon to be deleted.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws NoSuchCouponException If the coupon with the specified ID does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void deleteCoupon(int couponID) throws Exception {
-        Coupon copy = couponsDBDAO.getOneCoupon(couponID);
-        if (copy == null)
-            throw new NoSuchCouponException(couponID);
-        else {
-            couponsDBDAO.deletePurchaseByCouponID(couponID);
-            couponsDBDAO.deleteCoupon(couponID);
+    public void deleteCoupon(SessionContext session, int couponID) throws Exception {
+        requireClient(session, ClientType.COMPANY);
+        try {
+            Coupon copy = couponsDBDAO.getOneCoupon(couponID);
+            if (copy == null)
+                throw new NoSuchCouponException(couponID);
+            else {
+                if (FlashSaleStockEngine.ENABLED)
+                    FlashSaleStockEngine.getInstance().release(couponID);
+                couponsDBDAO.deletePurchaseByCouponID(couponID);
+                couponsDBDAO.deleteCoupon(couponID);
+                if (CouponLifecycle.ENABLED)
+                    CouponLifecycle.getInstance().remove(couponID);
+            }
+        } finally {
+            ConnectionRouter.unbind();
         }
     }
 
@@ -114,11 +248,18 @@ public class CompanyFacade extends ClientFacade{
      *
      * This method retrieves and returns a list of coupons that are associated with the company currently logged in.
      *
+     * @param session The session of the logged-in company.
      * @return An ArrayList containing coupons associated with the current company.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCompanyCoupons() throws SQLException {
-        return couponsDBDAO.getCompanyCouponsByID(companyID);
+    public ArrayList<Coupon> getCompanyCoupons(SessionContext session) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return couponsDBDAO.getCompanyCouponsByID(companyID);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -127,12 +268,19 @@ public class CompanyFacade extends ClientFacade{
      * This method retrieves and returns a list of coupons that are associated with the company currently logged in
      * and belong to the specified category.
      *
+     * @param session The session of the logged-in company.
      * @param category The category of coupons to retrieve.
      * @return An ArrayList containing coupons associated with the current company and the specified category.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCompanyCoupons(Category category) throws SQLException {
-        return couponsDBDAO.getCompanyCouponsByCategory(companyID, category);
+    public ArrayList<Coupon> getCompanyCoupons(SessionContext session, Category category) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return couponsDBDAO.getCompanyCouponsByCategory(companyID, category);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -141,23 +289,90 @@ public class CompanyFacade extends ClientFacade{
      * This method retrieves and returns a list of coupons that are associated with the company currently logged in
      * and have a price up to the specified maximum price.
      *
+     * @param session The session of the logged-in company.
      * @param maxPrice The maximum price for the coupons to retrieve.
      * @return An ArrayList containing coupons associated with the current company up to the specified maximum price.
+     * @throws InvalidCredentialsException If the session is not a current company session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCompanyCoupons(SessionContext session, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return couponsDBDAO.getCompanyCouponsUpToPrice(companyID, maxPrice);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company in a specific category, up to a specified
+     * maximum price.
+     *
+     * @param session The session of the logged-in company.
+     * @param category The category of coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return An ArrayList containing coupons of the current company matching both conditions.
+     * @throws InvalidCredentialsException If the session is not a current company session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCompanyCoupons(SessionContext session, Category category, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return couponsDBDAO.findCoupons(new CouponColumns.Query().company(companyID).category(category).upToPrice(maxPrice));
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the current company within a price range.
+     *
+     * @param session The session of the logged-in company.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return An ArrayList containing coupons of the current company priced from minPrice to maxPrice.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCompanyCoupons(double maxPrice) throws SQLException {
-        return couponsDBDAO.getCompanyCouponsUpToPrice(companyID, maxPrice);
+    public ArrayList<Coupon> getCompanyCoupons(SessionContext session, double minPrice, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return couponsDBDAO.getCompanyCouponsInPriceRange(companyID, minPrice, maxPrice);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
      * Retrieves details of the current company from the system.
      *
      * This method retrieves and returns detailed information about the company that is currently logged in.
+     * The company's coupons are loaded only if getCoupons is called on it.
      *
+     * @param session The session of the logged-in company.
      * @return The Company object representing the details of the current company.
+     * @throws InvalidCredentialsException If the session is not a current company session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public Company getCompanyDetails() throws SQLException {
-        return companiesDBDAO.getOneCompany(companyID);
+    public Company getCompanyDetails(SessionContext session) throws SQLException, InvalidCredentialsException {
+        return getCompanyDetails(session, false);
+    }
+
+    /**
+     * Retrieves details of the current company, choosing whether its coupons are fetched along with it.
+     *
+     * @param session The session of the logged-in company.
+     * @param withCoupons True to fetch the company's coupons in the same round.
+     * @return The Company object representing the details of the current company.
+     * @throws InvalidCredentialsException If the session is not a current company session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Company getCompanyDetails(SessionContext session, boolean withCoupons) throws SQLException, InvalidCredentialsException {
+        int companyID = requireClient(session, ClientType.COMPANY);
+        try {
+            return companiesDBDAO.getOneCompany(companyID, withCoupons);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 }
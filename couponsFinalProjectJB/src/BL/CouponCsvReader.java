@@ -0,0 +1,76 @@
+package BL;
+
+import javaBeans.Category;
+import javaBeans.Coupon;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.sql.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * streams coupons out of a CSV catalog one line at a time, so a file of any size can be imported.
+ *
+ * expected columns: category, title, description, start date, end date, amount, price, image. dates are yyyy-mm-dd.
+ * a header line starting with "category" is skipped. fields can't contain commas.
+ * a malformed line makes next() throw an IllegalArgumentException naming the line; iteration can carry on after it.
+ */
+public class CouponCsvReader implements Iterator<Coupon>, Closeable {
+    private final BufferedReader reader;
+    private final int companyID;
+    private String nextLine;
+    private int lineNumber;
+
+    public CouponCsvReader(Reader reader, int companyID) {
+        this.reader = new BufferedReader(reader);
+        this.companyID = companyID;
+        advance();
+        if (nextLine != null && nextLine.toLowerCase().startsWith("category"))
+            advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    @Override
+    public Coupon next() {
+        if (nextLine == null)
+            throw new NoSuchElementException();
+        String line = nextLine;
+        int number = lineNumber;
+        advance();
+
+        String[] fields = line.split(",", -1);
+        if (fields.length != 8)
+            throw new IllegalArgumentException("line " + number + ": expected 8 fields but found " + fields.length);
+        try {
+            return new Coupon(companyID, Category.valueOf(fields[0].trim().toUpperCase()), fields[1].trim(),
+                    fields[2].trim(), Date.valueOf(fields[3].trim()), Date.valueOf(fields[4].trim()),
+                    Integer.parseInt(fields[5].trim()), Double.parseDouble(fields[6].trim()), fields[7].trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("line " + number + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void advance() {
+        try {
+            do {
+                nextLine = reader.readLine();
+                lineNumber++;
+            } while (nextLine != null && nextLine.isBlank());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
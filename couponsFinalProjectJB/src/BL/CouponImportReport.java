@@ -0,0 +1,55 @@
+package BL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the running and final outcome of a bulk coupon import.
+ * only the first MAX_REJECTIONS rejection reasons are kept, so memory stays bounded however bad the file is.
+ */
+public class CouponImportReport {
+    public static final int MAX_REJECTIONS = 100;
+
+    private long processed;
+    private long imported;
+    private long rejected;
+    private final List<String> rejections = new ArrayList<>();
+
+    void addImported(int count) {
+        processed += count;
+        imported += count;
+    }
+
+    void addRejected(String reason) {
+        processed++;
+        rejected++;
+        if (rejections.size() < MAX_REJECTIONS)
+            rejections.add(reason);
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public List<String> getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public String toString() {
+        return "CouponImportReport{" +
+                "\nprocessed=" + processed +
+                "\nimported=" + imported +
+                "\nrejected=" + rejected +
+                "\nrejections=" + rejections +
+                '}';
+    }
+}
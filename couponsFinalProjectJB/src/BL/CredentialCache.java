@@ -0,0 +1,160 @@
+package BL;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a short-lived cache of credential checks, so a client logging in again and again doesn't hit the database each time.
+ *
+ * both outcomes are cached: the client ID of a successful check for POSITIVE_TTL, and a failed check for the shorter
+ * NEGATIVE_TTL. entries are keyed by the client type, the email and a salted SHA-256 of the password, so no plaintext
+ * password is kept in memory; the salt is random per process. expired entries are dropped by a sweep that runs at most
+ * once per SWEEP_INTERVAL, on the thread that wins the race; when the cache is full, new checks are not cached until
+ * a sweep makes room.
+ *
+ * every entry carries a stamp from one of STAMP_STRIPES counters: a successful check the stamp of its account, a failed
+ * one the stamp of its email. changing an account moves the stamps of the account and of its email, and adding one
+ * moves the stamp of its email, so the entries they may have made wrong are never used again and go with the next
+ * sweep; the rest of the cache stays, and neither a change nor a login walks it. a check that raced a change may have
+ * read the old credentials, so it is not cached; every change also moves its client type's change count to tell.
+ */
+class CredentialCache {
+    private static final long POSITIVE_TTL = Long.getLong("coupons.login.cacheTtlMs", 60_000);
+    private static final long NEGATIVE_TTL = Long.getLong("coupons.login.negativeCacheTtlMs", 5_000);
+    private static final int MAX_ENTRIES = Integer.getInteger("coupons.login.cacheSize", 100_000);
+    private static final long SWEEP_INTERVAL = Math.min(NEGATIVE_TTL, 5_000);
+    private static final int FAILED = -1;
+    private static final int STAMP_STRIPES = 4096;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong[] changeCounts = new AtomicLong[ClientType.values().length];
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    private final byte[] salt = new byte[16];
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private record Entry(int clientID, int stampSlot, long stamp, long expiresAt) {
+    }
+
+    /**
+     * checks the credentials against the database
+     */
+    interface Checker {
+        /**
+         * @return the client ID, or -1 if the credentials are wrong
+         */
+        int check(String email, String password) throws SQLException;
+    }
+
+    CredentialCache() {
+        new SecureRandom().nextBytes(salt);
+        for (int i = 0; i < changeCounts.length; i++) {
+            changeCounts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @return the client ID, or -1 if the credentials are wrong
+     */
+    int check(ClientType clientType, String email, String password, Checker checker) throws SQLException {
+        String key = key(clientType, email, password);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expiresAt > now && entry.stamp == stamps.get(entry.stampSlot))
+                return entry.clientID;
+            entries.remove(key, entry);
+        }
+
+        long changeCount = getChangeCount(clientType);
+        int clientID = checker.check(email, password);
+        int stampSlot = clientID == FAILED ? emailSlot(clientType, email) : accountSlot(clientType, clientID);
+        // read before the change count, which a change moves first: unless a change raced the check, it is older
+        long stamp = stamps.get(stampSlot);
+        sweepIfDue(now);
+        if (getChangeCount(clientType) == changeCount && entries.size() < MAX_ENTRIES)
+            entries.put(key, new Entry(clientID, stampSlot, stamp, now + (clientID == FAILED ? NEGATIVE_TTL : POSITIVE_TTL)));
+        return clientID;
+    }
+
+    /**
+     * forgets the failed checks of an email, after an account was added with it
+     */
+    void accountAdded(ClientType clientType, String email) {
+        changeCounts[clientType.ordinal()].incrementAndGet();
+        stamps.incrementAndGet(emailSlot(clientType, email));
+    }
+
+    /**
+     * forgets the checks of an account and the failed checks of its email, after the account was changed or removed
+     * @param email the account's email after the change, or null if it was removed
+     */
+    void accountChanged(ClientType clientType, int clientID, String email) {
+        changeCounts[clientType.ordinal()].incrementAndGet();
+        stamps.incrementAndGet(accountSlot(clientType, clientID));
+        if (email != null)
+            stamps.incrementAndGet(emailSlot(clientType, email));
+    }
+
+    /**
+     * @return a number that moves whenever an account of the client type is added, changed or removed
+     */
+    long getChangeCount(ClientType clientType) {
+        return changeCounts[clientType.ordinal()].get();
+    }
+
+    /**
+     * @return a number that moves whenever the account is changed or removed, and sometimes when another one is
+     */
+    long getAccountStamp(ClientType clientType, int clientID) {
+        return stamps.get(accountSlot(clientType, clientID));
+    }
+
+    /**
+     * @return the number of entries, including expired and invalidated ones not swept yet
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * drops expired and invalidated entries, at most once per SWEEP_INTERVAL and on the thread that wins the race
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL))
+            entries.values().removeIf(e -> e.expiresAt <= now || e.stamp != stamps.get(e.stampSlot));
+    }
+
+    private static int accountSlot(ClientType clientType, int clientID) {
+        return slot(31 * clientType.ordinal() + clientID);
+    }
+
+    private static int emailSlot(ClientType clientType, String email) {
+        // the database matches emails ignoring case
+        return slot(31 * clientType.ordinal() + email.toLowerCase(Locale.ROOT).hashCode());
+    }
+
+    private static int slot(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    private String key(ClientType clientType, String email, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return clientType.ordinal() + ":" + email + ":" + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,46 +1,41 @@
 package BL;
 
+import Connections.ConnectionRouter;
+import DAOs.CouponColumns;
+import DAOs.PurchaseIndex;
+import DAOs.PurchaseResult;
 import Exceptions.*;
+import Lifecycle.CouponLifecycle;
+import Lifecycle.CouponState;
+import Stock.FlashSaleStockEngine;
 import javaBeans.Category;
 import javaBeans.Coupon;
 import javaBeans.Customer;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class CustomerFacade extends ClientFacade{
-    private int customerID;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CustomerFacade instance;
 
-    public CustomerFacade() throws SQLException {
+    private CustomerFacade() throws SQLException {
     }
 
-    /**
-     * Gets the unique identifier (ID) of the customer associated with this object.
-     *
-     * @return The unique identifier (ID) of the customer.
-     */
-    public int getCustomerID() {
-        return customerID;
-    }
-
-    /**
-     * Logs in a customer with the specified email and password.
-     *
-     * This method attempts to authenticate a customer by their email and password.
-     * If successful, it sets the customer ID associated with the customer.
-     *
-     * @param email    The email address of the customer.
-     * @param password The password of the customer.
-     * @return True if the login is successful; false otherwise.
-     * @throws SQLException If there is an issue with the database operation.
-     */
-    @Override
-    public boolean login(String email, String password) throws SQLException {
-        customerID = customerDBDAO.getID(email, password);
-        if (customerID == -1)
-            return false;
-        else
-            return true;
+    public static CustomerFacade getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CustomerFacade();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
     }
 
     /**
@@ -50,26 +45,96 @@ public class CustomerFacade extends ClientFacade{
      * - Checks if the customer has already purchased the coupon and throws an AlreadyPurchasedException if true.
      * - Checks if the coupon is still in stock and throws an OutOfStockException if not.
      * - Checks if the coupon's expiration date has passed and throws a DateExpiredException if true.
+     * - Checks if the coupon's start date has come and throws a CouponNotStartedException if not.
      *
-     * If all checks pass, the method adds the purchase to the database, updates the coupon's amount, and records the purchase.
+     * The checks and the purchase run as one transaction on one connection: the coupon's amount is decremented in the
+     * database only if all checks pass, and the purchase is recorded together with it, so concurrent buyers can't
+     * oversell the coupon. When flash sales are enabled and the coupon is hot, the FlashSaleStockEngine admits the
+     * purchase in memory instead. A repeat purchase is refused by the in-memory PurchaseIndex before any of that, unless
+     * the CouponLifecycle has the coupon outside its dates; the lookup is skipped then, and the database decides.
      *
+     * @param session The session of the logged-in customer.
      * @param coupon The Coupon object to be purchased.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
      * @throws AlreadyPurchasedException If the customer has already purchased the coupon.
      * @throws OutOfStockException If the coupon is out of stock.
      * @throws DateExpiredException If the coupon's expiration date has passed.
+     * @throws CouponNotStartedException If the coupon's start date has not come yet.
+     * @throws NoSuchCouponException If the coupon does not exist.
      * @throws Exception If there is an issue with the database operation.
      */
-    public void purchaseCoupon(Coupon coupon) throws Exception {
-        if (customerDBDAO.alreadyPurchased(customerID, coupon.getId()))
-            throw new AlreadyPurchasedException();
-        else if (!couponsDBDAO.stillInStock(coupon.getId()))
-            throw new OutOfStockException();
-        else if (couponsDBDAO.dateExpired(coupon))
-            throw new DateExpiredException();
-        else {
-            couponsDBDAO.addCouponPurchase(customerID, coupon.getId());
-            coupon.setAmount(coupon.getAmount()-1);
-            couponsDBDAO.updateCoupon(coupon);
+    public void purchaseCoupon(SessionContext session, Coupon coupon) throws Exception {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            boolean outOfDates = false;
+            if (CouponLifecycle.ENABLED) {
+                CouponState state = CouponLifecycle.getInstance().getState(coupon.getId());
+                outOfDates = state == CouponState.NOT_STARTED || state == CouponState.EXPIRED;
+            }
+            if (!outOfDates && PurchaseIndex.ENABLED && customerDBDAO.alreadyPurchased(customerID, coupon.getId()))
+                throw new AlreadyPurchasedException();
+
+            PurchaseResult result;
+            if (FlashSaleStockEngine.ENABLED)
+                result = FlashSaleStockEngine.getInstance().purchase(customerID, List.of(coupon.getId()),
+                        couponIDs -> List.of(couponsDBDAO.purchaseCoupon(customerID, couponIDs.get(0)))).get(0);
+            else
+                result = couponsDBDAO.purchaseCoupon(customerID, coupon.getId());
+
+            switch (result) {
+                case ALREADY_PURCHASED:
+                    throw new AlreadyPurchasedException();
+                case OUT_OF_STOCK:
+                    throw new OutOfStockException();
+                case EXPIRED:
+                    throw new DateExpiredException();
+                case NOT_STARTED:
+                    throw new CouponNotStartedException();
+                case NO_SUCH_COUPON:
+                    throw new NoSuchCouponException(coupon.getId());
+                default:
+                    coupon.setAmount(coupon.getAmount()-1);
+            }
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Purchases a cart of coupons for the logged-in customer.
+     *
+     * The whole cart is validated and bought in one transaction with set-based queries and batched writes, instead of
+     * one purchaseCoupon call per coupon. Items that can't be bought don't fail the cart; their reason is reported.
+     * When flash sales are enabled, hot coupons in the cart are admitted by the FlashSaleStockEngine.
+     *
+     * @param session The session of the logged-in customer.
+     * @param coupons The coupons in the cart.
+     * @return The result of each item, in cart order.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws Exception If there is an issue with the database operation.
+     */
+    public ArrayList<PurchaseResult> purchaseCoupons(SessionContext session, List<Coupon> coupons) throws Exception {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            List<Integer> couponIDs = new ArrayList<>();
+            for (Coupon coupon: coupons) {
+                couponIDs.add(coupon.getId());
+            }
+
+            ArrayList<PurchaseResult> results;
+            if (FlashSaleStockEngine.ENABLED)
+                results = new ArrayList<>(FlashSaleStockEngine.getInstance().purchase(customerID, couponIDs,
+                        ids -> couponsDBDAO.purchaseCoupons(customerID, ids)));
+            else
+                results = couponsDBDAO.purchaseCoupons(customerID, couponIDs);
+
+            for (int i = 0; i < coupons.size(); i++) {
+                if (results.get(i) == PurchaseResult.SUCCESS)
+                    coupons.get(i).setAmount(coupons.get(i).getAmount()-1);
+            }
+            return results;
+        } finally {
+            ConnectionRouter.unbind();
         }
     }
 
@@ -78,11 +143,58 @@ public class CustomerFacade extends ClientFacade{
      *
      * This method retrieves and returns a list of coupons that are associated with the customer currently logged in.
      *
+     * @param session The session of the logged-in customer.
      * @return An ArrayList containing coupons associated with the logged-in customer.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCustomerCoupons() throws SQLException {
-        return couponsDBDAO.getCustomerCouponsByID(customerID);
+    public ArrayList<Coupon> getCustomerCoupons(SessionContext session) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCustomerCouponsByID(customerID);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Streams the coupons associated with the logged-in customer without loading them into memory at once.
+     *
+     * The stream holds a database connection until it is closed, so it must be used in a try-with-resources block.
+     *
+     * @param session The session of the logged-in customer.
+     * @return A stream over the logged-in customer's coupons, in ID order.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Coupon> streamCustomerCoupons(SessionContext session) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.streamCustomerCoupons(customerID);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves one page of the coupons associated with the logged-in customer.
+     *
+     * Pass 0 for the first page, then the ID of the last coupon of each page to get the next one.
+     *
+     * @param session The session of the logged-in customer.
+     * @param afterID The ID of the last coupon on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit coupons, in ID order; empty when there are no more.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCustomerCouponsPage(SessionContext session, int afterID, int limit) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCustomerCouponsPage(customerID, afterID, limit);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -91,12 +203,19 @@ public class CustomerFacade extends ClientFacade{
      * This method retrieves and returns a list of coupons that are associated with the customer currently logged in
      * and belong to the specified category.
      *
+     * @param session The session of the logged-in customer.
      * @param category The category of coupons to retrieve.
      * @return An ArrayList containing coupons associated with the logged-in customer and the specified category.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCustomerCoupons(Category category) throws SQLException {
-        return couponsDBDAO.getCustomerCouponsByCategory(customerID, category);
+    public ArrayList<Coupon> getCustomerCoupons(SessionContext session, Category category) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCustomerCouponsByCategory(customerID, category);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
@@ -105,23 +224,150 @@ public class CustomerFacade extends ClientFacade{
      * This method retrieves and returns a list of coupons that are associated with the customer currently logged in
      * and have a price up to the specified maximum price.
      *
+     * @param session The session of the logged-in customer.
      * @param maxPrice The maximum price for the coupons to retrieve.
      * @return An ArrayList containing coupons associated with the logged-in customer up to the specified maximum price.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCustomerCoupons(SessionContext session, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCustomerCouponsUpToPrice(customerID, maxPrice);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer in a specific category, up to a specified
+     * maximum price.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return An ArrayList containing coupons of the logged-in customer matching both conditions.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public ArrayList<Coupon> getCustomerCoupons(double maxPrice) throws SQLException {
-        return couponsDBDAO.getCustomerCouponsUpToPrice(customerID, maxPrice);
+    public ArrayList<Coupon> getCustomerCoupons(SessionContext session, Category category, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.findCoupons(new CouponColumns.Query().customer(customerID).category(category).upToPrice(maxPrice));
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves a list of coupons associated with the logged-in customer within a price range.
+     *
+     * @param session The session of the logged-in customer.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return An ArrayList containing coupons of the logged-in customer priced from minPrice to maxPrice.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCustomerCoupons(SessionContext session, double minPrice, double maxPrice) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCustomerCouponsInPriceRange(customerID, minPrice, maxPrice);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves the coupons of the whole catalog within a price range, for browsing the store.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param minPrice The minimum price for the coupons to retrieve.
+     * @param maxPrice The maximum price for the coupons to retrieve.
+     * @return An ArrayList containing the coupons priced from minPrice to maxPrice.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCouponsInPriceRange(SessionContext session, Category category, double minPrice, double maxPrice) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCouponsInPriceRange(category, minPrice, maxPrice);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Retrieves the cheapest coupons of the whole catalog, for browsing the store.
+     *
+     * @param session The session of the logged-in customer.
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param limit    The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit coupons, cheapest first.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCheapestCoupons(SessionContext session, Category category, int limit) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.getCheapestCoupons(category, limit);
+        } finally {
+            ConnectionRouter.unbind();
+        }
+    }
+
+    /**
+     * Searches the store for coupons whose title or description contains every word of a text.
+     *
+     * Expired coupons are left out, and coupons where the words appear more often, especially in the title, come first.
+     *
+     * @param session The session of the logged-in customer.
+     * @param text  The words to search for.
+     * @param limit The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit matching coupons, best match first.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> searchCoupons(SessionContext session, String text, int limit) throws SQLException, InvalidCredentialsException {
+        requireClient(session, ClientType.CUSTOMER);
+        try {
+            return couponsDBDAO.searchCoupons(text, limit);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 
     /**
      * Retrieves details of the logged-in customer from the system.
      *
      * This method retrieves and returns detailed information about the customer that is currently logged in.
+     * The customer's coupons are loaded only if getCoupons is called on it.
      *
+     * @param session The session of the logged-in customer.
      * @return The Customer object representing the details of the logged-in customer.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
      * @throws SQLException If there is an issue with the database operation.
      */
-    public Customer getCustomerDetails() throws SQLException {
-        return customerDBDAO.getOneCustomer(customerID);
+    public Customer getCustomerDetails(SessionContext session) throws SQLException, InvalidCredentialsException {
+        return getCustomerDetails(session, false);
+    }
+
+    /**
+     * Retrieves details of the logged-in customer, choosing whether their coupons are fetched along with them.
+     *
+     * @param session The session of the logged-in customer.
+     * @param withCoupons True to fetch the customer's coupons in the same round.
+     * @return The Customer object representing the details of the logged-in customer.
+     * @throws InvalidCredentialsException If the session is not a current customer session.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Customer getCustomerDetails(SessionContext session, boolean withCoupons) throws SQLException, InvalidCredentialsException {
+        int customerID = requireClient(session, ClientType.CUSTOMER);
+        try {
+            return customerDBDAO.getOneCustomer(customerID, withCoupons);
+        } finally {
+            ConnectionRouter.unbind();
+        }
     }
 }
@@ -0,0 +1,191 @@
+package BL;
+
+import Connections.ConnectionPool;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * runs blocking facade calls for the async facades and hands back CompletableFutures.
+ *
+ * calls run on a fixed pool of daemon threads, by default as many as the primary pool has connections, so at most that
+ * many run at once and the rest wait their turn in the executor's queue instead of queueing on the connection pool.
+ *
+ * a future fails with the exception the blocking call threw, e.g. an OutOfStockException, so get() reports it as the
+ * cause of its ExecutionException. completing a future from the outside, by cancel() or a deadline from orTimeout(),
+ * interrupts the call if it is still running or drops it if it hasn't started.
+ *
+ * each call is given its own deadline, counted from when it starts running, not from when it was queued. reads use
+ * DEFAULT_TIMEOUT (coupons.async.timeoutMs); writes are passed NO_TIMEOUT, since an import or a purchase cut off half
+ * way is worse than a slow one. a caller can still put its own deadline on any future with orTimeout().
+ */
+public class FacadeExecutor {
+    public static final long DEFAULT_TIMEOUT = Long.getLong("coupons.async.timeoutMs", 30_000);
+    public static final long NO_TIMEOUT = 0;
+
+    private final int maxConcurrency;
+    private final ThreadPoolExecutor executor;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile FacadeExecutor instance;
+
+    /**
+     * a facade call returning a value
+     */
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * a facade call returning nothing
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private FacadeExecutor() throws SQLException {
+        Integer configured = Integer.getInteger("coupons.async.maxConcurrency");
+        maxConcurrency = configured != null ? configured : ConnectionPool.getInstance().getMaxConnections();
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "coupons-facade-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static FacadeExecutor getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new FacadeExecutor();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * runs a call with the default deadline
+     * @param call the blocking call
+     * @return a future of the call's result
+     */
+    public <T> CompletableFuture<T> call(Call<T> call) {
+        return call(call, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param call the blocking call
+     * @param timeoutMs how long the call may run once started before its future fails with a TimeoutException, or
+     *                  NO_TIMEOUT
+     * @return a future of the call's result
+     */
+    public <T> CompletableFuture<T> call(Call<T> call, long timeoutMs) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Task<T> task = new Task<>(call, future, timeoutMs);
+        future.whenComplete((result, e) -> task.interrupt());
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * runs a call with the default deadline
+     * @param action the blocking call
+     * @return a future that completes when the call is done
+     */
+    public CompletableFuture<Void> run(Action action) {
+        return run(action, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param action the blocking call
+     * @param timeoutMs how long the call may run once started, or NO_TIMEOUT
+     * @return a future that completes when the call is done
+     */
+    public CompletableFuture<Void> run(Action action, long timeoutMs) {
+        return call(() -> {
+            action.run();
+            return null;
+        }, timeoutMs);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the number of calls running now
+     */
+    public int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of calls waiting for a turn, approximately
+     */
+    public int getWaiting() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * one submitted call; knows the thread running it, so completing its future from the outside can interrupt it
+     */
+    private class Task<T> implements Runnable {
+        private final Call<T> call;
+        private final CompletableFuture<T> future;
+        private final long timeoutMs;
+        private Thread runner;
+
+        private Task(Call<T> call, CompletableFuture<T> future, long timeoutMs) {
+            this.call = call;
+            this.future = future;
+            this.timeoutMs = timeoutMs;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                // cancelled or past its deadline before it got a thread
+                if (future.isDone())
+                    return;
+                runner = Thread.currentThread();
+            }
+            if (timeoutMs > 0)
+                future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = call.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            // stop taking interrupts before completing the future, which runs the interrupt hook on this thread
+            synchronized (this) {
+                runner = null;
+            }
+            Thread.interrupted();
+            if (failure != null)
+                future.completeExceptionally(failure);
+            else
+                future.complete(result);
+        }
+
+        private synchronized void interrupt() {
+            if (runner != null)
+                runner.interrupt();
+        }
+    }
+}
@@ -1,57 +1,222 @@
 package BL;
 
-import Connections.ConnectionPool;
 import Exceptions.InvalidCredentialsException;
 
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * a class used to manage login and return the relevant facade
+ * a class used to manage login and return the session context of the logged-in client.
+ *
+ * the facades are shared singletons, so a login only creates a small SessionContext that is passed to every facade
+ * call. a client can also start a session: it logs in once and gets an opaque token back, and later calls resolve the
+ * token to its session context with one hash lookup instead of logging in again. sessions expire after
+ * coupons.session.idleTimeoutMs of not being used, and are dropped when their account is changed or deleted; a session
+ * context of such an account is no longer accepted by the facades either. credential checks go through a short-lived
+ * CredentialCache, so repeated logins skip the database.
  */
 public class LoginManger {
-    private static LoginManger instance;
+    private static final long SESSION_IDLE_TIMEOUT = Long.getLong("coupons.session.idleTimeoutMs", 30 * 60_000);
+    private static final long SWEEP_INTERVAL = 60_000;
+    private static final int TOKEN_BYTES = 32;
+    private static final int ADMIN_ID = 0;
+    private static final int MAX_LOGIN_ATTEMPTS = 3;
+
+    private final SharedDAOs daos;
+    private final CredentialCache credentialCache = new CredentialCache();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong nextSweep = new AtomicLong();
 
-    private LoginManger() {
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile LoginManger instance;
+
+    private LoginManger() throws SQLException {
+        daos = SharedDAOs.getInstance();
     }
 
-    public static LoginManger getInstance() {
-        if (instance == null)
-            instance = new LoginManger();
+    public static LoginManger getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new LoginManger();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
         return instance;
     }
 
     /**
      * Logs in a user with the specified email, password, and client type.
      *
-     * This method allows a user to log in based on their email, password, and client type. Depending on the client type,
-     * it creates and returns an appropriate facade object (AdminFacade, CompanyFacade, or CustomerFacade) if the login is successful.
-     * If the login fails, it throws an InvalidCredentialsException.
+     * This method allows a user to log in based on their email, password, and client type. If the login is successful,
+     * it returns the session context to pass to the facade of the client type (AdminFacade, CompanyFacade, or
+     * CustomerFacade). If the login fails, it throws an InvalidCredentialsException.
+     *
+     * @param email      The email address of the user.
+     * @param password   The password of the user.
+     * @param clientType The type of client (e.g., Administrator, Company, Customer).
+     * @return A SessionContext representing the logged-in user.
+     * @throws InvalidCredentialsException If the login credentials are invalid.
+     * @throws Exception                  If there is an issue with the login process.
+     */
+    public SessionContext login(String email, String password, ClientType clientType) throws Exception {
+        if (email == null || password == null || clientType == null)
+            throw new InvalidCredentialsException();
+
+        long changeCount = credentialCache.getChangeCount(clientType);
+        SessionContext session = new SessionContext(clientType, check(email, password, clientType));
+        if (credentialCache.getChangeCount(clientType) == changeCount)
+            return session;
+
+        // an account changed during the check, and the context may carry a generation newer than the credentials read.
+        // check again against the database, now watching only the account that was found
+        for (int attempt = 1; attempt < MAX_LOGIN_ATTEMPTS; attempt++) {
+            int clientID = session.getClientID();
+            long stamp = credentialCache.getAccountStamp(clientType, clientID);
+            session = new SessionContext(clientType, checkUncached(email, password, clientType));
+            if (session.getClientID() == clientID && credentialCache.getAccountStamp(clientType, clientID) == stamp)
+                return session;
+        }
+        // the account keeps changing under the login
+        throw new InvalidCredentialsException();
+    }
+
+    /**
+     * Logs in a user and starts a session for them.
+     *
+     * The returned token stands for the login until the session is ended or has been idle for the session timeout;
+     * pass it to resolve to get the user's session context back.
      *
      * @param email      The email address of the user.
      * @param password   The password of the user.
      * @param clientType The type of client (e.g., Administrator, Company, Customer).
-     * @return A ClientFacade object representing the logged-in user.
+     * @return An opaque session token.
      * @throws InvalidCredentialsException If the login credentials are invalid.
      * @throws Exception                  If there is an issue with the login process.
      */
-    public ClientFacade login(String email, String password, ClientType clientType) throws Exception {
-        if (clientType.equals(ClientType.ADMINISTRATOR)) {
-            AdminFacade facade = new AdminFacade();
-            if (facade.login(email, password))
-                return facade;
-            else
-                throw new InvalidCredentialsException();
-        } else if (clientType.equals(ClientType.COMPANY)) {
-            CompanyFacade facade = new CompanyFacade();
-            if (facade.login(email, password))
-                return facade;
-            else
-                throw new InvalidCredentialsException();
-        } else if (clientType.equals(ClientType.CUSTOMER)) {
-            CustomerFacade facade = new CustomerFacade();
-            if (facade.login(email, password))
-                return facade;
-            else
-                throw new InvalidCredentialsException();
-        } else
+    public String startSession(String email, String password, ClientType clientType) throws Exception {
+        Session session = new Session(login(email, password, clientType));
+
+        byte[] bytes = new byte[TOKEN_BYTES];
+        String token;
+        do {
+            random.nextBytes(bytes);
+            token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        } while (sessions.putIfAbsent(token, session) != null);
+
+        sweepIfDue();
+        return token;
+    }
+
+    /**
+     * Resolves a session token to the session context of the logged-in user.
+     *
+     * @param token A token returned by startSession.
+     * @return The SessionContext of the session.
+     * @throws InvalidCredentialsException If the token is unknown, ended or expired.
+     */
+    public SessionContext resolve(String token) throws InvalidCredentialsException {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null)
+            throw new InvalidCredentialsException();
+
+        long now = System.currentTimeMillis();
+        if (session.isExpired(now, SESSION_IDLE_TIMEOUT)) {
+            sessions.remove(token, session);
+            throw new InvalidCredentialsException();
+        }
+        session.touch(now);
+        return session.getContext();
+    }
+
+    /**
+     * Ends a session; its token can't be resolved anymore.
+     *
+     * @param token A token returned by startSession.
+     */
+    public void endSession(String token) {
+        if (token != null)
+            sessions.remove(token);
+    }
+
+    /**
+     * @return The number of sessions in the table, including expired ones not swept yet.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The number of cached credential checks.
+     */
+    public int getCachedCredentialCount() {
+        return credentialCache.size();
+    }
+
+    /**
+     * called after an account was added, so an earlier failed login with its email isn't remembered
+     */
+    void accountAdded(ClientType clientType, String email) {
+        credentialCache.accountAdded(clientType, email);
+    }
+
+    /**
+     * called after an account was changed or deleted; its cached logins and its sessions are dropped, and its session
+     * contexts go stale
+     * @param email the account's email after the change, or null if it was deleted
+     */
+    void accountChanged(ClientType clientType, int clientID, String email) {
+        // the stamps move before the generation, so a login racing the change either sees both or retries
+        credentialCache.accountChanged(clientType, clientID, email);
+        SessionContext.accountChanged(clientType, clientID);
+        sessions.values().removeIf(session -> session.getContext().getClientType() == clientType
+                && session.getContext().getClientID() == clientID);
+    }
+
+    /**
+     * @return the client ID
+     * @throws InvalidCredentialsException if the credentials are wrong
+     */
+    private int check(String email, String password, ClientType clientType) throws Exception {
+        return requireFound(credentialCache.check(clientType, email, password, checker(clientType)));
+    }
+
+    /**
+     * like check, but always asks the database
+     */
+    private int checkUncached(String email, String password, ClientType clientType) throws Exception {
+        return requireFound(checker(clientType).check(email, password));
+    }
+
+    private CredentialCache.Checker checker(ClientType clientType) throws SQLException {
+        if (clientType.equals(ClientType.ADMINISTRATOR))
+            return (e, p) -> AdminFacade.checkCredentials(e, p) ? ADMIN_ID : -1;
+        else if (clientType.equals(ClientType.COMPANY))
+            return daos.getCompaniesDBDAO()::getID;
+        else
+            return daos.getCustomerDBDAO()::getID;
+    }
+
+    private static int requireFound(int clientID) throws InvalidCredentialsException {
+        if (clientID == -1)
             throw new InvalidCredentialsException();
+        return clientID;
+    }
+
+    /**
+     * drops expired sessions, at most once per SWEEP_INTERVAL and on the thread that wins the race
+     */
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL))
+            sessions.values().removeIf(session -> session.isExpired(now, SESSION_IDLE_TIMEOUT));
     }
 }
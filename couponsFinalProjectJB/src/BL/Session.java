@@ -0,0 +1,31 @@
+package BL;
+
+/**
+ * a logged-in client, as resolved from its session token.
+ *
+ * the session context is created once at login and handed back on every resolve. a session expires once it has been
+ * idle for the session timeout; resolving it pushes the expiry forward.
+ */
+class Session {
+    private final SessionContext context;
+    private volatile long lastAccess;
+
+    Session(SessionContext context) {
+        this.context = context;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    SessionContext getContext() {
+        return context;
+    }
+
+    boolean isExpired(long now, long idleTimeout) {
+        return now - lastAccess > idleTimeout;
+    }
+
+    void touch(long now) {
+        // skip the write while it would barely move the expiry, so hot sessions don't bounce a cache line around
+        if (now - lastAccess > 1000)
+            lastAccess = now;
+    }
+}
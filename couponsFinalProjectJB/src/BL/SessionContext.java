@@ -0,0 +1,72 @@
+package BL;
+
+import Connections.RecentWrites;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the logged-in client a facade call is made for.
+ *
+ * only LoginManger creates a session context, after checking the client's credentials, so holding one stands for a
+ * successful login. it is small enough to pass along with every call. the client's identity never changes; the only
+ * state it carries is when the client last wrote, so its reads see its own writes whichever thread serves them.
+ *
+ * every account has a generation, moved by accountChanged when the account is changed or deleted. a session context
+ * remembers the generation of its login, and is current only while the account still has it; the facades reject a
+ * context that is not current, so the client has to log in again.
+ */
+public final class SessionContext {
+    private static final ConcurrentHashMap<Long, Long> GENERATIONS = new ConcurrentHashMap<>();
+
+    private final ClientType clientType;
+    private final int clientID;
+    private final long generation;
+    private final RecentWrites recentWrites = new RecentWrites();
+
+    SessionContext(ClientType clientType, int clientID) {
+        this.clientType = clientType;
+        this.clientID = clientID;
+        this.generation = GENERATIONS.getOrDefault(account(clientType, clientID), 0L);
+    }
+
+    /**
+     * makes every session context of the account stale
+     */
+    static void accountChanged(ClientType clientType, int clientID) {
+        GENERATIONS.merge(account(clientType, clientID), 1L, Long::sum);
+    }
+
+    /**
+     * @return false once the account was changed or deleted after the login
+     */
+    boolean isCurrent() {
+        return GENERATIONS.getOrDefault(account(clientType, clientID), 0L) == generation;
+    }
+
+    public ClientType getClientType() {
+        return clientType;
+    }
+
+    /**
+     * @return the ID of the company or customer; 0 for the administrator
+     */
+    public int getClientID() {
+        return clientID;
+    }
+
+    RecentWrites getRecentWrites() {
+        return recentWrites;
+    }
+
+    private static long account(ClientType clientType, int clientID) {
+        return (long) clientType.ordinal() << 32 | (clientID & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return "SessionContext{" +
+                "clientType=" + clientType +
+                ", clientID=" + clientID +
+                '}';
+    }
+}
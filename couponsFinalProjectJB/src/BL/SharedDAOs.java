@@ -0,0 +1,52 @@
+package BL;
+
+import DAOs.CompaniesDBDAO;
+import DAOs.CouponsDBDAO;
+import DAOs.CustomerDBDAO;
+
+import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * one instance of each DAO for the whole process; the DAOs hold nothing but the connection router, so they are safe
+ * to share between threads
+ */
+class SharedDAOs {
+    private final CompaniesDBDAO companiesDBDAO;
+    private final CouponsDBDAO couponsDBDAO;
+    private final CustomerDBDAO customerDBDAO;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile SharedDAOs instance;
+
+    private SharedDAOs() throws SQLException {
+        companiesDBDAO = new CompaniesDBDAO();
+        couponsDBDAO = new CouponsDBDAO();
+        customerDBDAO = new CustomerDBDAO();
+    }
+
+    static SharedDAOs getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new SharedDAOs();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    CompaniesDBDAO getCompaniesDBDAO() {
+        return companiesDBDAO;
+    }
+
+    CouponsDBDAO getCouponsDBDAO() {
+        return couponsDBDAO;
+    }
+
+    CustomerDBDAO getCustomerDBDAO() {
+        return customerDBDAO;
+    }
+}
@@ -0,0 +1,153 @@
+package CleanupThread;
+
+import DAOs.CompaniesDBDAO;
+import DAOs.CouponsDBDAO;
+import DAOs.CustomerDBDAO;
+import Lifecycle.CouponLifecycle;
+import Stock.FlashSaleStockEngine;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.Thread.sleep;
+
+/**
+ * deletes companies and customers together with everything that hangs off them.
+ *
+ * the default mode is one transaction of set-based deletes, so a failure leaves nothing half-deleted. for tenants too
+ * large for one transaction, the chunked mode runs in the background and removes CHUNK_SIZE rows per transaction with
+ * a pause in between; the parent row goes in the same transaction as the last chunk.
+ */
+public class CascadeDeleter {
+    private static final int CHUNK_SIZE = Integer.getInteger("coupons.cascade.chunkSize", 1000);
+    private static final long CHUNK_PAUSE = Long.getLong("coupons.cascade.chunkPauseMs", 50);
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coupons-cascade-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CompaniesDBDAO companiesDBDAO;
+    private final CouponsDBDAO couponsDBDAO;
+    private final CustomerDBDAO customerDBDAO;
+
+    public CascadeDeleter(CompaniesDBDAO companiesDBDAO, CouponsDBDAO couponsDBDAO, CustomerDBDAO customerDBDAO) {
+        this.companiesDBDAO = companiesDBDAO;
+        this.couponsDBDAO = couponsDBDAO;
+        this.customerDBDAO = customerDBDAO;
+    }
+
+    /**
+     * deletes a company, its coupons and their purchases in one transaction.
+     * hot coupons are released before the transaction. the coupons actually deleted are read inside it, and any of them
+     * made hot in between is discarded afterwards, so no purchase is written against a row that is gone
+     * @param companyID of the company
+     * @throws SQLException in case of sql issues
+     */
+    public void deleteCompany(int companyID) throws SQLException {
+        List<Integer> released = trackedInMemory()
+                ? couponsDBDAO.getCompanyCouponIDs(companyID, Integer.MAX_VALUE) : new ArrayList<>();
+        release(released);
+        List<Integer> deleted = companiesDBDAO.deleteCompanyCascade(companyID);
+        discard(deleted);
+        forget(deleted);
+    }
+
+    /**
+     * deletes a customer and their purchases in one transaction.
+     * their purchases admitted by the flash-sale engine are written first, and any admitted meanwhile are dropped
+     * @param customerID of the customer
+     * @throws SQLException in case of sql issues
+     */
+    public void deleteCustomer(int customerID) throws SQLException {
+        if (FlashSaleStockEngine.ENABLED)
+            FlashSaleStockEngine.getInstance().flush();
+        customerDBDAO.deleteCustomerCascade(customerID);
+        if (FlashSaleStockEngine.ENABLED)
+            FlashSaleStockEngine.getInstance().discardCustomer(customerID);
+    }
+
+    /**
+     * deletes a company in chunks on the background thread
+     * @param companyID of the company
+     * @return completes when the company is gone, or exceptionally with the SQLException that stopped it
+     */
+    public CompletableFuture<Void> deleteCompanyInBackground(int companyID) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                while (true) {
+                    ArrayList<Integer> couponIDs = couponsDBDAO.getCompanyCouponIDs(companyID, CHUNK_SIZE);
+                    if (couponIDs.size() < CHUNK_SIZE) {
+                        deleteCompany(companyID);
+                        return;
+                    }
+                    release(couponIDs);
+                    couponsDBDAO.deleteCouponsWithPurchases(couponIDs);
+                    discard(couponIDs);
+                    forget(couponIDs);
+                    sleep(CHUNK_PAUSE);
+                }
+            } catch (SQLException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        }, BACKGROUND);
+    }
+
+    /**
+     * deletes a customer in chunks on the background thread
+     * @param customerID of the customer
+     * @return completes when the customer is gone, or exceptionally with the SQLException that stopped it
+     */
+    public CompletableFuture<Void> deleteCustomerInBackground(int customerID) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                if (FlashSaleStockEngine.ENABLED)
+                    FlashSaleStockEngine.getInstance().flush();
+                while (couponsDBDAO.deletePurchasesByCustomerID(customerID, CHUNK_SIZE) == CHUNK_SIZE)
+                    sleep(CHUNK_PAUSE);
+                deleteCustomer(customerID);
+            } catch (SQLException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        }, BACKGROUND);
+    }
+
+    private static boolean trackedInMemory() {
+        return FlashSaleStockEngine.ENABLED || CouponLifecycle.ENABLED;
+    }
+
+    /**
+     * hot coupons must be released, writing their pending purchases, before their rows go
+     */
+    private static void release(List<Integer> couponIDs) throws SQLException {
+        if (FlashSaleStockEngine.ENABLED) {
+            for (int couponID: couponIDs) {
+                FlashSaleStockEngine.getInstance().release(couponID);
+            }
+        }
+    }
+
+    /**
+     * coupons made hot again after their release lose their purchases with their rows
+     */
+    private static void discard(List<Integer> couponIDs) throws SQLException {
+        if (FlashSaleStockEngine.ENABLED) {
+            for (int couponID: couponIDs) {
+                FlashSaleStockEngine.getInstance().discard(couponID);
+            }
+        }
+    }
+
+    private static void forget(List<Integer> couponIDs) throws SQLException {
+        if (CouponLifecycle.ENABLED) {
+            for (int couponID: couponIDs) {
+                CouponLifecycle.getInstance().remove(couponID);
+            }
+        }
+    }
+}
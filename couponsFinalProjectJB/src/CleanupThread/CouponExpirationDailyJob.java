@@ -1,17 +1,26 @@
 package CleanupThread;
 
+import Connections.LatencyHistogram;
 import DAOs.CouponsDBDAO;
-import javaBeans.Coupon;
+import Lifecycle.CouponLifecycle;
+import Stock.FlashSaleStockEngine;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static java.lang.Thread.sleep;
 
 public class CouponExpirationDailyJob implements Runnable{
+    private static final Logger LOGGER = Logger.getLogger(CouponExpirationDailyJob.class.getName());
     private CouponsDBDAO couponsDBDAO;
-    private boolean quit = false;
+    private volatile boolean quit = false;
+    private volatile Thread runner;
+    private volatile ExpirationRunMetrics lastRun;
     private final int DELAY = 1000*3600*24;
+    private final int CHUNK_SIZE = Integer.getInteger("coupons.expiration.chunkSize", 500);
+    private final long CHUNK_PAUSE = Long.getLong("coupons.expiration.chunkPauseMs", 100);
 
 
     public CouponExpirationDailyJob() throws Exception {
@@ -19,37 +28,84 @@ public class CouponExpirationDailyJob implements Runnable{
     }
 
     /**
-     * Periodically checks and deletes expired coupons from the system.
+     * Periodically deletes expired coupons from the system.
      *
-     * This method runs in a loop and periodically checks for expired coupons in the system. It retrieves all coupons
-     * from the database, iterates through them, and deletes any coupons that have expired. The deletion process also
-     * includes removing purchase records associated with expired coupons.
-     *
-     * @throws RuntimeException If there is an issue with the database operation or if the thread is interrupted.
+     * Once a day, this method removes every coupon whose end date has passed together with its purchase records.
+     * The deletes are set-based and done in chunks of CHUNK_SIZE coupons, one short transaction per chunk, with a
+     * pause of CHUNK_PAUSE between chunks so the job never holds locks the purchase path is waiting on for long.
+     * A database failure ends the current run only; the job tries again the next day.
      */
     @Override
     public void run() {
+        runner = Thread.currentThread();
         while (!quit) {
+            lastRun = removeExpiredCoupons();
+
             try {
-                ArrayList<Coupon> coupons = couponsDBDAO.getAllCoupons();
+                sleep(DELAY);
+            } catch (InterruptedException ignored) {}
+        }
+    }
 
-                for (Coupon coupon: coupons) {
-                    if (couponsDBDAO.dateExpired(coupon)) {
-                        couponsDBDAO.deletePurchaseByCouponID(coupon.getId());
-                        couponsDBDAO.deleteCoupon(coupon.getId());
+    /**
+     * Runs one expiration pass right away.
+     *
+     * @return The metrics of the pass.
+     */
+    public ExpirationRunMetrics removeExpiredCoupons() {
+        long startedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        LatencyHistogram chunkLatency = new LatencyHistogram();
+        long rowsRemoved = 0;
+        int chunks = 0;
+        String failure = null;
+
+        try {
+            while (!quit) {
+                long chunkStart = System.nanoTime();
+                ArrayList<Integer> couponIDs = couponsDBDAO.getExpiredCouponIDs(CHUNK_SIZE);
+                if (couponIDs.isEmpty())
+                    break;
+                if (FlashSaleStockEngine.ENABLED) {
+                    for (int couponID: couponIDs) {
+                        FlashSaleStockEngine.getInstance().release(couponID);
                     }
                 }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+                rowsRemoved += couponsDBDAO.deleteExpiredCoupons(couponIDs);
+                if (CouponLifecycle.ENABLED) {
+                    for (int couponID: couponIDs) {
+                        CouponLifecycle.getInstance().remove(couponID);
+                    }
+                }
+                chunkLatency.record(System.nanoTime() - chunkStart);
+                chunks++;
+                if (couponIDs.size() < CHUNK_SIZE)
+                    break;
+                sleep(CHUNK_PAUSE);
             }
-
-            try {
-                sleep(DELAY);
-            } catch (InterruptedException ignored) {}
+        } catch (SQLException e) {
+            failure = e.toString();
+            LOGGER.log(Level.WARNING, "coupon expiration run failed after removing " + rowsRemoved + " rows in "
+                    + chunks + " chunks; the rest is removed by the next run", e);
+        } catch (InterruptedException e) {
+            failure = "interrupted";
         }
+
+        return new ExpirationRunMetrics(startedAt, (System.nanoTime() - start) / 1_000_000, rowsRemoved, chunks,
+                chunkLatency.getMeanMicros(), chunkLatency.getMaxMicros(), failure);
+    }
+
+    /**
+     * @return The metrics of the most recent run, or null if the job has not run yet.
+     */
+    public ExpirationRunMetrics getLastRun() {
+        return lastRun;
     }
 
     public void stop() {
         quit = true;
+        Thread thread = runner;
+        if (thread != null)
+            thread.interrupt();
     }
 }
@@ -0,0 +1,75 @@
+package CleanupThread;
+
+/**
+ * what a single run of the expiration job did
+ */
+public class ExpirationRunMetrics {
+    private final long startedAt;
+    private final long durationMillis;
+    private final long rowsRemoved;
+    private final int chunks;
+    private final double chunkLatencyMeanMicros;
+    private final long chunkLatencyMaxMicros;
+    private final String failure;
+
+    ExpirationRunMetrics(long startedAt, long durationMillis, long rowsRemoved, int chunks,
+                         double chunkLatencyMeanMicros, long chunkLatencyMaxMicros, String failure) {
+        this.startedAt = startedAt;
+        this.durationMillis = durationMillis;
+        this.rowsRemoved = rowsRemoved;
+        this.chunks = chunks;
+        this.chunkLatencyMeanMicros = chunkLatencyMeanMicros;
+        this.chunkLatencyMaxMicros = chunkLatencyMaxMicros;
+        this.failure = failure;
+    }
+
+    /**
+     * @return when the run started, in epoch milliseconds
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return coupon and purchase rows removed together
+     */
+    public long getRowsRemoved() {
+        return rowsRemoved;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public double getChunkLatencyMeanMicros() {
+        return chunkLatencyMeanMicros;
+    }
+
+    public long getChunkLatencyMaxMicros() {
+        return chunkLatencyMaxMicros;
+    }
+
+    /**
+     * @return the error that ended the run early, or null if it finished
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpirationRunMetrics{" +
+                "\nstartedAt=" + startedAt +
+                "\ndurationMillis=" + durationMillis +
+                "\nrowsRemoved=" + rowsRemoved +
+                "\nchunks=" + chunks +
+                "\nchunkLatencyMeanMicros=" + chunkLatencyMeanMicros +
+                "\nchunkLatencyMaxMicros=" + chunkLatencyMaxMicros +
+                "\nfailure=" + failure +
+                '}';
+    }
+}
@@ -0,0 +1,170 @@
+package Connections;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a lock-free container of pool entries.
+ *
+ * entries are borrowed by CAS-ing their state from NOT_IN_USE to IN_USE, so borrowing and returning never take a
+ * monitor. a thread first looks at the entries it returned itself (thread-local fast path), then scans the shared
+ * list, and finally waits on a fair handoff queue that returning threads feed directly.
+ */
+class ConnectionBag {
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+
+    /**
+     * notified when a thread finds no idle entry and is about to wait, so the pool can grow
+     */
+    interface Listener {
+        void addBagItem(int waiting);
+    }
+
+    private final CopyOnWriteArrayList<PoolEntry> sharedList = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<List<WeakReference<PoolEntry>>> threadList =
+            ThreadLocal.withInitial(() -> new ArrayList<>(MAX_THREAD_LOCAL_ENTRIES));
+    private final SynchronousQueue<PoolEntry> handoffQueue = new SynchronousQueue<>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Listener listener;
+
+    ConnectionBag(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * borrows an entry from the bag, waiting up to the given timeout for one to be returned
+     * @param timeoutNanos how long to wait, in nanoseconds
+     * @return the borrowed entry, or null if the timeout elapsed
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    PoolEntry borrow(long timeoutNanos) throws InterruptedException {
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            PoolEntry entry = list.remove(i).get();
+            if (entry != null && entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE))
+                return entry;
+        }
+
+        int waiting = waiters.incrementAndGet();
+        try {
+            for (PoolEntry entry : sharedList) {
+                if (entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE)) {
+                    // we may have taken an entry another waiter was counting on
+                    if (waiting > 1)
+                        listener.addBagItem(waiting - 1);
+                    return entry;
+                }
+            }
+
+            listener.addBagItem(waiting);
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (timeoutNanos > 0) {
+                PoolEntry entry = handoffQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                if (entry == null)
+                    return null;
+                if (entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE))
+                    return entry;
+                timeoutNanos = deadline - System.nanoTime();
+            }
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * returns a borrowed entry to the bag, handing it straight to a waiting thread if there is one
+     * @param entry the entry being returned
+     * @return false if the entry was not borrowed, e.g. because it was already returned; the bag is left unchanged
+     */
+    boolean requite(PoolEntry entry) {
+        if (!entry.compareAndSet(PoolEntry.STATE_IN_USE, PoolEntry.STATE_NOT_IN_USE))
+            return false;
+
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (entry.getState() != PoolEntry.STATE_NOT_IN_USE || handoffQueue.offer(entry))
+                return true;
+            else if ((i & 0xff) == 0xff)
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+            else
+                Thread.yield();
+        }
+
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        if (list.size() < MAX_THREAD_LOCAL_ENTRIES)
+            list.add(new WeakReference<>(entry));
+        return true;
+    }
+
+    /**
+     * adds a new entry to the bag and offers it to any waiting thread
+     * @param entry the entry to add
+     */
+    void add(PoolEntry entry) {
+        sharedList.add(entry);
+
+        while (waiters.get() > 0 && entry.getState() == PoolEntry.STATE_NOT_IN_USE && !handoffQueue.offer(entry))
+            Thread.yield();
+    }
+
+    /**
+     * removes an entry that was previously reserved or borrowed
+     * @param entry the entry to remove
+     * @return true if the entry was removed
+     */
+    boolean remove(PoolEntry entry) {
+        if (!entry.compareAndSet(PoolEntry.STATE_IN_USE, PoolEntry.STATE_REMOVED)
+                && !entry.compareAndSet(PoolEntry.STATE_RESERVED, PoolEntry.STATE_REMOVED)
+                && entry.getState() != PoolEntry.STATE_REMOVED)
+            return false;
+        return sharedList.remove(entry);
+    }
+
+    /**
+     * reserves an idle entry so no other thread can borrow it
+     * @param entry the entry to reserve
+     * @return true if the entry was idle and is now reserved
+     */
+    boolean reserve(PoolEntry entry) {
+        return entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_RESERVED);
+    }
+
+    /**
+     * makes a reserved entry available for borrowing again
+     * @param entry the reserved entry
+     */
+    void unreserve(PoolEntry entry) {
+        if (entry.compareAndSet(PoolEntry.STATE_RESERVED, PoolEntry.STATE_NOT_IN_USE)) {
+            while (waiters.get() > 0 && entry.getState() == PoolEntry.STATE_NOT_IN_USE && !handoffQueue.offer(entry))
+                Thread.yield();
+        }
+    }
+
+    List<PoolEntry> values() {
+        return new ArrayList<>(sharedList);
+    }
+
+    int size() {
+        return sharedList.size();
+    }
+
+    int getIdleCount() {
+        int idle = 0;
+        for (PoolEntry entry : sharedList) {
+            if (entry.getState() == PoolEntry.STATE_NOT_IN_USE)
+                idle++;
+        }
+        return idle;
+    }
+
+    int getWaitingThreadCount() {
+        return waiters.get();
+    }
+}
@@ -1,53 +1,622 @@
 package Connections;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class ConnectionPool {
-    private final int MAX_CONNECTIONS = 20;
-    private final String URL ="jdbc:mysql://localhost:3306/coupons_db";
+public class ConnectionPool implements ConnectionBag.Listener, ConnectionPoolMXBean {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+    private final int MIN_IDLE = Integer.getInteger("coupons.pool.minIdle", 5);
+    private final int MAX_CONNECTIONS = Integer.getInteger("coupons.pool.maxSize", 20);
+    private final Duration CONNECTION_TIMEOUT = Duration.ofMillis(Long.getLong("coupons.pool.connectionTimeoutMs", 30_000));
+    private final Duration IDLE_TIMEOUT = Duration.ofMillis(Long.getLong("coupons.pool.idleTimeoutMs", 600_000));
+    private final Duration MAX_LIFETIME = Duration.ofMillis(Long.getLong("coupons.pool.maxLifetimeMs", 1_800_000));
+    private final Duration HOUSEKEEPING_PERIOD = Duration.ofSeconds(30);
+    private final Duration VALIDATION_WINDOW = Duration.ofMillis(Long.getLong("coupons.pool.validationWindowMs", 500));
+    private final Duration KEEPALIVE_TIME = Duration.ofMillis(Long.getLong("coupons.pool.keepaliveMs", 120_000));
+    private final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private final Duration MIN_BACKOFF = Duration.ofMillis(100);
+    private final Duration MAX_BACKOFF = Duration.ofSeconds(10);
+    private final Duration LEAK_DETECTION_THRESHOLD = Duration.ofMillis(Long.getLong("coupons.pool.leakDetectionThresholdMs", 0));
+    private final Duration SHUTDOWN_CHECK_INTERVAL = Duration.ofMillis(100);
+    private final Duration SHUTDOWN_TIMEOUT = Duration.ofMillis(Long.getLong("coupons.pool.shutdownTimeoutMs", 10_000));
+    private final int STATEMENT_CACHE_SIZE = Integer.getInteger("coupons.pool.statementCacheSize", 64);
+    private static final String PRIMARY_URL = System.getProperty("coupons.db.url", "jdbc:mysql://localhost:3306/coupons_db");
+    private static final String REPLICA_URLS = System.getProperty("coupons.db.replicaUrls", "");
+    private final String URL;
     private final String USER = "root";
     private final String PASSWORD = "1234";
-    private List<Connection> connections = new ArrayList<>(MAX_CONNECTIONS);
-    private static ConnectionPool instance;
-    private ConnectionPool() throws SQLException {
-        for (int i = 0; i < MAX_CONNECTIONS; i++) {
-            connections.add(DriverManager.getConnection(URL, USER, PASSWORD));
-        }
+    private final ConnectionBag bag = new ConnectionBag(this);
+    private final Map<Connection, PoolEntry> entries = new ConcurrentHashMap<>(MAX_CONNECTIONS);
+    private final AtomicInteger pendingCreations = new AtomicInteger();
+    private final PoolMetrics metrics = new PoolMetrics();
+    private final ThreadPoolExecutor creator;
+    private final ScheduledExecutorService housekeeper;
+    private final long createdAt = System.nanoTime();
+    private final AtomicLong firstBorrowAt = new AtomicLong();
+    private final AtomicInteger consecutiveCreationFailures = new AtomicInteger();
+    private final AtomicLong nextCreationAttemptAt = new AtomicLong(System.nanoTime());
+    private volatile boolean shutdown;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile ConnectionPool instance;
+    private static volatile List<ConnectionPool> replicas;
+    private final String name;
+    private final boolean required;
+    private ConnectionPool(String name, String url, boolean required) throws SQLException {
+        this.name = name;
+        this.required = required;
+        this.URL = url + (url.contains("?") ? "&" : "?") + "useServerPrepStmts=true&useCursorFetch=true";
+        int creatorThreads = Math.max(1, Math.min(MIN_IDLE, Runtime.getRuntime().availableProcessors()));
+        creator = new ThreadPoolExecutor(creatorThreads, creatorThreads, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("coupons-pool-" + name + "-creator"));
+        creator.allowCoreThreadTimeOut(true);
+        housekeeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("coupons-pool-" + name + "-housekeeper"));
+
+        warmUp();
+        housekeeper.scheduleWithFixedDelay(this::houseKeep, HOUSEKEEPING_PERIOD.toMillis(),
+                HOUSEKEEPING_PERIOD.toMillis(), TimeUnit.MILLISECONDS);
+        registerMBean();
     }
     public static ConnectionPool getInstance() throws SQLException {
-        if (instance == null)
-            instance = new ConnectionPool();
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new ConnectionPool("primary", PRIMARY_URL, true);
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
         return instance;
     }
-    public Connection getConnection() {
-        while (connections.size() == 0) {
+
+    /**
+     * returns one pool per read replica listed in the coupons.db.replicaUrls system property (comma separated).
+     * a replica that can't be reached at startup still gets its pool, which keeps trying to connect in the
+     * background and reports itself unavailable until it does
+     * @return the replica pools, empty if no replicas are configured
+     * @throws SQLException if interrupted while warming up a replica pool
+     */
+    public static List<ConnectionPool> getReplicaInstances() throws SQLException {
+        if (replicas == null) {
+            INSTANCE_LOCK.lock();
             try {
-                wait();
-            } catch (InterruptedException e) {}
+                if (replicas == null) {
+                    List<ConnectionPool> pools = new ArrayList<>();
+                    for (String url: REPLICA_URLS.split(",")) {
+                        if (!url.isBlank())
+                            pools.add(new ConnectionPool("replica-" + (pools.size() + 1), url.trim(), false));
+                    }
+                    replicas = List.copyOf(pools);
+                }
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
         }
-        Connection connection = connections.get(connections.size()-1);
-        connections.remove(connection);
-        return connection;
+        return replicas;
+    }
+
+    public String getName() {
+        return name;
     }
-    public synchronized void restoreConnection(Connection connection) {
-        connections.add(connection);
-        notify();
+
+    /**
+     * @return false while the pool has no connections and its last attempt to open one failed
+     */
+    boolean isAvailable() {
+        return bag.size() > 0 || consecutiveCreationFailures.get() == 0;
     }
+
+    /**
+     * @param connection any connection
+     * @return true if the connection was opened by this pool
+     */
+    public boolean owns(Connection connection) {
+        return entries.containsKey(connection);
+    }
+
+    /**
+     * borrows a connection, waiting up to the default connection timeout for one to become available
+     * @return a connection that must be given back with restoreConnection
+     * @throws SQLException if no connection became available in time
+     */
+    public Connection getConnection() throws SQLException {
+        return getConnection(CONNECTION_TIMEOUT);
+    }
+
+    /**
+     * borrows a connection, waiting up to the given timeout for one to become available
+     * @param timeout the maximum time to wait
+     * @return a connection that must be given back with restoreConnection
+     * @throws SQLTimeoutException if no connection became available in time
+     * @throws SQLException if the pool is shut down, or the waiting thread was interrupted
+     */
+    public Connection getConnection(Duration timeout) throws SQLException {
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + timeout.toNanos();
+        try {
+            long remaining = timeout.toNanos();
+            do {
+                requireOpen();
+                // waits in slices, so a waiter notices a shutdown without sitting out its whole timeout
+                PoolEntry entry = bag.borrow(Math.min(remaining, SHUTDOWN_CHECK_INTERVAL.toNanos()));
+                if (shutdown && entry != null) {
+                    bag.requite(entry);
+                    requireOpen();
+                }
+                if (entry == null) {
+                    remaining = deadline - System.nanoTime();
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                if (now - entry.getLastAccessed() > VALIDATION_WINDOW.toNanos()
+                        && now - entry.getLastValidated() > VALIDATION_WINDOW.toNanos()
+                        && !isAlive(entry)) {
+                    retire(entry);
+                    fillPool();
+                } else {
+                    if (firstBorrowAt.get() == 0)
+                        firstBorrowAt.compareAndSet(0, now);
+                    metrics.recordAcquire(now - startedAt);
+                    entry.setBorrowedAt(now);
+                    scheduleLeakDetection(entry);
+                    return entry.getConnection();
+                }
+                remaining = deadline - System.nanoTime();
+            } while (remaining > 0);
+
+            requireOpen();
+            metrics.recordTimeout();
+            throw new SQLTimeoutException("no connection available after " + timeout.toMillis() + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection", e);
+        }
+    }
+
+    private void requireOpen() throws SQLException {
+        if (shutdown)
+            throw new SQLException("pool " + name + " is shut down");
+    }
+
+    /**
+     * gives a borrowed connection back. a connection that is not borrowed, e.g. one returned a second time, is
+     * ignored, so it can't be handed to two borrowers at once
+     * @param connection a connection borrowed from this pool
+     */
+    public void restoreConnection(Connection connection) {
+        PoolEntry entry = entries.get(connection);
+        if (entry == null || entry.getState() != PoolEntry.STATE_IN_USE)
+            return;
+
+        long now = System.nanoTime();
+        entry.cancelLeakTask();
+        metrics.recordRelease(now - entry.getBorrowedAt());
+        if (entry.isMarkedEvicted() || now - entry.getCreatedAt() > MAX_LIFETIME.toNanos() || isClosed(entry)) {
+            retire(entry);
+            fillPool();
+        } else {
+            entry.setLastAccessed(now);
+            bag.requite(entry);
+        }
+    }
+
+    /**
+     * returns a prepared statement for the given SQL from the connection's statement cache.
+     * the statement stays owned by the cache: callers close their ResultSets but never the statement itself.
+     * @param connection a connection borrowed from this pool
+     * @param sql the statement text
+     * @return a reusable prepared statement
+     * @throws SQLException in case of sql issues
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        return prepareStatement(connection, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * @param connection a connection borrowed from this pool
+     * @param sql the statement text
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS
+     * @return a reusable prepared statement
+     * @throws SQLException in case of sql issues
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql, int autoGeneratedKeys) throws SQLException {
+        PoolEntry entry = entries.get(connection);
+        if (entry == null)
+            return connection.prepareStatement(sql, autoGeneratedKeys);
+        return entry.getStatementCache().prepare(sql, autoGeneratedKeys);
+    }
+
+    /**
+     * closes every connection. borrowed connections are waited for up to SHUTDOWN_TIMEOUT; the ones still out after
+     * that are closed when they are returned instead of being waited for
+     */
     public void closeConnections() {
-        while (connections.size() < MAX_CONNECTIONS) {
-            try {
-                wait();
-            } catch (InterruptedException e) {}
+        shutdown = true;
+        housekeeper.shutdownNow();
+        creator.shutdownNow();
+
+        long deadline = System.nanoTime() + SHUTDOWN_TIMEOUT.toNanos();
+        int abandoned = 0;
+        for (PoolEntry entry: bag.values()) {
+            while (!bag.reserve(entry) && entry.getState() != PoolEntry.STATE_REMOVED && System.nanoTime() < deadline)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            if (entry.getState() == PoolEntry.STATE_RESERVED) {
+                retire(entry);
+            } else if (entry.getState() != PoolEntry.STATE_REMOVED) {
+                entry.markEvicted();
+                // it may have come back between the last look and the mark
+                if (bag.reserve(entry))
+                    retire(entry);
+                else
+                    abandoned++;
+            }
+        }
+        if (abandoned > 0)
+            LOGGER.warning("pool " + name + " closed with " + abandoned + " connections still borrowed after "
+                    + SHUTDOWN_TIMEOUT.toMillis() + "ms; they are closed when returned");
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the most connections the pool will open
+     */
+    @Override
+    public int getMaxConnections() {
+        return MAX_CONNECTIONS;
+    }
+
+    /**
+     * @return the number of open connections, idle or borrowed
+     */
+    @Override
+    public int getTotalConnections() {
+        return bag.size();
+    }
+
+    /**
+     * @return the number of open connections not currently borrowed
+     */
+    @Override
+    public int getIdleConnections() {
+        return bag.getIdleCount();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return Math.max(0, getTotalConnections() - getIdleConnections());
+    }
+
+    @Override
+    public int getThreadsAwaitingConnection() {
+        return bag.getWaitingThreadCount();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return metrics.getAcquireWait().getCount();
+    }
+
+    @Override
+    public double getAcquireWaitMeanMicros() {
+        return metrics.getAcquireWait().getMeanMicros();
+    }
+
+    @Override
+    public long getAcquireWaitP50Micros() {
+        return metrics.getAcquireWait().getPercentileMicros(50);
+    }
+
+    @Override
+    public long getAcquireWaitP99Micros() {
+        return metrics.getAcquireWait().getPercentileMicros(99);
+    }
+
+    @Override
+    public long getAcquireWaitMaxMicros() {
+        return metrics.getAcquireWait().getMaxMicros();
+    }
+
+    @Override
+    public double getHoldTimeMeanMicros() {
+        return metrics.getHoldTime().getMeanMicros();
+    }
+
+    @Override
+    public long getHoldTimeP50Micros() {
+        return metrics.getHoldTime().getPercentileMicros(50);
+    }
+
+    @Override
+    public long getHoldTimeP99Micros() {
+        return metrics.getHoldTime().getPercentileMicros(99);
+    }
+
+    @Override
+    public long getHoldTimeMaxMicros() {
+        return metrics.getHoldTime().getMaxMicros();
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return metrics.getTimeouts();
+    }
+
+    @Override
+    public long getConnectionsCreated() {
+        return metrics.getCreations();
+    }
+
+    @Override
+    public long getConnectionsEvicted() {
+        return metrics.getEvictions();
+    }
+
+    @Override
+    public long getLeaksDetected() {
+        return metrics.getLeaks();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return metrics.getStatementCacheHits();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return metrics.getStatementCacheMisses();
+    }
+
+    /**
+     * @return the time from the start of pool construction to the first served getConnection, or -1 if none yet
+     */
+    @Override
+    public long getMillisToFirstConnection() {
+        long first = firstBorrowAt.get();
+        return first == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(first - createdAt);
+    }
+
+    /**
+     * called by the bag when threads find no idle connection; grows the pool towards its maximum size
+     * @param waiting the number of threads currently waiting
+     */
+    @Override
+    public void addBagItem(int waiting) {
+        int wanted = waiting - pendingCreations.get();
+        for (int i = 0; i < wanted; i++) {
+            if (!addConnectionAsync())
+                break;
+        }
+    }
+
+    /**
+     * opens MIN_IDLE connections in parallel and waits for them before the pool is handed out. a pool that is not
+     * required starts empty if none could be opened, and keeps trying in the background
+     * @throws SQLException if none of the connections of a required pool could be opened
+     */
+    private void warmUp() throws SQLException {
+        List<Future<PoolEntry>> futures = new ArrayList<>(MIN_IDLE);
+        for (int i = 0; i < MIN_IDLE; i++) {
+            futures.add(creator.submit(this::createEntry));
         }
 
-        for (Connection connection: connections) {
+        SQLException failure = null;
+        for (Future<PoolEntry> future: futures) {
             try {
-                connection.close();
-            } catch (SQLException e) {}
+                bag.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException)
+                    failure = (SQLException) e.getCause();
+                else
+                    failure = new SQLException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while warming up the connection pool", e);
+            }
+        }
+        if (bag.size() == 0 && failure != null) {
+            if (required)
+                throw failure;
+            LOGGER.log(Level.WARNING, "pool " + name + " could not connect at startup; retrying in the background", failure);
+            backOff();
+            fillPool();
         }
     }
+
+    /**
+     * schedules the creation of one more connection, unless the pool is already at its maximum size
+     * @return true if a creation was scheduled
+     */
+    private boolean addConnectionAsync() {
+        while (true) {
+            int pending = pendingCreations.get();
+            if (shutdown || bag.size() + pending >= MAX_CONNECTIONS)
+                return false;
+            if (pendingCreations.compareAndSet(pending, pending + 1))
+                break;
+        }
+
+        try {
+            creator.execute(() -> {
+                try {
+                    while (!shutdown) {
+                        long wait = nextCreationAttemptAt.get() - System.nanoTime();
+                        if (wait > 0)
+                            LockSupport.parkNanos(wait);
+
+                        try {
+                            bag.add(createEntry());
+                            consecutiveCreationFailures.set(0);
+                            return;
+                        } catch (SQLException e) {
+                            backOff();
+                        }
+
+                        // only keep retrying while someone still needs the connection
+                        if (bag.getWaitingThreadCount() == 0 && bag.size() >= MIN_IDLE)
+                            return;
+                    }
+                } finally {
+                    pendingCreations.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingCreations.decrementAndGet();
+            return false;
+        }
+    }
+
+    private PoolEntry createEntry() throws SQLException {
+        Connection connection = DriverManager.getConnection(URL, USER, PASSWORD);
+        PoolEntry entry = new PoolEntry(connection, new StatementCache(connection, STATEMENT_CACHE_SIZE, metrics));
+        entries.put(entry.getConnection(), entry);
+        metrics.recordCreation();
+        return entry;
+    }
+
+    /**
+     * pushes back the next connection attempt after a failure, exponentially with full jitter, so that all creator
+     * threads don't hammer a database that is restarting
+     */
+    private void backOff() {
+        int failures = consecutiveCreationFailures.incrementAndGet();
+        long ceiling = Math.min(MAX_BACKOFF.toNanos(), MIN_BACKOFF.toNanos() << Math.min(failures, 16));
+        long delay = MIN_BACKOFF.toNanos() + ThreadLocalRandom.current().nextLong(ceiling);
+        nextCreationAttemptAt.accumulateAndGet(System.nanoTime() + delay, Math::max);
+    }
+
+    /**
+     * checks a connection with a round trip to the database
+     * @param entry the entry to check, which must be borrowed or reserved by the caller
+     * @return true if the connection answered in time
+     */
+    private boolean isAlive(PoolEntry entry) {
+        try {
+            if (entry.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                entry.setLastValidated(System.nanoTime());
+                return true;
+            }
+        } catch (SQLException ignored) {}
+        return false;
+    }
+
+    private boolean isClosed(PoolEntry entry) {
+        try {
+            return entry.getConnection().isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * tops the pool back up to MIN_IDLE idle connections
+     */
+    private void fillPool() {
+        int missing = Math.min(MAX_CONNECTIONS - bag.size(), MIN_IDLE - bag.getIdleCount()) - pendingCreations.get();
+        for (int i = 0; i < missing; i++) {
+            if (!addConnectionAsync())
+                break;
+        }
+    }
+
+    /**
+     * retires idle connections past IDLE_TIMEOUT (down to MIN_IDLE) and connections past MAX_LIFETIME, and probes
+     * connections that have been idle longer than KEEPALIVE_TIME, replacing the ones that are dead
+     */
+    private void houseKeep() {
+        long now = System.nanoTime();
+        int removable = bag.getIdleCount() - MIN_IDLE;
+
+        for (PoolEntry entry: bag.values()) {
+            boolean tooOld = now - entry.getCreatedAt() > MAX_LIFETIME.toNanos();
+            boolean idleTooLong = removable > 0 && now - entry.getLastAccessed() > IDLE_TIMEOUT.toNanos();
+            boolean needsProbe = now - entry.getLastAccessed() > KEEPALIVE_TIME.toNanos()
+                    && now - entry.getLastValidated() > KEEPALIVE_TIME.toNanos();
+            if (!tooOld && !idleTooLong && !needsProbe)
+                continue;
+
+            if (bag.reserve(entry)) {
+                if (tooOld || idleTooLong) {
+                    retire(entry);
+                    if (!tooOld)
+                        removable--;
+                } else if (isAlive(entry)) {
+                    bag.unreserve(entry);
+                } else {
+                    retire(entry);
+                }
+            } else if (tooOld) {
+                entry.markEvicted();
+            }
+        }
+        fillPool();
+    }
+
+    /**
+     * when leak detection is on, schedules a report in case the connection is still out after
+     * LEAK_DETECTION_THRESHOLD. the report is counted in the metrics and logged as a warning carrying the borrower's
+     * stack trace
+     */
+    private void scheduleLeakDetection(PoolEntry entry) {
+        if (LEAK_DETECTION_THRESHOLD.isZero() || shutdown)
+            return;
+
+        Exception borrower = new Exception("borrowed here by thread " + Thread.currentThread().getName());
+        try {
+            entry.setLeakTask(housekeeper.schedule(() -> {
+                metrics.recordLeak();
+                LOGGER.log(Level.WARNING, "apparent connection leak in pool " + name + ": connection held for more than "
+                        + LEAK_DETECTION_THRESHOLD.toMillis() + "ms", borrower);
+            }, LEAK_DETECTION_THRESHOLD.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException ignored) {}
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("Connections:type=ConnectionPool,name=" + name);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception ignored) {}
+    }
+
+    private void retire(PoolEntry entry) {
+        entry.cancelLeakTask();
+        bag.remove(entry);
+        entries.remove(entry.getConnection());
+        metrics.recordEviction();
+        entry.getStatementCache().closeAll();
+        try {
+            entry.getConnection().close();
+        } catch (SQLException e) {}
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
@@ -0,0 +1,31 @@
+package Connections;
+
+/**
+ * the management view of the connection pool, registered under "Connections:type=ConnectionPool,name=primary" (or name=replica-N)
+ */
+public interface ConnectionPoolMXBean {
+    int getMaxConnections();
+    int getTotalConnections();
+    int getIdleConnections();
+    int getActiveConnections();
+    int getThreadsAwaitingConnection();
+
+    long getAcquireCount();
+    double getAcquireWaitMeanMicros();
+    long getAcquireWaitP50Micros();
+    long getAcquireWaitP99Micros();
+    long getAcquireWaitMaxMicros();
+
+    double getHoldTimeMeanMicros();
+    long getHoldTimeP50Micros();
+    long getHoldTimeP99Micros();
+    long getHoldTimeMaxMicros();
+
+    long getAcquireTimeouts();
+    long getConnectionsCreated();
+    long getConnectionsEvicted();
+    long getLeaksDetected();
+    long getMillisToFirstConnection();
+    long getStatementCacheHits();
+    long getStatementCacheMisses();
+}
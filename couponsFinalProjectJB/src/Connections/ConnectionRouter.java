@@ -0,0 +1,151 @@
+package Connections;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * routes DAO connections between the primary pool and the read replica pools.
+ *
+ * writes, and reads that must see the latest committed state (uniqueness and purchase checks), go to the primary.
+ * plain reads are spread round-robin over the replicas, skipping replicas that are down, and fall back to the primary
+ * when there are no usable replicas or a replica can't hand out a connection. with read-your-writes on, a client that
+ * wrote recently keeps reading from the primary until the replicas have had time to catch up. writes are tracked in
+ * the RecentWrites bound to the calling thread, so a client that binds its own before each call is tracked across
+ * threads. a write is recorded both when its connection is borrowed and when it is restored, after the commit, so the
+ * window covers the whole transaction however long it runs.
+ */
+public class ConnectionRouter {
+    private final boolean READ_YOUR_WRITES = Boolean.parseBoolean(System.getProperty("coupons.db.readYourWrites", "true"));
+    private final Duration READ_YOUR_WRITES_WINDOW = Duration.ofMillis(Long.getLong("coupons.db.readYourWritesWindowMs", 2_000));
+    private final Duration REPLICA_TIMEOUT = Duration.ofMillis(Long.getLong("coupons.db.replicaTimeoutMs", 1_000));
+    private final ConnectionPool primary;
+    private final List<ConnectionPool> replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final Map<Connection, RecentWrites> writers = new ConcurrentHashMap<>();
+    private static final ThreadLocal<RecentWrites> RECENT_WRITES = ThreadLocal.withInitial(RecentWrites::new);
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile ConnectionRouter instance;
+
+    private ConnectionRouter() throws SQLException {
+        this.primary = ConnectionPool.getInstance();
+        this.replicas = ConnectionPool.getReplicaInstances();
+    }
+
+    public static ConnectionRouter getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new ConnectionRouter();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * borrows a connection for a read that may be served slightly stale
+     * @return a replica connection, or a primary connection when no replica is usable
+     * @throws SQLException in case no connection is available
+     */
+    public Connection getReadConnection() throws SQLException {
+        if (replicas.isEmpty() || wroteRecently())
+            return primary.getConnection();
+
+        int first = nextReplica.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            ConnectionPool replica = replicas.get(Math.floorMod(first + i, replicas.size()));
+            if (!replica.isAvailable())
+                continue;
+            try {
+                return replica.getConnection(REPLICA_TIMEOUT);
+            } catch (SQLException e) {
+                break;
+            }
+        }
+        return primary.getConnection();
+    }
+
+    /**
+     * borrows a primary connection for a write, and starts the bound client's read-your-writes window; the window starts
+     * again when the connection is restored
+     * @return a primary connection
+     * @throws SQLException in case no connection is available
+     */
+    public Connection getWriteConnection() throws SQLException {
+        markWrite();
+        Connection connection = primary.getConnection();
+        if (READ_YOUR_WRITES)
+            writers.put(connection, RECENT_WRITES.get());
+        return connection;
+    }
+
+    /**
+     * borrows a primary connection for a read that must see the latest committed data
+     * @return a primary connection
+     * @throws SQLException in case no connection is available
+     */
+    public Connection getPrimaryConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    /**
+     * records that the client bound to the current thread has just written to the primary
+     */
+    public void markWrite() {
+        if (READ_YOUR_WRITES)
+            RECENT_WRITES.get().markWrite();
+    }
+
+    /**
+     * makes the current thread's reads and writes count towards the given client's read-your-writes window, until
+     * another one is bound or unbind is called
+     * @param recentWrites the writes of the client the thread now works for
+     */
+    public static void bind(RecentWrites recentWrites) {
+        RECENT_WRITES.set(recentWrites);
+    }
+
+    /**
+     * unbinds the calling thread's RecentWrites once it is done working for its client; the thread's own are used again
+     */
+    public static void unbind() {
+        RECENT_WRITES.remove();
+    }
+
+    public void restoreConnection(Connection connection) {
+        RecentWrites writer = writers.remove(connection);
+        if (writer != null)
+            writer.markWrite();
+        ownerOf(connection).restoreConnection(connection);
+    }
+
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        return prepareStatement(connection, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    public PreparedStatement prepareStatement(Connection connection, String sql, int autoGeneratedKeys) throws SQLException {
+        return ownerOf(connection).prepareStatement(connection, sql, autoGeneratedKeys);
+    }
+
+    private boolean wroteRecently() {
+        return READ_YOUR_WRITES && RECENT_WRITES.get().wroteWithin(READ_YOUR_WRITES_WINDOW.toNanos());
+    }
+
+    private ConnectionPool ownerOf(Connection connection) {
+        for (ConnectionPool replica: replicas) {
+            if (replica.owns(connection))
+                return replica;
+        }
+        return primary;
+    }
+}
@@ -0,0 +1,109 @@
+package Connections;
+
+import java.sql.Connection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a single slot in the connection pool, holding one physical connection and its borrow state
+ */
+class PoolEntry {
+    static final int STATE_NOT_IN_USE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = -1;
+    static final int STATE_RESERVED = -2;
+
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final AtomicInteger state = new AtomicInteger(STATE_NOT_IN_USE);
+    private final long createdAt;
+    private volatile long lastAccessed;
+    private volatile long lastValidated;
+    private volatile boolean evict;
+    private volatile long borrowedAt;
+    private volatile ScheduledFuture<?> leakTask;
+
+    PoolEntry(Connection connection, StatementCache statementCache) {
+        this.connection = connection;
+        this.statementCache = statementCache;
+        this.createdAt = System.nanoTime();
+        this.lastAccessed = createdAt;
+        this.lastValidated = createdAt;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void setLastAccessed(long lastAccessed) {
+        this.lastAccessed = lastAccessed;
+    }
+
+    long getLastValidated() {
+        return lastValidated;
+    }
+
+    void setLastValidated(long lastValidated) {
+        this.lastValidated = lastValidated;
+    }
+
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    void setBorrowedAt(long borrowedAt) {
+        this.borrowedAt = borrowedAt;
+    }
+
+    void setLeakTask(ScheduledFuture<?> leakTask) {
+        this.leakTask = leakTask;
+    }
+
+    /**
+     * cancels the pending leak report, if any, when the connection is returned
+     */
+    void cancelLeakTask() {
+        ScheduledFuture<?> task = leakTask;
+        if (task != null) {
+            task.cancel(false);
+            leakTask = null;
+        }
+    }
+
+    boolean isMarkedEvicted() {
+        return evict;
+    }
+
+    /**
+     * marks the entry so that it is closed instead of reused the next time it is returned
+     */
+    void markEvicted() {
+        this.evict = true;
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    /**
+     * atomically moves the entry from one state to another
+     * @param expected the state the entry must currently be in
+     * @param newState the state to move to
+     * @return true if the entry was in the expected state and was moved
+     */
+    boolean compareAndSet(int expected, int newState) {
+        return state.compareAndSet(expected, newState);
+    }
+}
@@ -0,0 +1,81 @@
+package Connections;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and latency histograms collected by the connection pool
+ */
+public class PoolMetrics {
+    private final LatencyHistogram acquireWait = new LatencyHistogram();
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    void recordAcquire(long waitNanos) {
+        acquireWait.record(waitNanos);
+    }
+
+    void recordRelease(long holdNanos) {
+        holdTime.record(holdNanos);
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordCreation() {
+        creations.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordLeak() {
+        leaks.increment();
+    }
+
+    void recordStatementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    void recordStatementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    public LatencyHistogram getAcquireWait() {
+        return acquireWait;
+    }
+
+    public LatencyHistogram getHoldTime() {
+        return holdTime;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getCreations() {
+        return creations.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+}
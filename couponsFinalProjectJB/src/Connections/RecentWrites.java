@@ -0,0 +1,21 @@
+package Connections;
+
+/**
+ * when a client last wrote to the primary, for read-your-writes routing.
+ *
+ * ConnectionRouter records writes in the RecentWrites bound to the current thread with ConnectionRouter.bind. a client
+ * that binds its own one before each call keeps reading its writes from the primary whichever thread serves the
+ * call; a thread with nothing bound gets one of its own.
+ */
+public final class RecentWrites {
+    private volatile long lastWriteAt = Long.MIN_VALUE;
+
+    void markWrite() {
+        lastWriteAt = System.nanoTime();
+    }
+
+    boolean wroteWithin(long windowNanos) {
+        long last = lastWriteAt;
+        return last != Long.MIN_VALUE && System.nanoTime() - last < windowNanos;
+    }
+}
@@ -0,0 +1,74 @@
+package Connections;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a bounded LRU cache of prepared statements for a single pooled connection, keyed by SQL text.
+ *
+ * only the thread currently holding the connection touches its cache, so no locking is needed. statements pushed out
+ * of the cache, and all statements of a retired connection, are closed.
+ */
+class StatementCache {
+    private final Connection connection;
+    private final PoolMetrics metrics;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(Connection connection, int maxSize, PoolMetrics metrics) {
+        this.connection = connection;
+        this.metrics = metrics;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= maxSize)
+                    return false;
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * returns the cached statement for the given SQL, preparing and caching it on a miss
+     * @param sql the statement text
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS
+     * @return a prepared statement with its parameters and batch cleared; callers must not close it
+     * @throws SQLException in case of sql issues
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        PreparedStatement statement = statements.get(key);
+        if (statement != null && !statement.isClosed()) {
+            metrics.recordStatementCacheHit();
+            // a batch left over by a failed executeBatch must not run with the next user's batch
+            statement.clearParameters();
+            statement.clearBatch();
+            return statement;
+        }
+
+        metrics.recordStatementCacheMiss();
+        statement = connection.prepareStatement(sql, autoGeneratedKeys);
+        statements.put(key, statement);
+        return statement;
+    }
+
+    /**
+     * closes every cached statement, used when the connection is retired
+     */
+    void closeAll() {
+        for (PreparedStatement statement: statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {}
+    }
+}
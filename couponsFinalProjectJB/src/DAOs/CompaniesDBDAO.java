@@ -1,18 +1,21 @@
 package DAOs;
 
-import Connections.ConnectionPool;
+import Connections.ConnectionRouter;
 import javaBeans.Category;
 import javaBeans.Company;
 import javaBeans.Coupon;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.stream.Stream;
 
 public class CompaniesDBDAO implements CompaniesDAO{
-    private ConnectionPool connectionPool;
+    private ConnectionRouter connectionRouter;
+    private final CouponsDBDAO couponsDBDAO;
 
     public CompaniesDBDAO() throws SQLException {
-        this.connectionPool = ConnectionPool.getInstance();
+        this.connectionRouter = ConnectionRouter.getInstance();
+        this.couponsDBDAO = new CouponsDBDAO();
     }
 
     /**
@@ -24,18 +27,19 @@ public class CompaniesDBDAO implements CompaniesDAO{
      */
     @Override
     public boolean isCompanyExists(String email, String password) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "select email, password from companies where email = ? and password = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
             statement.setString(2, password);
-            ResultSet rs = statement.executeQuery();
-            boolean result = rs.next();
-            return result;
+            try (ResultSet rs = statement.executeQuery()) {
+                boolean result = rs.next();
+                return result;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -46,22 +50,23 @@ public class CompaniesDBDAO implements CompaniesDAO{
      */
     @Override
     public void addCompany(Company company) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "insert into companies(name, email, password) values(?, ?, ?);";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, company.getName());
             statement.setString(2, company.getEmail());
             statement.setString(3, company.getPassword());
             statement.executeUpdate();
-            ResultSet rs = statement.getGeneratedKeys();
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                company.setId(id);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if (rs.next()) {
+                    int id = rs.getInt(1);
+                    company.setId(id);
+                }
             }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -72,20 +77,20 @@ public class CompaniesDBDAO implements CompaniesDAO{
      */
     @Override
     public void updateCompany(Company company) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "UPDATE companies " +
                     "SET name = ?, email = ?, password = ? " +
                     "WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, company.getName());
             statement.setString(2, company.getEmail());
             statement.setString(3, company.getPassword());
             statement.setInt(4, company.getId());
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -96,15 +101,89 @@ public class CompaniesDBDAO implements CompaniesDAO{
      */
     @Override
     public void deleteCompany(int companyID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM companies WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, companyID);
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * deletes a company together with its coupons and their purchases, in one transaction. the coupons are locked
+     * first, which also holds off new coupons of the company until the transaction ends, so the returned ids are
+     * exactly the coupons deleted
+     * @param companyID of the company to be deleted
+     * @return the ids of the deleted coupons
+     * @throws SQLException in case of sql issues; nothing is deleted then
+     */
+    public ArrayList<Integer> deleteCompanyCascade(int companyID) throws SQLException {
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                ArrayList<Integer> couponIDs = new ArrayList<>();
+                String sql = "SELECT id FROM coupons WHERE company_id = ? FOR UPDATE";
+                PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, companyID);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        couponIDs.add(rs.getInt(1));
+                    }
+                }
+
+                sql = "DELETE customers_vs_coupons FROM customers_vs_coupons" +
+                        " JOIN coupons ON coupon_id = coupons.id WHERE coupons.company_id = ?";
+                statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, companyID);
+                statement.executeUpdate();
+
+                sql = "DELETE FROM coupons WHERE company_id = ?";
+                statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, companyID);
+                statement.executeUpdate();
+
+                sql = "DELETE FROM companies WHERE id = ?";
+                statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, companyID);
+                statement.executeUpdate();
+                connection.commit();
+                CouponWriteListener.notifyCompanyRemoved(companyID);
+                return couponIDs;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            CouponCache.companyChanged(companyID);
+        }
+    }
+
+    /**
+     * @param companyID of the company
+     * @return true if a company with this id exists, read from the primary database
+     * @throws SQLException in case of sql issues
+     */
+    public boolean companyExists(int companyID) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            String sql = "SELECT 1 FROM companies WHERE id = ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, companyID);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -114,59 +193,107 @@ public class CompaniesDBDAO implements CompaniesDAO{
      */
     @Override
     public ArrayList<Company> getAllCompanies() throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        return ResultSetStream.toList(streamAllCompanies());
+    }
 
+    /**
+     * streams all companies, with their coupons, without loading them into memory at once.
+     * the stream holds a connection until it is closed, so use it in a try-with-resources block
+     * @return a stream over all companies, in id order
+     * @throws SQLException in case of sql issues
+     */
+    public Stream<Company> streamAllCompanies() throws SQLException {
+        return streamWithCoupons("select * from companies order by id",
+                "select * from coupons order by company_id, id");
+    }
+
+    /**
+     * keyset pagination: every page costs the same no matter how deep into the table it is
+     * @param afterID id of the last company on the previous page, or 0 for the first page
+     * @param limit maximum number of companies to return
+     * @return up to limit companies, with their coupons, whose id is greater than afterID, in id order
+     * @throws SQLException in case of sql issues
+     */
+    public ArrayList<Company> getCompaniesPage(int afterID, int limit) throws SQLException {
+        return ResultSetStream.toList(streamWithCoupons("select * from companies where id > ? order by id limit ?",
+                "select coupons.* from (select id from companies where id > ? order by id limit ?) page" +
+                        " join coupons on coupons.company_id = page.id order by coupons.company_id, coupons.id",
+                afterID, limit));
+    }
+
+    /**
+     * loads companies and their coupons with two queries, merged in one pass instead of a coupon query per company
+     * @param companiesSql the companies query, ordered by id
+     * @param couponsSql the coupons query, ordered by company_id
+     * @param params parameters set on both queries, in order
+     * @return a stream over the companies with their coupons
+     * @throws SQLException in case of sql issues
+     */
+    private Stream<Company> streamWithCoupons(String companiesSql, String couponsSql, int... params) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+        PreparedStatement companies = null;
+        PreparedStatement coupons = null;
         try {
-            String sql = "select * from companies";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            ResultSet rs = statement.executeQuery();
-
-            ArrayList<Company> companies = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(1);
-                String name = rs.getString(2);
-                String email = rs.getString(3);
-                String password = rs.getString(4);
-                ArrayList<Coupon> coupons = couponsDBDAO.getCompanyCoupons(id, connection);
-
-                companies.add(new Company(id, name, email, password, coupons));
+            companies = connection.prepareStatement(companiesSql);
+            coupons = connection.prepareStatement(couponsSql);
+            for (int i = 0; i < params.length; i++) {
+                companies.setInt(i + 1, params[i]);
+                coupons.setInt(i + 1, params[i]);
             }
-            return companies;
-        } finally {
-            connectionPool.restoreConnection(connection);
+        } catch (SQLException e) {
+            if (companies != null)
+                companies.close();
+            if (coupons != null)
+                coupons.close();
+            connectionRouter.restoreConnection(connection);
+            throw e;
         }
+        return ResultSetStream.withChildren(connectionRouter, connection,
+                companies, rs -> new Company(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), new ArrayList<>()),
+                Company::getId, coupons, 2, CouponRowMapper.forQuery(couponsSql),
+                (company, coupon) -> company.getCoupons().add(coupon));
     }
 
     /**
      * @param companyID of the company requested
-     * @return a company
+     * @return a company, whose coupons are loaded on first access
      * @throws SQLException in case of sql issues
      */
     @Override
     public Company getOneCompany(int companyID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        return getOneCompany(companyID, false);
+    }
+
+    /**
+     * @param companyID of the company requested
+     * @param withCoupons true to fetch the coupons in the same round, false to load them only if they are asked for
+     * @return a company
+     * @throws SQLException in case of sql issues
+     */
+    public Company getOneCompany(int companyID, boolean withCoupons) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "SELECT * FROM companies WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, companyID);
-            ResultSet rs = statement.executeQuery();
-
-            Company company = null;
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                String name = rs.getString(2);
-                String email = rs.getString(3);
-                String password = rs.getString(4);
-                ArrayList<Coupon> coupons = couponsDBDAO.getCompanyCoupons(id, connection);
+            try (ResultSet rs = statement.executeQuery()) {
+                Company company = null;
+                if (rs.next()) {
+                    int id = rs.getInt(1);
+                    String name = rs.getString(2);
+                    String email = rs.getString(3);
+                    String password = rs.getString(4);
 
-                company = new Company(id, name, email, password, coupons);
+                    if (withCoupons)
+                        company = new Company(id, name, email, password, couponsDBDAO.getCompanyCoupons(id, connection));
+                    else
+                        company = new Company(id, name, email, password, () -> couponsDBDAO.getCompanyCouponsByID(id));
+                }
+                return company;
             }
-            return company;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -177,19 +304,19 @@ public class CompaniesDBDAO implements CompaniesDAO{
      * @throws SQLException in case of sql issues
      */
     public int getIDByName(String name) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT id FROM companies WHERE name = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, name);
-            ResultSet rs = statement.executeQuery();
-
-            if (rs.next())
-                return rs.getInt(1);
-            else return -1;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return rs.getInt(1);
+                else return -1;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -200,19 +327,19 @@ public class CompaniesDBDAO implements CompaniesDAO{
      * @throws SQLException in case of sql issues
      */
     public boolean nameAlreadyExists(String name) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT name FROM companies WHERE name = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, name);
-            ResultSet rs = statement.executeQuery();
-
-            if (rs.next())
-                return true;
-            else return false;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return true;
+                else return false;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -223,19 +350,19 @@ public class CompaniesDBDAO implements CompaniesDAO{
      * @throws SQLException in case of sql issues
      */
     public boolean emailAlreadyExists(String email) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT email FROM companies WHERE email = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
-            ResultSet rs = statement.executeQuery();
-
-            if (rs.next())
-                return true;
-            else return false;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return true;
+                else return false;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -251,21 +378,22 @@ public class CompaniesDBDAO implements CompaniesDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public int getID(String email, String password) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "select id from companies where email = ? and password = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
             statement.setString(2, password);
-            ResultSet rs = statement.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+                else
+                    return -1;
             }
-            else
-                return -1;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 }
@@ -0,0 +1,507 @@
+package DAOs;
+
+import Connections.LatencyHistogram;
+import javaBeans.Coupon;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a read-through cache in front of the coupon catalog reads of CouponsDBDAO.
+ *
+ * entries are single coupons and company coupon lists. each one lives for at most TTL_MS and is weighed by the
+ * bytes its strings take, so the cache never holds more than MAX_WEIGHT_BYTES. when it is full, a new entry only
+ * pushes out the least recently used one if a FrequencySketch says it is asked for more often (TinyLFU admission),
+ * so a scan over cold coupons can't flush the hot ones.
+ *
+ * the cache is split into SEGMENTS segments by key, each with its own lock, LRU order, sketch and share of the weight,
+ * so gets of different keys don't wait on each other.
+ *
+ * CouponsDBDAO calls couponChanged and companyChanged after every write to the coupons table. every entry is indexed
+ * by the coupons it holds and by their company, so a write drops exactly the entries it could have made stale. each
+ * invalidation also stamps the stripe of its coupon or company with a sequence number; a load is not cached if any
+ * coupon or company it returned was stamped after the load started. misses are loaded from the primary, never from
+ * a replica that may not have caught up with the write that invalidated the entry.
+ *
+ * coupons are copied in and out, so callers may modify what they get. the cache is only used when the
+ * coupons.cache.enabled system property is not false.
+ */
+public class CouponCache implements CouponCacheMXBean {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("coupons.cache.enabled", "true"));
+    private static final long MAX_WEIGHT_BYTES = Long.getLong("coupons.cache.maxBytes", 16L * 1024 * 1024);
+    private static final long TTL_MS = Long.getLong("coupons.cache.ttlMs", 30_000);
+    private static final int SEGMENTS = Integer.highestOneBit(Math.max(1, Integer.getInteger("coupons.cache.segments", 16)));
+    private static final long SEGMENT_WEIGHT_BYTES = MAX_WEIGHT_BYTES / SEGMENTS;
+    private static final int STAMP_STRIPES = 4096;
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final int COUPON_OVERHEAD_BYTES = 160;
+
+    private static final byte COUPON = 0;
+    private static final byte COMPANY_ALL = 1;
+    private static final byte COMPANY_CATEGORY = 2;
+    private static final byte COMPANY_UP_TO_PRICE = 3;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong invalidationSequence = new AtomicLong();
+    private final AtomicLongArray couponStamps = new AtomicLongArray(STAMP_STRIPES);
+    private final AtomicLongArray companyStamps = new AtomicLongArray(STAMP_STRIPES);
+    private volatile long clearedAt;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CouponCache instance;
+
+    /**
+     * loads a value from the database on a cache miss
+     */
+    interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+    private static final class Key {
+        private final byte kind;
+        private final int id;
+        private final int category;
+        private final double maxPrice;
+
+        private Key(byte kind, int id, int category, double maxPrice) {
+            this.kind = kind;
+            this.id = id;
+            this.category = category;
+            this.maxPrice = maxPrice;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return kind == key.kind && id == key.id && category == key.category
+                    && Double.compare(maxPrice, key.maxPrice) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, id, category, maxPrice);
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long weight;
+        private final long expiresAt;
+
+        private Entry(Object value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+        private final Map<Integer, Set<Key>> keysByCoupon = new HashMap<>();
+        private final Map<Integer, Set<Key>> keysByCompany = new HashMap<>();
+        private final FrequencySketch sketch = new FrequencySketch((int) Math.min(1 << 16, Math.max(16, SEGMENT_WEIGHT_BYTES / 512)));
+        private long weight;
+    }
+
+    private CouponCache() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        registerMBean();
+    }
+
+    public static CouponCache getInstance() {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CouponCache();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param couponID the coupon requested
+     * @param loader reads the coupon from the database on a miss
+     * @return a copy of the coupon, or null if it does not exist
+     * @throws SQLException in case of sql issues
+     */
+    Coupon getCoupon(int couponID, Loader<Coupon> loader) throws SQLException {
+        return (Coupon) get(new Key(COUPON, couponID, 0, 0), loader);
+    }
+
+    ArrayList<Coupon> getCompanyCoupons(int companyID, Loader<ArrayList<Coupon>> loader) throws SQLException {
+        return list(get(new Key(COMPANY_ALL, companyID, 0, 0), loader));
+    }
+
+    ArrayList<Coupon> getCompanyCouponsByCategory(int companyID, int categoryID, Loader<ArrayList<Coupon>> loader) throws SQLException {
+        return list(get(new Key(COMPANY_CATEGORY, companyID, categoryID, 0), loader));
+    }
+
+    ArrayList<Coupon> getCompanyCouponsUpToPrice(int companyID, double maxPrice, Loader<ArrayList<Coupon>> loader) throws SQLException {
+        return list(get(new Key(COMPANY_UP_TO_PRICE, companyID, 0, maxPrice), loader));
+    }
+
+    /**
+     * drops every entry holding this coupon; called after the coupon's row changed or was deleted
+     */
+    static void couponChanged(int couponID) {
+        CouponCache cache = instance;
+        if (cache != null)
+            cache.invalidate(couponID, true);
+    }
+
+    /**
+     * drops every entry holding a coupon of this company, and its lists; called after coupons were added to or
+     * removed from the company
+     */
+    static void companyChanged(int companyID) {
+        CouponCache cache = instance;
+        if (cache != null)
+            cache.invalidate(companyID, false);
+    }
+
+    private Object get(Key key, Loader<?> loader) throws SQLException {
+        Segment segment = segmentFor(key);
+        long sequence;
+        segment.lock.lock();
+        try {
+            segment.sketch.increment(key);
+            Entry entry = segment.entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    hits.increment();
+                    return copy(entry.value);
+                }
+                remove(segment, key, entry);
+                expirations.increment();
+            }
+            misses.increment();
+            sequence = invalidationSequence.get();
+        } finally {
+            segment.lock.unlock();
+        }
+
+        long start = System.nanoTime();
+        Object value = loader.load();
+        loadLatency.record(System.nanoTime() - start);
+        if (value == null)
+            return null;
+
+        Object cached = copy(value);
+        segment.lock.lock();
+        try {
+            // checked under the segment lock: an invalidation stamps before it takes the lock to drop entries, so
+            // either we see its stamp here or it drops what we admit
+            if (!invalidatedSince(key, cached, sequence) && !segment.entries.containsKey(key))
+                admit(segment, key, new Entry(cached, weigh(cached), System.currentTimeMillis() + TTL_MS));
+        } finally {
+            segment.lock.unlock();
+        }
+        return value;
+    }
+
+    /**
+     * @return whether a coupon or company the value depends on was invalidated after the given sequence number
+     */
+    private boolean invalidatedSince(Key key, Object value, long sequence) {
+        if (clearedAt > sequence)
+            return true;
+        if (key.kind == COUPON)
+            return couponStamps.get(stripe(key.id)) > sequence
+                    || companyStamps.get(stripe(((Coupon) value).getCompanyID())) > sequence;
+        if (companyStamps.get(stripe(key.id)) > sequence)
+            return true;
+        for (Coupon coupon: list(value)) {
+            if (couponStamps.get(stripe(coupon.getId())) > sequence)
+                return true;
+        }
+        return false;
+    }
+
+    private void admit(Segment segment, Key key, Entry entry) {
+        if (entry.weight > SEGMENT_WEIGHT_BYTES) {
+            rejections.increment();
+            return;
+        }
+
+        int frequency = segment.sketch.frequency(key);
+        Iterator<Map.Entry<Key, Entry>> eldest = segment.entries.entrySet().iterator();
+        List<Map.Entry<Key, Entry>> victims = new ArrayList<>();
+        long freed = 0;
+        while (segment.weight - freed + entry.weight > SEGMENT_WEIGHT_BYTES) {
+            Map.Entry<Key, Entry> victim = eldest.next();
+            if (victim.getValue().expiresAt > System.currentTimeMillis()
+                    && segment.sketch.frequency(victim.getKey()) >= frequency) {
+                rejections.increment();
+                return;
+            }
+            victims.add(victim);
+            freed += victim.getValue().weight;
+        }
+
+        for (Map.Entry<Key, Entry> victim: victims) {
+            remove(segment, victim.getKey(), victim.getValue());
+            evictions.increment();
+        }
+        segment.entries.put(key, entry);
+        segment.weight += entry.weight;
+        if (key.kind == COUPON) {
+            index(segment.keysByCoupon, key.id, key);
+            index(segment.keysByCompany, ((Coupon) entry.value).getCompanyID(), key);
+        } else {
+            index(segment.keysByCompany, key.id, key);
+            for (Coupon coupon: list(entry.value)) {
+                index(segment.keysByCoupon, coupon.getId(), key);
+            }
+        }
+    }
+
+    private void invalidate(int id, boolean coupon) {
+        long sequence = invalidationSequence.incrementAndGet();
+        (coupon ? couponStamps : companyStamps).accumulateAndGet(stripe(id), sequence, Math::max);
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                Set<Key> keys = (coupon ? segment.keysByCoupon : segment.keysByCompany).remove(id);
+                if (keys == null)
+                    continue;
+                for (Key key: keys) {
+                    Entry entry = segment.entries.get(key);
+                    if (entry != null) {
+                        remove(segment, key, entry);
+                        invalidations.increment();
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    private static void remove(Segment segment, Key key, Entry entry) {
+        segment.entries.remove(key);
+        segment.weight -= entry.weight;
+        if (key.kind == COUPON) {
+            unindex(segment.keysByCoupon, key.id, key);
+            unindex(segment.keysByCompany, ((Coupon) entry.value).getCompanyID(), key);
+        } else {
+            unindex(segment.keysByCompany, key.id, key);
+            for (Coupon coupon: list(entry.value)) {
+                unindex(segment.keysByCoupon, coupon.getId(), key);
+            }
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static int stripe(int id) {
+        return (id * 0x9E3779B9 >>> 20) & (STAMP_STRIPES - 1);
+    }
+
+    private static void index(Map<Integer, Set<Key>> index, int id, Key key) {
+        index.computeIfAbsent(id, ignored -> new HashSet<>()).add(key);
+    }
+
+    private static void unindex(Map<Integer, Set<Key>> index, int id, Key key) {
+        Set<Key> keys = index.get(id);
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+            index.remove(id);
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof Coupon)
+            return ENTRY_OVERHEAD_BYTES + weigh((Coupon) value);
+        long bytes = ENTRY_OVERHEAD_BYTES;
+        for (Coupon coupon: list(value)) {
+            bytes += weigh(coupon);
+        }
+        return bytes;
+    }
+
+    private static long weigh(Coupon coupon) {
+        return COUPON_OVERHEAD_BYTES + 2L * (length(coupon.getTitle()) + length(coupon.getDescription())
+                + length(coupon.getImage()));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Coupon> list(Object value) {
+        return (ArrayList<Coupon>) value;
+    }
+
+    private static Object copy(Object value) {
+        if (value == null)
+            return null;
+        if (value instanceof Coupon)
+            return copy((Coupon) value);
+        ArrayList<Coupon> coupons = list(value);
+        ArrayList<Coupon> copies = new ArrayList<>(coupons.size());
+        for (Coupon coupon: coupons) {
+            copies.add(copy(coupon));
+        }
+        return copies;
+    }
+
+    private static Coupon copy(Coupon coupon) {
+        return new Coupon(coupon.getId(), coupon.getCompanyID(), coupon.getCategory(), coupon.getTitle(),
+                coupon.getDescription(), coupon.getStartDate() == null ? null : (Date) coupon.getStartDate().clone(),
+                coupon.getEndDate() == null ? null : (Date) coupon.getEndDate().clone(),
+                coupon.getAmount(), coupon.getPrice(), coupon.getImage());
+    }
+
+    @Override
+    public void invalidateAll() {
+        clearedAt = invalidationSequence.incrementAndGet();
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                invalidations.add(segment.entries.size());
+                segment.entries.clear();
+                segment.keysByCoupon.clear();
+                segment.keysByCompany.clear();
+                segment.weight = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long requests = hits + misses.sum();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getLoads() {
+        return loadLatency.getCount();
+    }
+
+    @Override
+    public double getLoadMeanMicros() {
+        return loadLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getLoadP50Micros() {
+        return loadLatency.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getLoadP99Micros() {
+        return loadLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getLoadMaxMicros() {
+        return loadLatency.getMaxMicros();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public int getEntries() {
+        int entries = 0;
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                entries += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public long getWeightBytes() {
+        long weight = 0;
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                weight += segment.weight;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeightBytes() {
+        return MAX_WEIGHT_BYTES;
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("DAOs:type=CouponCache");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception ignored) {}
+    }
+}
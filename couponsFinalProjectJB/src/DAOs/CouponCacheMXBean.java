@@ -0,0 +1,27 @@
+package DAOs;
+
+/**
+ * the management view of the coupon cache, registered under "DAOs:type=CouponCache"
+ */
+public interface CouponCacheMXBean {
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+
+    long getLoads();
+    double getLoadMeanMicros();
+    long getLoadP50Micros();
+    long getLoadP99Micros();
+    long getLoadMaxMicros();
+
+    long getEvictions();
+    long getRejections();
+    long getExpirations();
+    long getInvalidations();
+
+    int getEntries();
+    long getWeightBytes();
+    long getMaxWeightBytes();
+
+    void invalidateAll();
+}
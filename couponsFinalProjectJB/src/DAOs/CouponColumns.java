@@ -0,0 +1,566 @@
+package DAOs;
+
+import javaBeans.Category;
+import javaBeans.Coupon;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * the whole coupons table in memory, one primitive array per column, for answering filtered coupon lists without
+ * the database.
+ *
+ * a filter on company, category or price walks a PriceIndex partition from the lowest matching price, so it only
+ * touches matching coupons and returns them cheapest first. a filter on none of them is a tight loop over the
+ * columns, split across cores once the table passes PARALLEL_THRESHOLD rows. customer filters only visit the rows of
+ * the customer's coupons, found through the PurchaseIndex and an IntIntMap from coupon id to row. only matching rows
+ * are turned back into Coupon objects.
+ *
+ * the table is loaded from the primary database on first use. the store follows every write to the coupons table
+ * as a CouponWriteListener; writes made during the load are replayed onto it. purchases don't say what amount they
+ * left, so they only mark the row's amount unknown, and the next query returning that row reads the amount back.
+ *
+ * the store is only used when the coupons.columns.enabled system property is true.
+ */
+public class CouponColumns extends CouponWriteListener {
+    public static final boolean ENABLED = Boolean.getBoolean("coupons.columns.enabled");
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("coupons.columns.parallelThreshold", 200_000);
+    private static final int UNKNOWN_AMOUNT = -1;
+
+    private final CouponsDBDAO couponsDBDAO;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock loadLock = new ReentrantLock();
+    private Columns columns = new Columns(16);
+    private volatile boolean loaded;
+    private List<Runnable> writesDuringLoad;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CouponColumns instance;
+
+    /**
+     * a filter over the coupons; every condition that is set must hold
+     */
+    public static class Query {
+        private int companyID;
+        private int customerID;
+        private int categoryID;
+        private double minPrice = Double.NEGATIVE_INFINITY;
+        private double maxPrice = Double.POSITIVE_INFINITY;
+        private int minEndDay = Integer.MIN_VALUE;
+
+        public Query company(int companyID) {
+            this.companyID = companyID;
+            return this;
+        }
+
+        /**
+         * only coupons this customer purchased
+         */
+        public Query customer(int customerID) {
+            this.customerID = customerID;
+            return this;
+        }
+
+        /**
+         * @param category the category, or null for every category
+         */
+        public Query category(Category category) {
+            this.categoryID = category == null ? 0 : CouponRowMapper.toCategoryID(category);
+            return this;
+        }
+
+        public Query upToPrice(double maxPrice) {
+            this.maxPrice = maxPrice;
+            return this;
+        }
+
+        public Query priceBetween(double minPrice, double maxPrice) {
+            this.minPrice = minPrice;
+            this.maxPrice = maxPrice;
+            return this;
+        }
+
+        /**
+         * only coupons that have not expired by the given day
+         */
+        public Query validOn(LocalDate day) {
+            this.minEndDay = (int) day.toEpochDay();
+            return this;
+        }
+
+        int getCompanyID() {
+            return companyID;
+        }
+
+        int getCustomerID() {
+            return customerID;
+        }
+
+        int getCategoryID() {
+            return categoryID;
+        }
+
+        double getMinPrice() {
+            return minPrice;
+        }
+
+        double getMaxPrice() {
+            return maxPrice;
+        }
+
+        int getMinEndDay() {
+            return minEndDay;
+        }
+    }
+
+    private static class Columns {
+        private int size;
+        private int[] ids;
+        private int[] companyIDs;
+        private byte[] categoryIDs;
+        private double[] prices;
+        private int[] startDays;
+        private int[] endDays;
+        private int[] amounts;
+        private int[] versions;
+        private String[] titles;
+        private String[] descriptions;
+        private String[] images;
+        private final IntIntMap rows;
+        private final PriceIndex priceIndex = new PriceIndex(Category.values().length);
+
+        private Columns(int capacity) {
+            ids = new int[capacity];
+            companyIDs = new int[capacity];
+            categoryIDs = new byte[capacity];
+            prices = new double[capacity];
+            startDays = new int[capacity];
+            endDays = new int[capacity];
+            amounts = new int[capacity];
+            versions = new int[capacity];
+            titles = new String[capacity];
+            descriptions = new String[capacity];
+            images = new String[capacity];
+            rows = new IntIntMap(capacity);
+        }
+
+        private void upsert(Coupon coupon) {
+            int row = rows.get(coupon.getId());
+            if (row < 0) {
+                if (size == ids.length)
+                    grow();
+                row = size++;
+                rows.put(coupon.getId(), row);
+            } else
+                priceIndex.remove(ids[row], companyIDs[row], categoryIDs[row], prices[row]);
+            ids[row] = coupon.getId();
+            companyIDs[row] = coupon.getCompanyID();
+            categoryIDs[row] = (byte) CouponRowMapper.toCategoryID(coupon.getCategory());
+            prices[row] = coupon.getPrice();
+            startDays[row] = (int) coupon.getStartDate().toLocalDate().toEpochDay();
+            endDays[row] = (int) coupon.getEndDate().toLocalDate().toEpochDay();
+            amounts[row] = coupon.getAmount();
+            versions[row]++;
+            titles[row] = coupon.getTitle();
+            descriptions[row] = coupon.getDescription();
+            images[row] = coupon.getImage();
+            priceIndex.add(ids[row], companyIDs[row], categoryIDs[row], prices[row]);
+        }
+
+        /**
+         * moves the last row into the removed one, so the columns stay dense
+         */
+        private void remove(int couponID) {
+            int row = rows.remove(couponID);
+            if (row < 0)
+                return;
+            priceIndex.remove(couponID, companyIDs[row], categoryIDs[row], prices[row]);
+            int last = --size;
+            if (row != last) {
+                ids[row] = ids[last];
+                companyIDs[row] = companyIDs[last];
+                categoryIDs[row] = categoryIDs[last];
+                prices[row] = prices[last];
+                startDays[row] = startDays[last];
+                endDays[row] = endDays[last];
+                amounts[row] = amounts[last];
+                versions[row] = versions[last];
+                titles[row] = titles[last];
+                descriptions[row] = descriptions[last];
+                images[row] = images[last];
+                rows.put(ids[row], row);
+            }
+            titles[last] = null;
+            descriptions[last] = null;
+            images[last] = null;
+        }
+
+        private void removeCompany(int companyID) {
+            for (int row = size - 1; row >= 0; row--) {
+                if (companyIDs[row] == companyID)
+                    remove(ids[row]);
+            }
+        }
+
+        private void amountChanged(int couponID) {
+            int row = rows.get(couponID);
+            if (row >= 0) {
+                amounts[row] = UNKNOWN_AMOUNT;
+                versions[row]++;
+            }
+        }
+
+        private boolean matches(int row, int companyID, int categoryID, double minPrice, double maxPrice, int minEndDay) {
+            return (companyID == 0 || companyIDs[row] == companyID)
+                    && (categoryID == 0 || categoryIDs[row] == categoryID)
+                    && prices[row] >= minPrice && prices[row] <= maxPrice
+                    && endDays[row] >= minEndDay;
+        }
+
+        private Coupon toCoupon(int row) {
+            return new Coupon(ids[row], companyIDs[row], CouponRowMapper.toCategory(categoryIDs[row]), titles[row],
+                    descriptions[row], Date.valueOf(LocalDate.ofEpochDay(startDays[row])),
+                    Date.valueOf(LocalDate.ofEpochDay(endDays[row])), amounts[row], prices[row], images[row]);
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            companyIDs = Arrays.copyOf(companyIDs, capacity);
+            categoryIDs = Arrays.copyOf(categoryIDs, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            startDays = Arrays.copyOf(startDays, capacity);
+            endDays = Arrays.copyOf(endDays, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+            images = Arrays.copyOf(images, capacity);
+        }
+
+        private long estimatedBytes() {
+            long bytes = ids.length * (4L * 7 + 8 + 1 + 4 * 3) + rows.estimatedBytes() + priceIndex.estimatedBytes();
+            for (int row = 0; row < size; row++) {
+                bytes += stringBytes(titles[row]) + stringBytes(descriptions[row]) + stringBytes(images[row]);
+            }
+            return bytes;
+        }
+
+        private static long stringBytes(String s) {
+            return s == null ? 0 : 40 + s.length();
+        }
+    }
+
+    private CouponColumns() throws SQLException {
+        couponsDBDAO = new CouponsDBDAO();
+        listen();
+    }
+
+    public static CouponColumns getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CouponColumns();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param query the conditions the coupons must meet
+     * @return the matching coupons, in no particular order
+     * @throws SQLException if the table or a customer's purchases had to be loaded and that failed
+     */
+    public ArrayList<Coupon> find(Query query) throws SQLException {
+        return find(query, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param query the conditions the coupons must meet
+     * @param limit the most coupons to return
+     * @return the cheapest limit coupons matching the query, cheapest first, ties in coupon id order
+     * @throws SQLException if the table or a customer's purchases had to be loaded and that failed
+     */
+    public ArrayList<Coupon> findCheapest(Query query, int limit) throws SQLException {
+        return find(query, limit);
+    }
+
+    private ArrayList<Coupon> find(Query query, int limit) throws SQLException {
+        int[] candidates = candidates(query);
+        ensureLoaded();
+
+        ArrayList<Coupon> coupons;
+        List<Integer> unknownAmounts = new ArrayList<>();
+        int[] versions;
+        lock.readLock().lock();
+        try {
+            int[] rows = match(columns, query, candidates, limit);
+            coupons = new ArrayList<>(rows.length);
+            versions = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                Coupon coupon = columns.toCoupon(rows[i]);
+                coupons.add(coupon);
+                versions[i] = columns.versions[rows[i]];
+                if (coupon.getAmount() == UNKNOWN_AMOUNT)
+                    unknownAmounts.add(i);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (!unknownAmounts.isEmpty())
+            refreshAmounts(coupons, versions, unknownAmounts);
+        return coupons;
+    }
+
+    /**
+     * @param query the conditions the coupons must meet
+     * @return the ids of the matching coupons, in no particular order
+     * @throws SQLException if the table or a customer's purchases had to be loaded and that failed
+     */
+    public int[] findIDs(Query query) throws SQLException {
+        int[] candidates = candidates(query);
+        ensureLoaded();
+
+        lock.readLock().lock();
+        try {
+            int[] rows = match(columns, query, candidates, Integer.MAX_VALUE);
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = columns.ids[rows[i]];
+            }
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return columns.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the heap held by the columns, the row index and the coupons' strings
+     */
+    public long getEstimatedBytes() {
+        lock.readLock().lock();
+        try {
+            return columns.estimatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * reads the whole coupons table into the columns, if that hasn't happened yet
+     * @throws SQLException in case of sql issues
+     */
+    public void ensureLoaded() throws SQLException {
+        if (loaded)
+            return;
+        loadLock.lock();
+        try {
+            if (loaded)
+                return;
+            lock.writeLock().lock();
+            try {
+                writesDuringLoad = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Columns fresh = new Columns(1024);
+            boolean complete = false;
+            try (Stream<Coupon> coupons = couponsDBDAO.streamAllCouponsFromPrimary()) {
+                fresh.priceIndex.startBulkLoad();
+                coupons.forEach(fresh::upsert);
+                fresh.priceIndex.finishBulkLoad();
+                complete = true;
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof SQLException)
+                    throw (SQLException) e.getCause();
+                throw e;
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    if (complete) {
+                        columns = fresh;
+                        for (Runnable write: writesDuringLoad) {
+                            write.run();
+                        }
+                    }
+                    writesDuringLoad = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            loaded = true;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    @Override
+    void couponsWritten(List<Coupon> coupons) {
+        write(columns -> coupons.forEach(columns::upsert));
+    }
+
+    @Override
+    void couponRemoved(int couponID) {
+        write(columns -> columns.remove(couponID));
+    }
+
+    @Override
+    void couponsRemoved(List<Integer> couponIDs) {
+        write(columns -> couponIDs.forEach(columns::remove));
+    }
+
+    @Override
+    void expiredCouponsRemoved(List<Integer> couponIDs) {
+        int today = (int) LocalDate.now().toEpochDay();
+        write(columns -> {
+            for (int couponID: couponIDs) {
+                int row = columns.rows.get(couponID);
+                if (row >= 0 && columns.endDays[row] < today)
+                    columns.remove(couponID);
+            }
+        });
+    }
+
+    @Override
+    void companyRemoved(int companyID) {
+        write(columns -> columns.removeCompany(companyID));
+    }
+
+    static void amountChanged(int couponID) {
+        CouponColumns store = instance;
+        if (store != null)
+            store.write(columns -> columns.amountChanged(couponID));
+    }
+
+    private interface Write {
+        void apply(Columns columns);
+    }
+
+    private void write(Write write) {
+        lock.writeLock().lock();
+        try {
+            write.apply(columns);
+            if (writesDuringLoad != null)
+                writesDuringLoad.add(() -> write.apply(columns));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int[] candidates(Query query) throws SQLException {
+        if (query.customerID == 0)
+            return null;
+        if (PurchaseIndex.ENABLED)
+            return PurchaseIndex.getInstance().getCouponIDs(query.customerID);
+        return couponsDBDAO.getPurchasedCouponIDs(query.customerID).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param candidates the coupon ids to look at, or null for the whole table
+     * @param limit the most rows to return; when the query is limited, the cheapest ones are returned
+     * @return the rows matching the query, cheapest first and ties in coupon id order, unless the query has no
+     * conditions, no customer and no limit, in which case they are in table order
+     */
+    private static int[] match(Columns columns, Query query, int[] candidates, int limit) {
+        if (limit <= 0)
+            return new int[0];
+        int companyID = query.companyID;
+        int categoryID = query.categoryID;
+        double minPrice = query.minPrice;
+        double maxPrice = query.maxPrice;
+        int minEndDay = query.minEndDay;
+
+        if (candidates != null) {
+            int[] rows = new int[candidates.length];
+            int found = 0;
+            for (int couponID: candidates) {
+                int row = columns.rows.get(couponID);
+                if (row >= 0 && columns.matches(row, companyID, categoryID, minPrice, maxPrice, minEndDay))
+                    rows[found++] = row;
+            }
+            // sorted whether or not the limit cuts anything, so the order never depends on the purchase order
+            return IntStream.of(Arrays.copyOf(rows, found)).boxed().sorted((a, b) -> {
+                int comparison = Double.compare(columns.prices[a], columns.prices[b]);
+                return comparison != 0 ? comparison : Integer.compare(columns.ids[a], columns.ids[b]);
+            }).limit(limit).mapToInt(Integer::intValue).toArray();
+        }
+
+        if (companyID != 0 || categoryID != 0 || minPrice != Double.NEGATIVE_INFINITY
+                || maxPrice != Double.POSITIVE_INFINITY || limit != Integer.MAX_VALUE) {
+            int[][] rows = {new int[16]};
+            int[] found = {0};
+            columns.priceIndex.scan(companyID, categoryID, minPrice, maxPrice, couponID -> {
+                int row = columns.rows.get(couponID);
+                if (columns.endDays[row] >= minEndDay) {
+                    if (found[0] == rows[0].length)
+                        rows[0] = Arrays.copyOf(rows[0], found[0] * 2);
+                    rows[0][found[0]++] = row;
+                }
+                return found[0] < limit;
+            });
+            return Arrays.copyOf(rows[0], found[0]);
+        }
+
+        if (columns.size >= PARALLEL_THRESHOLD)
+            return IntStream.range(0, columns.size).parallel()
+                    .filter(row -> columns.endDays[row] >= minEndDay).toArray();
+
+        int[] rows = new int[16];
+        int found = 0;
+        for (int row = 0; row < columns.size; row++) {
+            if (columns.endDays[row] >= minEndDay) {
+                if (found == rows.length)
+                    rows = Arrays.copyOf(rows, found * 2);
+                rows[found++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, found);
+    }
+
+    /**
+     * reads the amounts purchases left unknown from the primary database, and stores each one back unless the row
+     * changed again meanwhile
+     */
+    private void refreshAmounts(ArrayList<Coupon> coupons, int[] versions, List<Integer> positions) throws SQLException {
+        int[] couponIDs = new int[positions.size()];
+        for (int i = 0; i < couponIDs.length; i++) {
+            couponIDs[i] = coupons.get(positions.get(i)).getId();
+        }
+        IntIntMap amounts = couponsDBDAO.getAmounts(couponIDs);
+
+        lock.writeLock().lock();
+        try {
+            for (int position: positions) {
+                Coupon coupon = coupons.get(position);
+                int amount = amounts.get(coupon.getId());
+                coupon.setAmount(Math.max(amount, 0));
+                int row = columns.rows.get(coupon.getId());
+                if (amount >= 0 && row >= 0 && columns.versions[row] == versions[position])
+                    columns.amounts[row] = amount;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package DAOs;
+
+import javaBeans.Category;
+import javaBeans.Coupon;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * builds coupons out of result set rows, for any query that selects the coupons columns.
+ *
+ * there is one mapper per query; it looks its columns up by label on the first row it sees and then reads them by
+ * index, so the same code works whether the coupons columns start at 1 or come after a join. when a label appears
+ * twice, the column of the coupons table wins. category ids are translated through a cached table instead of
+ * Category.values(), which copies the array on every call.
+ */
+public final class CouponRowMapper implements ResultSetStream.RowMapper<Coupon> {
+    private static final String[] LABELS = {"id", "company_id", "category_id", "title", "description",
+            "start_date", "end_date", "amount", "price", "image"};
+    private static final Category[] CATEGORIES = Category.values();
+    private static final ConcurrentHashMap<String, CouponRowMapper> SHAPES = new ConcurrentHashMap<>();
+
+    private volatile int[] columns;
+
+    private CouponRowMapper() {
+    }
+
+    /**
+     * @param sql the query the rows come from; must be a constant, since one mapper is kept per query text
+     * @return the mapper for that query
+     */
+    public static CouponRowMapper forQuery(String sql) {
+        return SHAPES.computeIfAbsent(sql, key -> new CouponRowMapper());
+    }
+
+    /**
+     * @param rs a result set positioned on a row
+     * @return the coupon on that row
+     * @throws SQLException if a coupons column is missing or can't be read
+     */
+    @Override
+    public Coupon map(ResultSet rs) throws SQLException {
+        int[] c = columns;
+        if (c == null)
+            columns = c = resolve(rs.getMetaData());
+        return new Coupon(rs.getInt(c[0]), rs.getInt(c[1]), toCategory(rs.getInt(c[2])), rs.getString(c[3]),
+                rs.getString(c[4]), rs.getDate(c[5]), rs.getDate(c[6]), rs.getInt(c[7]), rs.getDouble(c[8]),
+                rs.getString(c[9]));
+    }
+
+    /**
+     * @param categoryID a categories table id
+     * @return the matching category
+     */
+    public static Category toCategory(int categoryID) {
+        return CATEGORIES[categoryID - 1];
+    }
+
+    /**
+     * @param category a category
+     * @return its categories table id; the table lists the categories in enum order
+     */
+    public static int toCategoryID(Category category) {
+        return category.ordinal() + 1;
+    }
+
+    private static int[] resolve(ResultSetMetaData metaData) throws SQLException {
+        int[] resolved = new int[LABELS.length];
+        for (int column = 1; column <= metaData.getColumnCount(); column++) {
+            String label = metaData.getColumnLabel(column);
+            for (int i = 0; i < LABELS.length; i++) {
+                if (LABELS[i].equalsIgnoreCase(label)
+                        && (resolved[i] == 0 || "coupons".equalsIgnoreCase(metaData.getTableName(column)))) {
+                    resolved[i] = column;
+                }
+            }
+        }
+        for (int i = 0; i < LABELS.length; i++) {
+            if (resolved[i] == 0)
+                throw new SQLException("the query does not select coupons." + LABELS[i]);
+        }
+        return resolved;
+    }
+}
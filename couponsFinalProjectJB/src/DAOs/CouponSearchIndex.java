@@ -0,0 +1,663 @@
+package DAOs;
+
+import javaBeans.Coupon;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * an inverted index over coupon titles and descriptions, for searching coupons without a LIKE scan.
+ *
+ * titles and descriptions are split into lowercase words. every word has a posting list of the documents it appears
+ * in, with how often it appears (a title word counts twice). a posting list is a byte array of varint-encoded
+ * document number gaps and frequencies, with a skip entry every SKIP_INTERVAL postings so an intersection can jump
+ * over the blocks it doesn't need. a search intersects the lists of all its words, rarest first, and ranks the
+ * matches by tf-idf, dropping expired coupons.
+ *
+ * a coupon's document number is assigned when it is indexed, and a new one is assigned every time it changes, so
+ * posting lists only ever grow at the end. the old document is marked dead; once half the documents are dead, the
+ * lists are rewritten without them.
+ *
+ * the first search starts building the index in the background and returns null, as does every search until the
+ * build is done, so the caller answers from the database meanwhile. only one build runs at a time; after a failed one
+ * the next is not started before a backoff that doubles with every failure, from BUILD_RETRY up to MAX_BUILD_RETRY. the build streams the coupons from the primary
+ * database and tokenizes them in chunks of BUILD_CHUNK, each in parallel across cores, so only one chunk of coupons
+ * is held at a time. the index follows every write to the coupons table as a CouponWriteListener; writes made during
+ * a build are replayed onto it.
+ *
+ * building the index reads the whole coupons table and holds every word in memory, so it is only used when the
+ * coupons.search.enabled system property is true.
+ */
+public class CouponSearchIndex extends CouponWriteListener {
+    public static final boolean ENABLED = Boolean.getBoolean("coupons.search.enabled");
+    private static final int SKIP_INTERVAL = 128;
+    private static final int TITLE_WEIGHT = 2;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 32;
+    private static final int BUILD_CHUNK = 10_000;
+    private static final long BUILD_RETRY = Long.getLong("coupons.search.buildRetryMs", 1_000);
+    private static final long MAX_BUILD_RETRY = Long.getLong("coupons.search.maxBuildRetryMs", 300_000);
+    private static final double[] FREQUENCY_SCORES = IntStream.range(0, 64).mapToDouble(f -> f == 0 ? 0 : 1 + Math.log(f)).toArray();
+    private static final Logger LOGGER = Logger.getLogger(CouponSearchIndex.class.getName());
+
+    private final CouponsDBDAO couponsDBDAO;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    private Index index = new Index(16);
+    private volatile boolean built;
+    private final AtomicBoolean building = new AtomicBoolean();
+    private volatile long nextBuildAttempt;
+    private long buildRetry = BUILD_RETRY;
+    private List<Runnable> writesDuringRebuild;
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CouponSearchIndex instance;
+
+    /**
+     * the documents containing one word, in document number order
+     */
+    private static class Postings {
+        private byte[] data = new byte[8];
+        private int length;
+        private int count;
+        private int lastDocument = -1;
+        private int[] skipDocuments = new int[1];
+        private int[] skipOffsets = new int[1];
+        private int[] blockMaxFrequencies = new int[1];
+        private int skips;
+        private int maxFrequency;
+
+        private void add(int document, int frequency) {
+            if (count % SKIP_INTERVAL == 0) {
+                if (skips == skipDocuments.length) {
+                    skipDocuments = Arrays.copyOf(skipDocuments, skips * 2);
+                    skipOffsets = Arrays.copyOf(skipOffsets, skips * 2);
+                    blockMaxFrequencies = Arrays.copyOf(blockMaxFrequencies, skips * 2);
+                }
+                skipDocuments[skips] = lastDocument;
+                skipOffsets[skips++] = length;
+            }
+            blockMaxFrequencies[skips - 1] = Math.max(blockMaxFrequencies[skips - 1], frequency);
+            maxFrequency = Math.max(maxFrequency, frequency);
+            if (length + 10 > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            length = writeVarint(data, length, document - lastDocument);
+            length = writeVarint(data, length, frequency);
+            lastDocument = document;
+            count++;
+        }
+
+        private long estimatedBytes() {
+            return 56 + 16 + data.length + 48 + 12L * skipDocuments.length;
+        }
+    }
+
+    /**
+     * reads a posting list forward, jumping ahead through its skip entries
+     */
+    private static class Cursor {
+        private final Postings postings;
+        private int offset;
+        private int position;
+        private int document = -1;
+        private int frequency;
+
+        private Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        private boolean next() {
+            if (offset >= postings.length)
+                return false;
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postings.data[offset++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            document += value;
+            value = 0;
+            shift = 0;
+            do {
+                b = postings.data[offset++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            frequency = value;
+            position++;
+            return true;
+        }
+
+        /**
+         * moves to just before the first posting of a block
+         */
+        private void jumpTo(int block) {
+            offset = postings.skipOffsets[block];
+            document = postings.skipDocuments[block];
+            position = block * SKIP_INTERVAL;
+        }
+
+        /**
+         * @return false if no document at or after target is left
+         */
+        private boolean advance(int target) {
+            if (document >= target)
+                return true;
+            int next = position / SKIP_INTERVAL + 1;
+            if (next < postings.skips && postings.skipDocuments[next] < target) {
+                // the target is past this block; find the last block starting before it
+                int low = next;
+                int high = postings.skips - 1;
+                while (low < high) {
+                    int middle = (low + high + 1) >>> 1;
+                    if (postings.skipDocuments[middle] < target)
+                        low = middle;
+                    else
+                        high = middle - 1;
+                }
+                jumpTo(low);
+            }
+            while (next()) {
+                if (document >= target)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * the posting lists and the documents they refer to
+     */
+    private static class Index {
+        private final HashMap<String, Postings> postings = new HashMap<>();
+        private int[] couponIDs;
+        private int[] companyIDs;
+        private int[] endDays;
+        private int documents;
+        private final BitSet dead = new BitSet();
+        private int deadCount;
+        private final IntIntMap documentsByCoupon;
+
+        private Index(int capacity) {
+            couponIDs = new int[capacity];
+            companyIDs = new int[capacity];
+            endDays = new int[capacity];
+            documentsByCoupon = new IntIntMap(capacity);
+        }
+
+        private int newDocument(int couponID, int companyID, int endDay) {
+            if (documents == couponIDs.length) {
+                couponIDs = Arrays.copyOf(couponIDs, documents * 2);
+                companyIDs = Arrays.copyOf(companyIDs, documents * 2);
+                endDays = Arrays.copyOf(endDays, documents * 2);
+            }
+            couponIDs[documents] = couponID;
+            companyIDs[documents] = companyID;
+            endDays[documents] = endDay;
+            documentsByCoupon.put(couponID, documents);
+            return documents++;
+        }
+
+        private void upsert(Coupon coupon) {
+            remove(coupon.getId());
+            int document = newDocument(coupon.getId(), coupon.getCompanyID(),
+                    (int) coupon.getEndDate().toLocalDate().toEpochDay());
+            for (Map.Entry<String, Integer> word: frequencies(coupon.getTitle(), coupon.getDescription()).entrySet()) {
+                postings.computeIfAbsent(word.getKey(), key -> new Postings()).add(document, word.getValue());
+            }
+        }
+
+        private void remove(int couponID) {
+            int document = documentsByCoupon.remove(couponID);
+            if (document < 0)
+                return;
+            dead.set(document);
+            deadCount++;
+            if (deadCount > 1024 && deadCount * 2 > documents)
+                compact();
+        }
+
+        private void removeCompany(int companyID) {
+            List<Integer> removed = new ArrayList<>();
+            for (int document = 0; document < documents; document++) {
+                if (companyIDs[document] == companyID && !dead.get(document))
+                    removed.add(couponIDs[document]);
+            }
+            removed.forEach(this::remove);
+        }
+
+        /**
+         * renumbers the live documents densely and rewrites every posting list without the dead ones
+         */
+        private void compact() {
+            int[] renumbered = new int[documents];
+            int live = 0;
+            for (int document = 0; document < documents; document++) {
+                renumbered[document] = dead.get(document) ? -1 : live++;
+            }
+
+            for (Map.Entry<String, Postings> word: postings.entrySet()) {
+                Cursor cursor = new Cursor(word.getValue());
+                Postings rewritten = new Postings();
+                while (cursor.next()) {
+                    if (renumbered[cursor.document] >= 0)
+                        rewritten.add(renumbered[cursor.document], cursor.frequency);
+                }
+                word.setValue(rewritten);
+            }
+            postings.values().removeIf(list -> list.count == 0);
+
+            for (int document = 0; document < documents; document++) {
+                int target = renumbered[document];
+                if (target >= 0) {
+                    couponIDs[target] = couponIDs[document];
+                    companyIDs[target] = companyIDs[document];
+                    endDays[target] = endDays[document];
+                    documentsByCoupon.put(couponIDs[target], target);
+                }
+            }
+            documents = live;
+            dead.clear();
+            deadCount = 0;
+        }
+    }
+
+    private CouponSearchIndex() throws SQLException {
+        couponsDBDAO = new CouponsDBDAO();
+        listen();
+    }
+
+    public static CouponSearchIndex getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CouponSearchIndex();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * finds the coupons whose title or description contains every word of the text
+     * @param text the words to search for
+     * @param limit the most coupon ids to return
+     * @return the matching coupon ids, best match first, with expired coupons left out; or null while the index is
+     * still being built
+     */
+    public int[] search(String text, int limit) {
+        if (!built) {
+            buildInBackground();
+            return null;
+        }
+        Set<String> words = frequencies(text, null).keySet();
+        if (words.isEmpty() || limit <= 0)
+            return new int[0];
+
+        lock.readLock().lock();
+        try {
+            Index index = this.index;
+            List<Postings> lists = new ArrayList<>();
+            for (String word: words) {
+                Postings list = index.postings.get(word);
+                if (list == null)
+                    return new int[0];
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a.count, b.count));
+
+            Cursor[] cursors = new Cursor[lists.size()];
+            double[] weights = new double[lists.size()];
+            int live = Math.max(1, index.documents - index.deadCount);
+            double othersMaxScore = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new Cursor(lists.get(i));
+                weights[i] = Math.log(1 + (double) live / lists.get(i).count);
+                if (i > 0)
+                    othersMaxScore += termScore(lists.get(i).maxFrequency, weights[i]);
+            }
+
+            int today = (int) LocalDate.now().toEpochDay();
+            PriorityQueue<double[]> best = new PriorityQueue<>(limit + 1, (a, b) -> Double.compare(a[0], b[0]));
+            Cursor lead = cursors[0];
+            Postings leadList = lead.postings;
+            int target = -1;
+            candidates:
+            while (true) {
+                if (best.size() == limit && lead.position % SKIP_INTERVAL == 0) {
+                    // skip the lead's blocks whose best possible score can't beat the worst one kept
+                    int block = lead.position / SKIP_INTERVAL;
+                    int first = block;
+                    while (block < leadList.skips
+                            && termScore(leadList.blockMaxFrequencies[block], weights[0]) + othersMaxScore <= best.peek()[0])
+                        block++;
+                    if (block == leadList.skips)
+                        break;
+                    if (block != first) {
+                        lead.jumpTo(block);
+                        target = -1;
+                    }
+                }
+                if (!(target > lead.document ? lead.advance(target) : lead.next()))
+                    break;
+                int document = lead.document;
+                for (int i = 1; i < cursors.length; i++) {
+                    if (!cursors[i].advance(document))
+                        break candidates;
+                    if (cursors[i].document != document) {
+                        // leapfrog: the lead can go straight to where this list landed
+                        target = cursors[i].document;
+                        continue candidates;
+                    }
+                }
+                if (index.dead.get(document) || index.endDays[document] < today)
+                    continue;
+
+                double score = 0;
+                for (int i = 0; i < cursors.length; i++) {
+                    score += termScore(cursors[i].frequency, weights[i]);
+                }
+                if (best.size() < limit)
+                    best.add(new double[] {score, document});
+                else if (score > best.peek()[0]) {
+                    best.poll();
+                    best.add(new double[] {score, document});
+                }
+            }
+
+            int[] couponIDs = new int[best.size()];
+            for (int i = couponIDs.length - 1; i >= 0; i--) {
+                couponIDs[i] = index.couponIDs[(int) best.poll()[1]];
+            }
+            return couponIDs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * builds the index again from the primary database, tokenizing the coupons in parallel across cores
+     * @throws SQLException in case of sql issues
+     */
+    public void rebuild() throws SQLException {
+        rebuildLock.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                writesDuringRebuild = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Index fresh = null;
+            try {
+                fresh = build();
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    if (fresh != null) {
+                        index = fresh;
+                        for (Runnable write: writesDuringRebuild) {
+                            write.run();
+                        }
+                    }
+                    writesDuringRebuild = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            built = true;
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * starts a rebuild on a background thread, unless one is already running or the backoff after a failed one has not
+     * passed yet; a failed build is retried by the first search after the backoff
+     */
+    private void buildInBackground() {
+        if (System.currentTimeMillis() < nextBuildAttempt || !building.compareAndSet(false, true))
+            return;
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+                buildRetry = BUILD_RETRY;
+            } catch (Exception e) {
+                nextBuildAttempt = System.currentTimeMillis() + buildRetry;
+                LOGGER.log(Level.WARNING, "could not build the coupon search index; searches go to the database, and "
+                        + "the build is retried in " + buildRetry + "ms", e);
+                buildRetry = Math.min(buildRetry * 2, MAX_BUILD_RETRY);
+            } finally {
+                building.set(false);
+            }
+        }, "coupons-search-index-build");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public int getDocuments() {
+        lock.readLock().lock();
+        try {
+            return index.documents - index.deadCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getWords() {
+        lock.readLock().lock();
+        try {
+            return index.postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the heap held by the posting lists, their words and the document table
+     */
+    public long getEstimatedBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 12L * index.couponIDs.length + index.documentsByCoupon.estimatedBytes();
+            for (Map.Entry<String, Postings> word: index.postings.entrySet()) {
+                bytes += 32 + 40 + word.getKey().length() + word.getValue().estimatedBytes();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    void couponsWritten(List<Coupon> coupons) {
+        write(index -> coupons.forEach(index::upsert));
+    }
+
+    @Override
+    void couponRemoved(int couponID) {
+        write(index -> index.remove(couponID));
+    }
+
+    @Override
+    void couponsRemoved(List<Integer> couponIDs) {
+        write(index -> couponIDs.forEach(index::remove));
+    }
+
+    @Override
+    void expiredCouponsRemoved(List<Integer> couponIDs) {
+        int today = (int) LocalDate.now().toEpochDay();
+        write(index -> {
+            for (int couponID: couponIDs) {
+                int document = index.documentsByCoupon.get(couponID);
+                if (document >= 0 && index.endDays[document] < today)
+                    index.remove(couponID);
+            }
+        });
+    }
+
+    @Override
+    void companyRemoved(int companyID) {
+        write(index -> index.removeCompany(companyID));
+    }
+
+    private interface Write {
+        void apply(Index index);
+    }
+
+    private void write(Write write) {
+        lock.writeLock().lock();
+        try {
+            write.apply(index);
+            if (writesDuringRebuild != null)
+                writesDuringRebuild.add(() -> write.apply(index));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * streams every coupon from the primary database and indexes them a chunk at a time; documents are numbered in
+     * coupon id order, so each chunk's postings follow the previous chunk's
+     */
+    private Index build() throws SQLException {
+        Index fresh = new Index(BUILD_CHUNK);
+        List<Coupon> chunk = new ArrayList<>(BUILD_CHUNK);
+        try (Stream<Coupon> stream = couponsDBDAO.streamAllCouponsFromPrimary()) {
+            Iterator<Coupon> coupons = stream.iterator();
+            while (coupons.hasNext()) {
+                chunk.add(coupons.next());
+                if (chunk.size() == BUILD_CHUNK) {
+                    addChunk(fresh, chunk);
+                    chunk.clear();
+                }
+            }
+            addChunk(fresh, chunk);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        }
+
+        for (Postings postings: fresh.postings.values()) {
+            postings.data = Arrays.copyOf(postings.data, postings.length);
+        }
+        return fresh;
+    }
+
+    /**
+     * tokenizes slices of the chunk on all cores, then appends the slices' postings to each word's list in order
+     */
+    private static void addChunk(Index fresh, List<Coupon> chunk) {
+        int first = fresh.documents;
+        for (Coupon coupon: chunk) {
+            fresh.newDocument(coupon.getId(), coupon.getCompanyID(), (int) coupon.getEndDate().toLocalDate().toEpochDay());
+        }
+
+        int slices = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), chunk.size() / 1000));
+        int sliceSize = (chunk.size() + slices - 1) / slices;
+        List<HashMap<String, int[]>> sliced = IntStream.range(0, slices).parallel().mapToObj(slice -> {
+            HashMap<String, int[]> postings = new HashMap<>();
+            int end = Math.min(chunk.size(), (slice + 1) * sliceSize);
+            for (int i = slice * sliceSize; i < end; i++) {
+                Coupon coupon = chunk.get(i);
+                for (Map.Entry<String, Integer> word: frequencies(coupon.getTitle(), coupon.getDescription()).entrySet()) {
+                    int[] list = postings.computeIfAbsent(word.getKey(), key -> new int[] {0, 0, 0, 0, 0});
+                    if (list[0] + 2 >= list.length) {
+                        list = Arrays.copyOf(list, list.length * 2);
+                        postings.put(word.getKey(), list);
+                    }
+                    list[++list[0]] = first + i;
+                    list[++list[0]] = word.getValue();
+                }
+            }
+            return postings;
+        }).collect(Collectors.toList());
+
+        // the lists are created up front, so the parallel appends below only read the map
+        Set<String> words = new HashSet<>();
+        sliced.forEach(postings -> words.addAll(postings.keySet()));
+        for (String word: words) {
+            fresh.postings.computeIfAbsent(word, key -> new Postings());
+        }
+        words.parallelStream().forEach(word -> {
+            Postings postings = fresh.postings.get(word);
+            for (HashMap<String, int[]> slice: sliced) {
+                int[] list = slice.get(word);
+                if (list == null)
+                    continue;
+                for (int i = 1; i < list[0]; i += 2) {
+                    postings.add(list[i], list[i + 1]);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return each word of the title and description, lowercased, with how often it appears; title words count double
+     */
+    private static Map<String, Integer> frequencies(String title, String description) {
+        Map<String, Integer> frequencies = new LinkedHashMap<>();
+        addWords(frequencies, title, TITLE_WEIGHT);
+        addWords(frequencies, description, 1);
+        return frequencies;
+    }
+
+    private static void addWords(Map<String, Integer> frequencies, String text, int weight) {
+        if (text == null)
+            return;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0)
+                start = i;
+            else if (!wordCharacter && start >= 0) {
+                if (i - start >= MIN_WORD_LENGTH)
+                    frequencies.merge(text.substring(start, Math.min(i, start + MAX_WORD_LENGTH)).toLowerCase(),
+                            weight, Integer::sum);
+                start = -1;
+            }
+        }
+    }
+
+    private static double termScore(int frequency, double weight) {
+        return frequency < FREQUENCY_SCORES.length ? FREQUENCY_SCORES[frequency] * weight : (1 + Math.log(frequency)) * weight;
+    }
+
+    private static int writeVarint(byte[] data, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            data[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -0,0 +1,66 @@
+package DAOs;
+
+import javaBeans.Coupon;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * an in-memory copy of the coupons table that has to follow its writes.
+ *
+ * the DAOs report every committed write to the coupons table through the static notify methods, which pass it on to
+ * each listener that called listen. a listener is notified on the thread that made the write, right after it commits.
+ */
+abstract class CouponWriteListener {
+    private static final List<CouponWriteListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * starts passing writes to this listener
+     */
+    final void listen() {
+        LISTENERS.add(this);
+    }
+
+    abstract void couponsWritten(List<Coupon> coupons);
+
+    abstract void couponRemoved(int couponID);
+
+    abstract void couponsRemoved(List<Integer> couponIDs);
+
+    /**
+     * the database kept those of the coupons that have not expired yet
+     */
+    abstract void expiredCouponsRemoved(List<Integer> couponIDs);
+
+    abstract void companyRemoved(int companyID);
+
+    static void notifyCouponsWritten(List<Coupon> coupons) {
+        for (CouponWriteListener listener: LISTENERS) {
+            listener.couponsWritten(coupons);
+        }
+    }
+
+    static void notifyCouponRemoved(int couponID) {
+        for (CouponWriteListener listener: LISTENERS) {
+            listener.couponRemoved(couponID);
+        }
+    }
+
+    static void notifyCouponsRemoved(List<Integer> couponIDs) {
+        for (CouponWriteListener listener: LISTENERS) {
+            listener.couponsRemoved(couponIDs);
+        }
+    }
+
+    static void notifyExpiredCouponsRemoved(List<Integer> couponIDs) {
+        for (CouponWriteListener listener: LISTENERS) {
+            listener.expiredCouponsRemoved(couponIDs);
+        }
+    }
+
+    static void notifyCompanyRemoved(int companyID) {
+        for (CouponWriteListener listener: LISTENERS) {
+            listener.companyRemoved(companyID);
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package DAOs;
 
-import Connections.ConnectionPool;
+import Connections.ConnectionRouter;
 import javaBeans.Category;
 import javaBeans.Coupon;
 import java.sql.*;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
 public class CouponsDBDAO implements CouponsDAO{
-    private ConnectionPool connectionPool;
+    private static final int MAX_PURCHASE_ATTEMPTS = 3;
+    private ConnectionRouter connectionRouter;
 
     public CouponsDBDAO() throws SQLException {
-        this.connectionPool = ConnectionPool.getInstance();
+        this.connectionRouter = ConnectionRouter.getInstance();
     }
 
     /**
@@ -21,14 +33,14 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public void addCoupon(Coupon coupon) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "insert into coupons" +
                     "(company_id, category_id, title, description, start_date, end_date, amount, price, image) " +
                     "values(?, ?, ?, ?, ?, ?, ?, ?, ?);";
 
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql, Statement.RETURN_GENERATED_KEYS);
             statement.setInt(1, coupon.getCompanyID());
             statement.setInt(2, findCategoryID(coupon.getCategory()));
             statement.setString(3, coupon.getTitle());
@@ -39,13 +51,108 @@ public class CouponsDBDAO implements CouponsDAO{
             statement.setDouble(8, coupon.getPrice());
             statement.setString(9, coupon.getImage());
             statement.executeUpdate();
-            ResultSet rs = statement.getGeneratedKeys();
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                coupon.setId(id);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if (rs.next()) {
+                    int id = rs.getInt(1);
+                    coupon.setId(id);
+                }
+            }
+            CouponWriteListener.notifyCouponsWritten(List.of(coupon));
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            CouponCache.companyChanged(coupon.getCompanyID());
+        }
+    }
+
+    /**
+     * Adds a chunk of new coupons to the database with a single multi-row insert, in one transaction.
+     *
+     * The generated IDs are written back to the coupon objects in the order they were given.
+     *
+     * @param coupons The coupons to be added.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public void addCoupons(List<Coupon> coupons) throws SQLException {
+        if (coupons.isEmpty())
+            return;
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            StringBuilder sql = new StringBuilder("insert into coupons" +
+                    "(company_id, category_id, title, description, start_date, end_date, amount, price, image) values");
+            for (int i = 0; i < coupons.size(); i++) {
+                sql.append(i == 0 ? " " : ", ").append("(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            }
+
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS)) {
+                int index = 1;
+                for (Coupon coupon: coupons) {
+                    statement.setInt(index++, coupon.getCompanyID());
+                    statement.setInt(index++, findCategoryID(coupon.getCategory()));
+                    statement.setString(index++, coupon.getTitle());
+                    statement.setString(index++, coupon.getDescription());
+                    statement.setDate(index++, coupon.getStartDate());
+                    statement.setDate(index++, coupon.getEndDate());
+                    statement.setInt(index++, coupon.getAmount());
+                    statement.setDouble(index++, coupon.getPrice());
+                    statement.setString(index++, coupon.getImage());
+                }
+                statement.executeUpdate();
+                try (ResultSet rs = statement.getGeneratedKeys()) {
+                    for (Coupon coupon: coupons) {
+                        if (!rs.next())
+                            break;
+                        coupon.setId(rs.getInt(1));
+                    }
+                }
+                connection.commit();
+                CouponWriteListener.notifyCouponsWritten(coupons);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            for (int companyID: coupons.stream().mapToInt(Coupon::getCompanyID).distinct().toArray()) {
+                CouponCache.companyChanged(companyID);
+            }
+        }
+    }
+
+    /**
+     * Checks which of the given titles are already taken by coupons of a specific company, from the primary database.
+     *
+     * @param companyID The unique identifier (ID) of the company.
+     * @param titles The titles to look for.
+     * @return A HashSet containing the given titles the company already has a coupon with.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public HashSet<String> findCompanyCouponTitles(int companyID, Collection<String> titles) throws SQLException {
+        HashSet<String> found = new HashSet<>();
+        if (titles.isEmpty())
+            return found;
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        // the IN list changes length with every call, so the statement is not worth keeping in the statement cache
+        String sql = "SELECT title FROM coupons WHERE company_id = ? AND title IN ("
+                + String.join(", ", Collections.nCopies(titles.size(), "?")) + ")";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            int index = 1;
+            statement.setInt(index++, companyID);
+            for (String title: titles) {
+                statement.setString(index++, title);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    found.add(rs.getString(1));
+                }
+                return found;
             }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -56,11 +163,9 @@ public class CouponsDBDAO implements CouponsDAO{
      * @return The ID of the specified Category, or 0 if not found.
      */
     public int findCategoryID(Category category) {
-        for (int i = 0; i < Category.values().length; i++) {
-            if(category == Category.values()[i])
-                return i+1;
-        }
-        return 0;
+        if (category == null)
+            return 0;
+        return CouponRowMapper.toCategoryID(category);
     }
 
     /**
@@ -71,7 +176,7 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public void updateCoupon(Coupon coupon) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "UPDATE coupons " +
@@ -79,7 +184,7 @@ public class CouponsDBDAO implements CouponsDAO{
                     "description = ?, start_date = ?, end_date = ?, " +
                     "amount = ?, price = ?, image = ? " +
                     "WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, coupon.getCompanyID());
             statement.setInt(2, findCategoryID(coupon.getCategory()));
             statement.setString(3, coupon.getTitle());
@@ -90,9 +195,13 @@ public class CouponsDBDAO implements CouponsDAO{
             statement.setDouble(8, coupon.getPrice());
             statement.setString(9, coupon.getImage());
             statement.setInt(10, coupon.getId());
-            statement.execute();
+            if (statement.executeUpdate() > 0) {
+                CouponWriteListener.notifyCouponsWritten(List.of(coupon));
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            CouponCache.couponChanged(coupon.getId());
+            CouponCache.companyChanged(coupon.getCompanyID());
         }
     }
 
@@ -104,15 +213,17 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public void deleteCoupon(int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM coupons WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, couponID);
             statement.execute();
+            CouponWriteListener.notifyCouponRemoved(couponID);
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            CouponCache.couponChanged(couponID);
         }
     }
 
@@ -124,34 +235,122 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public ArrayList<Coupon> getAllCoupons() throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "select * from coupons";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            ResultSet rs = statement.executeQuery();
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+                return coupons;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
 
-            ArrayList<Coupon> coupons = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(1);
-                int companyID = rs.getInt(2);
-                Category category = Category.values()[rs.getInt(3)-1];
-                String title = rs.getString(4);
-                String description = rs.getString(5);
-                Date startDate = rs.getDate(6);
-                Date endDate = rs.getDate(7);
-                int amount = rs.getInt(8);
-                double price = rs.getDouble(9);
-                String image = rs.getString(10);
-
-                coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount, price, image));
+    /**
+     * Streams all coupons in the system without loading them into memory at once.
+     *
+     * The returned stream holds a database connection until it is closed, so it must be used in a
+     * try-with-resources block.
+     *
+     * @return A stream over all coupons, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Coupon> streamAllCoupons() throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+        PreparedStatement statement;
+        String sql = "SELECT * FROM coupons ORDER BY id";
+        try {
+            statement = connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            connectionRouter.restoreConnection(connection);
+            throw e;
+        }
+        return ResultSetStream.of(connectionRouter, connection, statement, CouponRowMapper.forQuery(sql));
+    }
+
+    /**
+     * Streams all coupons from the primary database, for callers that must not miss recent writes.
+     *
+     * The returned stream holds a database connection until it is closed, so it must be used in a
+     * try-with-resources block.
+     *
+     * @return A stream over all coupons, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Coupon> streamAllCouponsFromPrimary() throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+        PreparedStatement statement;
+        String sql = "SELECT * FROM coupons ORDER BY id";
+        try {
+            statement = connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            connectionRouter.restoreConnection(connection);
+            throw e;
+        }
+        return ResultSetStream.of(connectionRouter, connection, statement, CouponRowMapper.forQuery(sql));
+    }
+
+    /**
+     * Retrieves one page of coupons, using the last coupon ID of the previous page as the starting point.
+     *
+     * Keyset paging reads only the requested rows from the primary key index, so every page costs the same
+     * no matter how deep into the table it is.
+     *
+     * @param afterID The ID of the last coupon on the previous page, or 0 for the first page.
+     * @param limit   The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit coupons with IDs greater than afterID, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCouponsPage(int afterID, int limit) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+
+        try {
+            String sql = "SELECT * FROM coupons WHERE id > ? ORDER BY id LIMIT ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, afterID);
+            statement.setInt(2, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>(limit);
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+                return coupons;
             }
-            return coupons;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
+    /**
+     * Streams the start and end dates of all coupons, without loading the coupons themselves.
+     *
+     * The returned stream holds a database connection until it is closed, so it must be used in a
+     * try-with-resources block.
+     *
+     * @return A stream of {coupon ID, start date, end date} rows, with the dates as epoch days.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<int[]> streamCouponDates() throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+        PreparedStatement statement;
+        try {
+            statement = connection.prepareStatement("SELECT id, start_date, end_date FROM coupons");
+        } catch (SQLException e) {
+            connectionRouter.restoreConnection(connection);
+            throw e;
+        }
+        return ResultSetStream.of(connectionRouter, connection, statement, rs -> new int[] {rs.getInt(1),
+                (int) rs.getDate(2).toLocalDate().toEpochDay(), (int) rs.getDate(3).toLocalDate().toEpochDay()});
+    }
+
     /**
      * Retrieves a single coupon from the database based on its unique identifier (coupon ID).
      *
@@ -161,32 +360,65 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public Coupon getOneCoupon(int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        if (CouponCache.ENABLED)
+            return CouponCache.getInstance().getCoupon(couponID, () -> loadOneCoupon(couponID));
+        return loadOneCoupon(couponID);
+    }
+
+    /**
+     * Borrows the connection a catalog read goes through. Reads that will be cached go to the primary, since a replica
+     * that has not caught up yet would put the row a write just invalidated back into the cache.
+     */
+    private Connection getLoadConnection() throws SQLException {
+        return CouponCache.ENABLED ? connectionRouter.getPrimaryConnection() : connectionRouter.getReadConnection();
+    }
+
+    private Coupon loadOneCoupon(int couponID) throws SQLException {
+        Connection connection = getLoadConnection();
 
         try {
-            String sql = "SELECT * FROM coupons WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setInt(1, couponID);
-            ResultSet rs = statement.executeQuery();
+            return getOneCoupon(couponID, connection);
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
 
+    /**
+     * Retrieves a single coupon from the primary database, for callers that must see its latest stock.
+     *
+     * @param couponID The unique identifier of the coupon to retrieve.
+     * @return The Coupon object representing the retrieved coupon, or null if not found.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Coupon getOneCouponFromPrimary(int couponID) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            return getOneCoupon(couponID, connection);
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Retrieves a single coupon on the given connection.
+     *
+     * @param couponID The unique identifier of the coupon to retrieve.
+     * @param connection A database connection used for executing the SQL query.
+     * @return The Coupon object representing the retrieved coupon, or null if not found.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Coupon getOneCoupon(int couponID, Connection connection) throws SQLException {
+        String sql = "SELECT * FROM coupons WHERE id = ?";
+        PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+        statement.setInt(1, couponID);
+        try (ResultSet rs = statement.executeQuery()) {
+            CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
             Coupon coupon = null;
             if (rs.next()) {
-                int id = rs.getInt(1);
-                int companyID = rs.getInt(2);
-                Category category = Category.values()[rs.getInt(3)-1];
-                String title = rs.getString(4);
-                String description = rs.getString(5);
-                Date startDate = rs.getDate(6);
-                Date endDate = rs.getDate(7);
-                int amount = rs.getInt(8);
-                double price = rs.getDouble(9);
-                String image = rs.getString(10);
-
-                coupon = new Coupon(id, companyID, category, title, description, startDate, endDate, amount, price, image);
+                coupon = mapper.map(rs);
             }
             return coupon;
-        } finally {
-            connectionPool.restoreConnection(connection);
         }
     }
 
@@ -201,19 +433,410 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public void addCouponPurchase(int customerID, int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "insert into customers_vs_coupons(customer_id, coupon_id) values(?, ?);";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.setInt(2, couponID);
             statement.execute();
+            PurchaseIndex.purchased(customerID, couponID);
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            CouponCache.couponChanged(couponID);
+        }
+    }
+
+    /**
+     * Purchases a coupon for a customer as a single transaction.
+     *
+     * The stock decrement is conditional on the coupon being in stock, not expired and not already purchased by the
+     * customer, so concurrent buyers can never oversell. Only when the decrement succeeds is the purchase recorded,
+     * in the same transaction. When the decrement is refused, one more query finds the precise reason; if the coupon
+     * changed in between so that it looks purchasable again, the purchase is retried, up to MAX_PURCHASE_ATTEMPTS times.
+     *
+     * @param customerID The unique identifier (ID) of the customer making the purchase.
+     * @param couponID   The unique identifier (ID) of the coupon being purchased.
+     * @return SUCCESS if the purchase was recorded, otherwise the reason it was refused.
+     * @throws SQLException If there is an issue with the database operation, or the coupon kept changing under every
+     *                      attempt.
+     */
+    public PurchaseResult purchaseCoupon(int customerID, int couponID) throws SQLException {
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (int attempt = 0; attempt < MAX_PURCHASE_ATTEMPTS; attempt++) {
+                    String sql = "UPDATE coupons SET amount = amount - 1 " +
+                            "WHERE id = ? AND amount > 0 AND start_date <= CURDATE() AND end_date >= CURDATE() " +
+                            "AND NOT EXISTS (SELECT 1 FROM customers_vs_coupons WHERE customer_id = ? AND coupon_id = ?)";
+                    PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+                    statement.setInt(1, couponID);
+                    statement.setInt(2, customerID);
+                    statement.setInt(3, couponID);
+
+                    if (statement.executeUpdate() == 1) {
+                        sql = "insert into customers_vs_coupons(customer_id, coupon_id) values(?, ?);";
+                        statement = connectionRouter.prepareStatement(connection, sql);
+                        statement.setInt(1, customerID);
+                        statement.setInt(2, couponID);
+                        statement.execute();
+                        connection.commit();
+                        PurchaseIndex.purchased(customerID, couponID);
+                        return PurchaseResult.SUCCESS;
+                    }
+
+                    connection.rollback();
+                    PurchaseResult reason = findPurchaseFailure(customerID, couponID, connection);
+                    if (reason != PurchaseResult.SUCCESS)
+                        return reason;
+                    // the coupon changed between the two statements; try again
+                }
+                throw new SQLTransientException("coupon " + couponID + " changed under " + MAX_PURCHASE_ATTEMPTS
+                        + " purchase attempts in a row");
+            } catch (SQLIntegrityConstraintViolationException e) {
+                connection.rollback();
+                return PurchaseResult.ALREADY_PURCHASED;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            CouponCache.couponChanged(couponID);
+            CouponColumns.amountChanged(couponID);
         }
     }
 
+    /**
+     * Purchases a whole cart of coupons for a customer in a single transaction.
+     *
+     * The cart's coupon rows are locked with one SELECT ... FOR UPDATE in coupon ID order, so two carts sharing coupons
+     * can't deadlock, and the customer's existing purchases among them are read with one more query. Every item is then
+     * decided in memory, and all stock decrements and purchase records are written as two JDBC batches.
+     *
+     * @param customerID The unique identifier (ID) of the customer making the purchase.
+     * @param couponIDs  The IDs of the coupons in the cart, possibly with repeats.
+     * @return The result of each item, in cart order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<PurchaseResult> purchaseCoupons(int customerID, List<Integer> couponIDs) throws SQLException {
+        ArrayList<PurchaseResult> results = new ArrayList<>(couponIDs.size());
+        if (couponIDs.isEmpty())
+            return results;
+
+        int[] sortedIDs = couponIDs.stream().mapToInt(Integer::intValue).distinct().sorted().toArray();
+        String inList = "?" + ", ?".repeat(sortedIDs.length - 1);
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                Map<Integer, Integer> stock = new HashMap<>();
+                Set<Integer> expired = new HashSet<>();
+                Set<Integer> notStarted = new HashSet<>();
+                String sql = "SELECT id, amount, (end_date >= CURDATE()) IS NOT TRUE, (start_date <= CURDATE()) IS NOT TRUE " +
+                        "FROM coupons " +
+                        "WHERE id IN (" + inList + ") ORDER BY id FOR UPDATE";
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (int i = 0; i < sortedIDs.length; i++) {
+                        statement.setInt(i + 1, sortedIDs[i]);
+                    }
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            stock.put(rs.getInt(1), rs.getInt(2));
+                            if (rs.getBoolean(3))
+                                expired.add(rs.getInt(1));
+                            if (rs.getBoolean(4))
+                                notStarted.add(rs.getInt(1));
+                        }
+                    }
+                }
+
+                Set<Integer> owned = new HashSet<>();
+                sql = "SELECT coupon_id FROM customers_vs_coupons WHERE customer_id = ? AND coupon_id IN (" + inList + ")";
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setInt(1, customerID);
+                    for (int i = 0; i < sortedIDs.length; i++) {
+                        statement.setInt(i + 2, sortedIDs[i]);
+                    }
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            owned.add(rs.getInt(1));
+                        }
+                    }
+                }
+
+                TreeSet<Integer> bought = new TreeSet<>();
+                for (int couponID: couponIDs) {
+                    if (!stock.containsKey(couponID))
+                        results.add(PurchaseResult.NO_SUCH_COUPON);
+                    else if (owned.contains(couponID) || bought.contains(couponID))
+                        results.add(PurchaseResult.ALREADY_PURCHASED);
+                    else if (stock.get(couponID) <= 0)
+                        results.add(PurchaseResult.OUT_OF_STOCK);
+                    else if (expired.contains(couponID))
+                        results.add(PurchaseResult.EXPIRED);
+                    else if (notStarted.contains(couponID))
+                        results.add(PurchaseResult.NOT_STARTED);
+                    else {
+                        bought.add(couponID);
+                        results.add(PurchaseResult.SUCCESS);
+                    }
+                }
+
+                if (!bought.isEmpty()) {
+                    sql = "UPDATE coupons SET amount = amount - 1 WHERE id = ?";
+                    PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+                    for (int couponID: bought) {
+                        statement.setInt(1, couponID);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+
+                    sql = "insert into customers_vs_coupons(customer_id, coupon_id) values(?, ?);";
+                    statement = connectionRouter.prepareStatement(connection, sql);
+                    for (int couponID: bought) {
+                        statement.setInt(1, customerID);
+                        statement.setInt(2, couponID);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                connection.commit();
+                for (int couponID: bought) {
+                    PurchaseIndex.purchased(customerID, couponID);
+                }
+                return results;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            for (int couponID: sortedIDs) {
+                CouponCache.couponChanged(couponID);
+                CouponColumns.amountChanged(couponID);
+            }
+        }
+    }
+
+    /**
+     * Finds out why a conditional purchase was refused, in the same order the checks were historically made.
+     *
+     * Each check is the exact negation of a condition of the purchase UPDATE, so a coupon the UPDATE refuses is never
+     * reported as purchasable; a missing amount or date fails its check, as it fails the UPDATE's.
+     *
+     * @param customerID The unique identifier (ID) of the customer making the purchase.
+     * @param couponID   The unique identifier (ID) of the coupon being purchased.
+     * @param connection A database connection used for executing the SQL query.
+     * @return The reason for the refusal, or SUCCESS if the coupon is purchasable by now.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    private PurchaseResult findPurchaseFailure(int customerID, int couponID, Connection connection) throws SQLException {
+        String sql = "SELECT (amount > 0) IS NOT TRUE, (end_date >= CURDATE()) IS NOT TRUE, " +
+                "EXISTS (SELECT 1 FROM customers_vs_coupons WHERE customer_id = ? AND coupon_id = ?), " +
+                "(start_date <= CURDATE()) IS NOT TRUE " +
+                "FROM coupons WHERE id = ?";
+        PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+        statement.setInt(1, customerID);
+        statement.setInt(2, couponID);
+        statement.setInt(3, couponID);
+        try (ResultSet rs = statement.executeQuery()) {
+            if (!rs.next())
+                return PurchaseResult.NO_SUCH_COUPON;
+            else if (rs.getBoolean(3))
+                return PurchaseResult.ALREADY_PURCHASED;
+            else if (rs.getBoolean(1))
+                return PurchaseResult.OUT_OF_STOCK;
+            else if (rs.getBoolean(2))
+                return PurchaseResult.EXPIRED;
+            else if (rs.getBoolean(4))
+                return PurchaseResult.NOT_STARTED;
+            else
+                return PurchaseResult.SUCCESS;
+        }
+    }
+
+    /**
+     * Writes a batch of purchases that were admitted in memory, in one transaction.
+     *
+     * Each purchase is recorded only if the customer does not already own the coupon, so a batch that is replayed
+     * after a crash is not applied twice. Each coupon's amount is then reduced by the number of purchases actually
+     * recorded for it, in coupon ID order so concurrent batches lock rows in the same order. A coupon whose amount
+     * would drop below zero fails the whole batch instead of being clamped, since it means the coupon was oversold.
+     *
+     * @param purchases Pairs of {customer ID, coupon ID}.
+     * @throws SQLDataException If the batch would take a coupon's amount below zero.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public void persistPurchases(List<int[]> purchases) throws SQLException {
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                String sql = "INSERT INTO customers_vs_coupons(customer_id, coupon_id) SELECT ?, ? FROM DUAL " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM customers_vs_coupons WHERE customer_id = ? AND coupon_id = ?)";
+                PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+                for (int[] purchase: purchases) {
+                    statement.setInt(1, purchase[0]);
+                    statement.setInt(2, purchase[1]);
+                    statement.setInt(3, purchase[0]);
+                    statement.setInt(4, purchase[1]);
+                    statement.addBatch();
+                }
+                int[] inserted = statement.executeBatch();
+
+                TreeMap<Integer, Integer> decrements = new TreeMap<>();
+                for (int i = 0; i < inserted.length; i++) {
+                    if (inserted[i] > 0 || inserted[i] == Statement.SUCCESS_NO_INFO)
+                        decrements.merge(purchases.get(i)[1], 1, Integer::sum);
+                }
+
+                sql = "UPDATE coupons SET amount = amount - ? WHERE id = ? AND amount >= ?";
+                statement = connectionRouter.prepareStatement(connection, sql);
+                for (Map.Entry<Integer, Integer> decrement: decrements.entrySet()) {
+                    statement.setInt(1, decrement.getValue());
+                    statement.setInt(2, decrement.getKey());
+                    statement.setInt(3, decrement.getValue());
+                    statement.addBatch();
+                }
+                int[] updated = statement.executeBatch();
+                int i = 0;
+                for (Map.Entry<Integer, Integer> decrement: decrements.entrySet()) {
+                    if (updated[i++] == 0)
+                        throw new SQLDataException(decrement.getValue() + " purchases of coupon " + decrement.getKey()
+                                + " would take its amount below zero");
+                }
+                connection.commit();
+                for (int[] purchase: purchases) {
+                    PurchaseIndex.purchased(purchase[0], purchase[1]);
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            for (int[] purchase: purchases) {
+                CouponCache.couponChanged(purchase[1]);
+                CouponColumns.amountChanged(purchase[1]);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the IDs of all customers who purchased a specific coupon, from the primary database.
+     *
+     * @param couponID The unique identifier (ID) of the coupon.
+     * @return An ArrayList containing the IDs of the customers who purchased the coupon.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Integer> getPurchaserIDs(int couponID) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            String sql = "SELECT customer_id FROM customers_vs_coupons WHERE coupon_id = ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, couponID);
+            try (ResultSet rs = statement.executeQuery()) {
+                ArrayList<Integer> customerIDs = new ArrayList<>();
+                while (rs.next()) {
+                    customerIDs.add(rs.getInt(1));
+                }
+                return customerIDs;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Retrieves the IDs of all coupons a specific customer purchased, from the primary database.
+     *
+     * @param customerID The unique identifier (ID) of the customer.
+     * @return An ArrayList containing the IDs of the coupons the customer purchased.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Integer> getPurchasedCouponIDs(int customerID) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            String sql = "SELECT coupon_id FROM customers_vs_coupons WHERE customer_id = ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, customerID);
+            try (ResultSet rs = statement.executeQuery()) {
+                ArrayList<Integer> couponIDs = new ArrayList<>();
+                while (rs.next()) {
+                    couponIDs.add(rs.getInt(1));
+                }
+                return couponIDs;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Retrieves the current amounts of a set of coupons from the primary database.
+     *
+     * @param couponIDs The IDs of the coupons.
+     * @return A map from coupon ID to amount; coupons that no longer exist are missing from it.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    IntIntMap getAmounts(int[] couponIDs) throws SQLException {
+        IntIntMap amounts = new IntIntMap(couponIDs.length);
+        if (couponIDs.length == 0)
+            return amounts;
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT id, amount FROM coupons WHERE id IN (?" + ", ?".repeat(couponIDs.length - 1) + ")")) {
+            for (int i = 0; i < couponIDs.length; i++) {
+                statement.setInt(i + 1, couponIDs[i]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    amounts.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+            return amounts;
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Streams every purchase record from the primary database, grouped by customer.
+     *
+     * The returned stream holds a database connection until it is closed, so it must be used in a
+     * try-with-resources block.
+     *
+     * @return A stream of {customer ID, coupon ID} rows, ordered by customer ID.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<int[]> streamPurchases() throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+        PreparedStatement statement;
+        try {
+            statement = connection.prepareStatement(
+                    "SELECT customer_id, coupon_id FROM customers_vs_coupons ORDER BY customer_id, coupon_id");
+        } catch (SQLException e) {
+            connectionRouter.restoreConnection(connection);
+            throw e;
+        }
+        return ResultSetStream.of(connectionRouter, connection, statement, rs -> new int[] {rs.getInt(1), rs.getInt(2)});
+    }
+
     /**
      * Deletes a record of a coupon purchase by a customer from the system.
      *
@@ -225,16 +848,17 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     @Override
     public void deleteCouponPurchase(int customerID, int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM customers_vs_coupons WHERE customer_id = ? AND coupon_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.setInt(2, couponID);
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.purchaseRemoved(customerID, couponID);
         }
     }
 
@@ -247,15 +871,16 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public void deletePurchaseByCouponID(int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM customers_vs_coupons WHERE coupon_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, couponID);
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.couponsRemoved(List.of(couponID));
         }
     }
 
@@ -268,15 +893,16 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public void deletePurchaseByCustomerID(int customerID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM customers_vs_coupons WHERE customer_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.customerRemoved(customerID);
         }
     }
 
@@ -289,15 +915,69 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public void deleteCouponsByCompanyID(int companyID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM coupons WHERE company_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, companyID);
             statement.execute();
+            CouponWriteListener.notifyCompanyRemoved(companyID);
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+            CouponCache.companyChanged(companyID);
+        }
+    }
+
+    /**
+     * Retrieves the IDs of coupons that belong to a specific company, from the primary database, without loading the
+     * coupons themselves.
+     *
+     * @param companyID The unique identifier (ID) of the company.
+     * @param limit     The maximum number of IDs to return.
+     * @return An ArrayList containing up to limit of the company's coupon IDs, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Integer> getCompanyCouponIDs(int companyID, int limit) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            String sql = "SELECT id FROM coupons WHERE company_id = ? ORDER BY id LIMIT ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, companyID);
+            statement.setInt(2, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                ArrayList<Integer> couponIDs = new ArrayList<>();
+                while (rs.next()) {
+                    couponIDs.add(rs.getInt(1));
+                }
+                return couponIDs;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Deletes up to limit purchase records of a specific customer.
+     *
+     * @param customerID The unique identifier (ID) of the customer.
+     * @param limit      The maximum number of purchase records to delete.
+     * @return The number of purchase records deleted.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public int deletePurchasesByCustomerID(int customerID, int limit) throws SQLException {
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            String sql = "DELETE FROM customers_vs_coupons WHERE customer_id = ? LIMIT ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, customerID);
+            statement.setInt(2, limit);
+            return statement.executeUpdate();
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.customerRemoved(customerID);
         }
     }
 
@@ -313,21 +993,20 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public boolean stillInStock(int couponID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT amount FROM coupons WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, couponID);
-            ResultSet rs = statement.executeQuery();
-
-            if(rs.next())
-                return rs.getInt(1) > 0;
-            else
-                return false;
-
+            try (ResultSet rs = statement.executeQuery()) {
+                if(rs.next())
+                    return rs.getInt(1) > 0;
+                else
+                    return false;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -341,20 +1020,20 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public boolean titleInCompanyExists(Coupon coupon) throws SQLException{
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT id FROM coupons WHERE title = ? and company_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, coupon.getTitle());
             statement.setInt(2, coupon.getCompanyID());
-            ResultSet rs = statement.executeQuery();
-
-            if (rs.next())
-                return true;
-            else return false;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return true;
+                else return false;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -372,21 +1051,116 @@ public class CouponsDBDAO implements CouponsDAO{
         long currentTimeMillis = System.currentTimeMillis();
         java.sql.Date sqlDate = new java.sql.Date(currentTimeMillis);
 
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT end_date FROM coupons WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, coupon.getId());
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return rs.getDate(1).before(sqlDate);
+                else
+                     return false;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
 
-            if (rs.next())
-                return rs.getDate(1).before(sqlDate);
-            else
-                 return false;
+    /**
+     * Retrieves the IDs of coupons whose end date has passed, from the primary database.
+     *
+     * @param limit The maximum number of IDs to return.
+     * @return An ArrayList containing up to limit expired coupon IDs, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Integer> getExpiredCouponIDs(int limit) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
 
+        try {
+            String sql = "SELECT id FROM coupons WHERE end_date < CURDATE() ORDER BY id LIMIT ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                ArrayList<Integer> couponIDs = new ArrayList<>(limit);
+                while (rs.next()) {
+                    couponIDs.add(rs.getInt(1));
+                }
+                return couponIDs;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Deletes a set of expired coupons together with their purchase records, in one transaction.
+     *
+     * The end date is checked again inside the transaction, so a coupon whose end date was extended after its ID was
+     * read is left alone.
+     *
+     * @param couponIDs The IDs of the expired coupons, as returned by getExpiredCouponIDs.
+     * @return The number of rows removed from both tables.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public int deleteExpiredCoupons(List<Integer> couponIDs) throws SQLException {
+        return deleteCouponsWithPurchases(couponIDs, " AND coupons.end_date < CURDATE()");
+    }
+
+    /**
+     * Deletes a set of coupons together with their purchase records, in one transaction.
+     *
+     * @param couponIDs The IDs of the coupons to delete.
+     * @return The number of rows removed from both tables.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public int deleteCouponsWithPurchases(List<Integer> couponIDs) throws SQLException {
+        return deleteCouponsWithPurchases(couponIDs, "");
+    }
+
+    private int deleteCouponsWithPurchases(List<Integer> couponIDs, String condition) throws SQLException {
+        if (couponIDs.isEmpty())
+            return 0;
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            StringBuilder in = new StringBuilder("(");
+            for (int i = 0; i < couponIDs.size(); i++) {
+                in.append(i == 0 ? "?" : ", ?");
+            }
+            in.append(")");
+
+            connection.setAutoCommit(false);
+            try (PreparedStatement purchases = connection.prepareStatement("DELETE customers_vs_coupons" +
+                    " FROM customers_vs_coupons JOIN coupons ON coupon_id = coupons.id" +
+                    " WHERE coupons.id IN " + in + condition);
+                 PreparedStatement coupons = connection.prepareStatement(
+                         "DELETE FROM coupons WHERE coupons.id IN " + in + condition)) {
+                for (int i = 0; i < couponIDs.size(); i++) {
+                    purchases.setInt(i + 1, couponIDs.get(i));
+                    coupons.setInt(i + 1, couponIDs.get(i));
+                }
+                int removed = purchases.executeUpdate();
+                removed += coupons.executeUpdate();
+                connection.commit();
+                if (condition.isEmpty())
+                    CouponWriteListener.notifyCouponsRemoved(couponIDs);
+                else
+                    CouponWriteListener.notifyExpiredCouponsRemoved(couponIDs);
+                return removed;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.couponsRemoved(couponIDs);
+            for (int couponID: couponIDs) {
+                CouponCache.couponChanged(couponID);
+            }
         }
     }
 
@@ -403,26 +1177,17 @@ public class CouponsDBDAO implements CouponsDAO{
      */
     public ArrayList<Coupon> getCompanyCoupons(int companyID, Connection connection) throws SQLException {
         String sql = "SELECT * FROM coupons WHERE company_id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
+        PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
         statement.setInt(1, companyID);
-        ResultSet rs = statement.executeQuery();
-
-        ArrayList<Coupon> coupons = new ArrayList<>();
-        while (rs.next()) {
-            int id = rs.getInt(1);
-            Category category = Category.values()[rs.getInt(3)-1];
-            String title = rs.getString(4);
-            String description = rs.getString(5);
-            Date startDate = rs.getDate(6);
-            Date endDate = rs.getDate(7);
-            int amount = rs.getInt(8);
-            double price = rs.getDouble(9);
-            String image = rs.getString(10);
+        try (ResultSet rs = statement.executeQuery()) {
+            CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+            ArrayList<Coupon> coupons = new ArrayList<>();
+            while (rs.next()) {
+                coupons.add(mapper.map(rs));
+            }
 
-            coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+            return coupons;
         }
-
-        return coupons;
     }
 
     /**
@@ -435,12 +1200,18 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCompanyCouponsByID(int companyID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        if (CouponCache.ENABLED)
+            return CouponCache.getInstance().getCompanyCoupons(companyID, () -> loadCompanyCoupons(companyID));
+        return loadCompanyCoupons(companyID);
+    }
+
+    private ArrayList<Coupon> loadCompanyCoupons(int companyID) throws SQLException {
+        Connection connection = getLoadConnection();
 
         try {
             return getCompanyCoupons(companyID, connection);
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -456,33 +1227,33 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCompanyCouponsByCategory(int companyID, Category category) throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().find(new CouponColumns.Query().company(companyID).category(category));
+        if (CouponCache.ENABLED)
+            return CouponCache.getInstance().getCompanyCouponsByCategory(companyID, findCategoryID(category),
+                    () -> loadCompanyCouponsByCategory(companyID, category));
+        return loadCompanyCouponsByCategory(companyID, category);
+    }
+
+    private ArrayList<Coupon> loadCompanyCouponsByCategory(int companyID, Category category) throws SQLException {
+        Connection connection = getLoadConnection();
 
         try {
             String sql = "SELECT * FROM coupons WHERE company_id = ? and category_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, companyID);
-            statement.setInt(2, couponsDBDAO.findCategoryID(category));
-            ResultSet rs = statement.executeQuery();
-
-            ArrayList<Coupon> coupons = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(1);
-                String title = rs.getString(4);
-                String description = rs.getString(5);
-                Date startDate = rs.getDate(6);
-                Date endDate = rs.getDate(7);
-                int amount = rs.getInt(8);
-                double price = rs.getDouble(9);
-                String image = rs.getString(10);
-
-                coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+            statement.setInt(2, findCategoryID(category));
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+
+                return coupons;
             }
-
-            return coupons;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -498,34 +1269,33 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCompanyCouponsUpToPrice(int companyID, double maxPrice) throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().find(new CouponColumns.Query().company(companyID).upToPrice(maxPrice));
+        if (CouponCache.ENABLED)
+            return CouponCache.getInstance().getCompanyCouponsUpToPrice(companyID, maxPrice,
+                    () -> loadCompanyCouponsUpToPrice(companyID, maxPrice));
+        return loadCompanyCouponsUpToPrice(companyID, maxPrice);
+    }
+
+    private ArrayList<Coupon> loadCompanyCouponsUpToPrice(int companyID, double maxPrice) throws SQLException {
+        Connection connection = getLoadConnection();
 
         try {
             String sql = "SELECT * FROM coupons WHERE company_id = ? and price <= ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, companyID);
             statement.setDouble(2, maxPrice);
-            ResultSet rs = statement.executeQuery();
-
-            ArrayList<Coupon> coupons = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(1);
-                Category category = Category.values()[rs.getInt(3)-1];
-                String title = rs.getString(4);
-                String description = rs.getString(5);
-                Date startDate = rs.getDate(6);
-                Date endDate = rs.getDate(7);
-                int amount = rs.getInt(8);
-                double price = rs.getDouble(9);
-                String image = rs.getString(10);
-
-                coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+
+                return coupons;
             }
-
-            return coupons;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -543,27 +1313,17 @@ public class CouponsDBDAO implements CouponsDAO{
         String sql = "SELECT * FROM customers_vs_coupons" +
                 " JOIN coupons ON coupon_id = coupons.id" +
                 " WHERE customer_id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
+        PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
         statement.setInt(1, customerID);
-        ResultSet rs = statement.executeQuery();
-
-        ArrayList<Coupon> coupons = new ArrayList<>();
-        while (rs.next()) {
-            int id = rs.getInt(3);
-            int companyID = rs.getInt(4);
-            Category category = Category.values()[rs.getInt(5)-1];
-            String title = rs.getString(6);
-            String description = rs.getString(7);
-            Date startDate = rs.getDate(8);
-            Date endDate = rs.getDate(9);
-            int amount = rs.getInt(10);
-            double price = rs.getDouble(11);
-            String image = rs.getString(12);
+        try (ResultSet rs = statement.executeQuery()) {
+            CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+            ArrayList<Coupon> coupons = new ArrayList<>();
+            while (rs.next()) {
+                coupons.add(mapper.map(rs));
+            }
 
-            coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+            return coupons;
         }
-
-        return coupons;
     }
 
     /**
@@ -576,12 +1336,72 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCustomerCouponsByID(int customerID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             return getCustomerCoupons(customerID, connection);
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * Streams the coupons purchased by a specific customer without loading them into memory at once.
+     *
+     * The returned stream holds a database connection until it is closed, so it must be used in a
+     * try-with-resources block.
+     *
+     * @param customerID The unique identifier (ID) of the customer.
+     * @return A stream over the customer's coupons, in coupon ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public Stream<Coupon> streamCustomerCoupons(int customerID) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+        PreparedStatement statement;
+        String sql = "SELECT coupons.* FROM customers_vs_coupons" +
+                " JOIN coupons ON coupon_id = coupons.id" +
+                " WHERE customer_id = ? ORDER BY coupon_id";
+        try {
+            statement = connection.prepareStatement(sql);
+            statement.setInt(1, customerID);
+        } catch (SQLException e) {
+            connectionRouter.restoreConnection(connection);
+            throw e;
+        }
+        return ResultSetStream.of(connectionRouter, connection, statement, CouponRowMapper.forQuery(sql));
+    }
+
+    /**
+     * Retrieves one page of the coupons purchased by a specific customer, using the last coupon ID of the previous
+     * page as the starting point.
+     *
+     * @param customerID The unique identifier (ID) of the customer.
+     * @param afterID    The ID of the last coupon on the previous page, or 0 for the first page.
+     * @param limit      The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit of the customer's coupons with IDs greater than afterID, in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCustomerCouponsPage(int customerID, int afterID, int limit) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+
+        try {
+            String sql = "SELECT coupons.* FROM customers_vs_coupons" +
+                    " JOIN coupons ON coupon_id = coupons.id" +
+                    " WHERE customer_id = ? AND coupon_id > ? ORDER BY coupon_id LIMIT ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, customerID);
+            statement.setInt(2, afterID);
+            statement.setInt(3, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>(limit);
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+                return coupons;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -596,35 +1416,28 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCustomerCouponsByCategory(int customerID, Category category) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().find(new CouponColumns.Query().customer(customerID).category(category));
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "SELECT * FROM customers_vs_coupons" +
                     " JOIN coupons ON coupon_id = coupons.id" +
                     " WHERE customer_id = ? and category_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.setInt(2, findCategoryID(category));
-            ResultSet rs = statement.executeQuery();
-
-            ArrayList<Coupon> coupons = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(3);
-                int companyID = rs.getInt(4);
-                String title = rs.getString(6);
-                String description = rs.getString(7);
-                Date startDate = rs.getDate(8);
-                Date endDate = rs.getDate(9);
-                int amount = rs.getInt(10);
-                double price = rs.getDouble(11);
-                String image = rs.getString(12);
-
-                coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+
+                return coupons;
             }
-
-            return coupons;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
@@ -639,36 +1452,252 @@ public class CouponsDBDAO implements CouponsDAO{
      * @throws SQLException If there is an issue with the database operation.
      */
     public ArrayList<Coupon> getCustomerCouponsUpToPrice(int customerID, double maxPrice) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().find(new CouponColumns.Query().customer(customerID).upToPrice(maxPrice));
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "SELECT * FROM customers_vs_coupons" +
                     " JOIN coupons ON coupon_id = coupons.id" +
                     " WHERE customer_id = ? and price <= ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.setDouble(2, maxPrice);
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+
+                return coupons;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
 
-            ArrayList<Coupon> coupons = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(3);
-                int companyID = rs.getInt(4);
-                Category category = Category.values()[rs.getInt(5)-1];
-                String title = rs.getString(6);
-                String description = rs.getString(7);
-                Date startDate = rs.getDate(8);
-                Date endDate = rs.getDate(9);
-                int amount = rs.getInt(10);
-                double price = rs.getDouble(11);
-                String image = rs.getString(12);
+    /**
+     * Retrieves the coupons meeting every condition of a query, for combinations of filters the other methods don't
+     * cover.
+     *
+     * The query is answered from the in-memory CouponColumns when they are enabled, and translated to SQL otherwise.
+     *
+     * @param query The conditions the coupons must meet.
+     * @return An ArrayList containing the matching coupons, in no particular order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> findCoupons(CouponColumns.Query query) throws SQLException {
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().find(query);
+        return findCouponsInDatabase(query, "");
+    }
+
+    /**
+     * Retrieves the cheapest coupons meeting every condition of a query.
+     *
+     * The query is answered from the price index of the in-memory CouponColumns when they are enabled, and translated
+     * to SQL otherwise.
+     *
+     * @param query The conditions the coupons must meet.
+     * @param limit The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit matching coupons, cheapest first, ties in ID order.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> findCheapestCoupons(CouponColumns.Query query, int limit) throws SQLException {
+        if (CouponColumns.ENABLED)
+            return CouponColumns.getInstance().findCheapest(query, limit);
+        return findCouponsInDatabase(query, " ORDER BY price, coupons.id LIMIT ?", Math.max(limit, 0));
+    }
+
+    /**
+     * Retrieves the coupons of a company priced within a range.
+     *
+     * @param companyID The unique identifier (ID) of the company.
+     * @param minPrice  The lowest price to include.
+     * @param maxPrice  The highest price to include.
+     * @return An ArrayList containing the company's coupons priced from minPrice to maxPrice.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCompanyCouponsInPriceRange(int companyID, double minPrice, double maxPrice) throws SQLException {
+        return findCoupons(new CouponColumns.Query().company(companyID).priceBetween(minPrice, maxPrice));
+    }
+
+    /**
+     * Retrieves the coupons purchased by a customer priced within a range.
+     *
+     * @param customerID The unique identifier (ID) of the customer.
+     * @param minPrice   The lowest price to include.
+     * @param maxPrice   The highest price to include.
+     * @return An ArrayList containing the customer's coupons priced from minPrice to maxPrice.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCustomerCouponsInPriceRange(int customerID, double minPrice, double maxPrice) throws SQLException {
+        return findCoupons(new CouponColumns.Query().customer(customerID).priceBetween(minPrice, maxPrice));
+    }
 
-                coupons.add(new Coupon(id, companyID, category, title, description, startDate, endDate, amount,price, image));
+    /**
+     * Retrieves the coupons of the whole catalog priced within a range.
+     *
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param minPrice The lowest price to include.
+     * @param maxPrice The highest price to include.
+     * @return An ArrayList containing the coupons priced from minPrice to maxPrice.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCouponsInPriceRange(Category category, double minPrice, double maxPrice) throws SQLException {
+        return findCoupons(new CouponColumns.Query().category(category).priceBetween(minPrice, maxPrice));
+    }
+
+    /**
+     * Retrieves the cheapest coupons of the whole catalog.
+     *
+     * @param category The category of coupons to retrieve, or null for every category.
+     * @param limit    The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit coupons, cheapest first.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCheapestCoupons(Category category, int limit) throws SQLException {
+        return findCheapestCoupons(new CouponColumns.Query().category(category), limit);
+    }
+
+    /**
+     * Searches the titles and descriptions of coupons that have not expired for every word of a text.
+     *
+     * The search is answered by the in-memory CouponSearchIndex when it is enabled and built, ranked by how often the
+     * words appear; otherwise every word becomes a LIKE condition, which scans the table.
+     *
+     * @param text  The words to search for.
+     * @param limit The maximum number of coupons to return.
+     * @return An ArrayList containing up to limit matching coupons, best match first.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> searchCoupons(String text, int limit) throws SQLException {
+        if (CouponSearchIndex.ENABLED) {
+            int[] couponIDs = CouponSearchIndex.getInstance().search(text, limit);
+            if (couponIDs != null)
+                return getCoupons(couponIDs);
+        }
+
+        String[] words = text.trim().toLowerCase().split("[^\\p{L}\\p{N}]+");
+        StringBuilder sql = new StringBuilder("SELECT * FROM coupons WHERE end_date >= CURDATE()");
+        List<String> params = new ArrayList<>();
+        for (String word: words) {
+            if (word.length() < 2)
+                continue;
+            sql.append(" AND (LOWER(title) LIKE ? OR LOWER(description) LIKE ?)");
+            params.add("%" + word + "%");
+            params.add("%" + word + "%");
+        }
+        if (params.isEmpty())
+            return new ArrayList<>();
+        sql.append(" LIMIT ").append(Math.max(limit, 0));
+
+        Connection connection = connectionRouter.getReadConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                statement.setString(i + 1, params.get(i));
             }
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery("SELECT * FROM coupons");
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+                return coupons;
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
 
+    /**
+     * Retrieves a set of coupons by their IDs with one query.
+     *
+     * @param couponIDs The IDs of the coupons.
+     * @return An ArrayList containing the coupons in the order of their IDs; coupons that no longer exist are skipped.
+     * @throws SQLException If there is an issue with the database operation.
+     */
+    public ArrayList<Coupon> getCoupons(int[] couponIDs) throws SQLException {
+        ArrayList<Coupon> coupons = new ArrayList<>();
+        if (couponIDs.length == 0)
             return coupons;
+        String sql = "SELECT * FROM coupons WHERE id IN (?" + ", ?".repeat(couponIDs.length - 1) + ")";
+        Connection connection = connectionRouter.getReadConnection();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < couponIDs.length; i++) {
+                statement.setInt(i + 1, couponIDs[i]);
+            }
+            HashMap<Integer, Coupon> byID = new HashMap<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery("SELECT * FROM coupons");
+                while (rs.next()) {
+                    Coupon coupon = mapper.map(rs);
+                    byID.put(coupon.getId(), coupon);
+                }
+            }
+            for (int couponID: couponIDs) {
+                Coupon coupon = byID.get(couponID);
+                if (coupon != null)
+                    coupons.add(coupon);
+            }
+            return coupons;
+        } finally {
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    private ArrayList<Coupon> findCouponsInDatabase(CouponColumns.Query query, String suffix, Object... suffixParams) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT coupons.* FROM coupons");
+        List<Object> params = new ArrayList<>();
+        if (query.getCustomerID() != 0) {
+            sql.append(" JOIN customers_vs_coupons ON coupon_id = coupons.id AND customer_id = ?");
+            params.add(query.getCustomerID());
+        }
+        sql.append(" WHERE 1 = 1");
+        if (query.getCompanyID() != 0) {
+            sql.append(" AND company_id = ?");
+            params.add(query.getCompanyID());
+        }
+        if (query.getCategoryID() != 0) {
+            sql.append(" AND category_id = ?");
+            params.add(query.getCategoryID());
+        }
+        if (query.getMinPrice() != Double.NEGATIVE_INFINITY) {
+            sql.append(" AND price >= ?");
+            params.add(query.getMinPrice());
+        }
+        if (query.getMaxPrice() != Double.POSITIVE_INFINITY) {
+            sql.append(" AND price <= ?");
+            params.add(query.getMaxPrice());
+        }
+        if (query.getMinEndDay() != Integer.MIN_VALUE) {
+            sql.append(" AND end_date >= ?");
+            params.add(Date.valueOf(LocalDate.ofEpochDay(query.getMinEndDay())));
+        }
+        sql.append(suffix);
+        params.addAll(List.of(suffixParams));
+
+        Connection connection = connectionRouter.getReadConnection();
+
+        // up to 2^5 shapes of WHERE clause per suffix; they would crowd the hot statements out of the statement cache
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                statement.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                CouponRowMapper mapper = CouponRowMapper.forQuery("SELECT coupons.* FROM coupons");
+                ArrayList<Coupon> coupons = new ArrayList<>();
+                while (rs.next()) {
+                    coupons.add(mapper.map(rs));
+                }
+
+                return coupons;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 }
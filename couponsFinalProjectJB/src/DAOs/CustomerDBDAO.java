@@ -1,68 +1,73 @@
 package DAOs;
 
-import Connections.ConnectionPool;
+import Connections.ConnectionRouter;
 import javaBeans.Coupon;
 import javaBeans.Customer;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.stream.Stream;
 
 public class CustomerDBDAO implements CustomersDAO{
-    private ConnectionPool connectionPool;
+    private ConnectionRouter connectionRouter;
+    private final CouponsDBDAO couponsDBDAO;
 
     public CustomerDBDAO() throws SQLException {
-        this.connectionPool = ConnectionPool.getInstance();
+        this.connectionRouter = ConnectionRouter.getInstance();
+        this.couponsDBDAO = new CouponsDBDAO();
     }
 
     @Override
     public boolean isCustomerExists(String email, String password) throws SQLException {
 
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "SELECT email, password FROM customers WHERE email = ? AND password = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
             statement.setString(2, password);
-            ResultSet rs = statement.executeQuery();
-            boolean result = rs.next();
-            return result;
+            try (ResultSet rs = statement.executeQuery()) {
+                boolean result = rs.next();
+                return result;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     @Override
     public void addCustomer(Customer customer) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "insert into customers(first_name, last_name, email, password) values(?, ?, ?, ?);";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, customer.getFirstName());
             statement.setString(2, customer.getLastName());
             statement.setString(3, customer.getEmail());
             statement.setString(4, customer.getPassword());
             statement.executeUpdate();
-            ResultSet rs = statement.getGeneratedKeys();
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                customer.setId(id);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if (rs.next()) {
+                    int id = rs.getInt(1);
+                    customer.setId(id);
+                }
             }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     @Override
     public void updateCustomer(Customer customer) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "UPDATE customers " +
                     "SET first_name = ?, last_name = ?, email = ?, password = ? " +
                     "WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, customer.getFirstName());
             statement.setString(2, customer.getLastName());
             statement.setString(3, customer.getEmail());
@@ -70,145 +75,258 @@ public class CustomerDBDAO implements CustomersDAO{
             statement.setInt(5, customer.getId());
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     @Override
     public void deleteCustomer(int customerID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getWriteConnection();
 
         try {
             String sql = "DELETE FROM customers WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.execute();
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
+        }
+    }
+
+    /**
+     * deletes a customer together with their purchases, in one transaction
+     * @param customerID of the customer to be deleted
+     * @throws SQLException in case of sql issues; nothing is deleted then
+     */
+    public void deleteCustomerCascade(int customerID) throws SQLException {
+        Connection connection = connectionRouter.getWriteConnection();
+
+        try {
+            connection.setAutoCommit(false);
+            try {
+                String sql = "DELETE FROM customers_vs_coupons WHERE customer_id = ?";
+                PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, customerID);
+                statement.executeUpdate();
+
+                sql = "DELETE FROM customers WHERE id = ?";
+                statement = connectionRouter.prepareStatement(connection, sql);
+                statement.setInt(1, customerID);
+                statement.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
+            PurchaseIndex.customerRemoved(customerID);
+        }
+    }
+
+    /**
+     * @param customerID of the customer
+     * @return true if a customer with this id exists, read from the primary database
+     * @throws SQLException in case of sql issues
+     */
+    public boolean customerExists(int customerID) throws SQLException {
+        Connection connection = connectionRouter.getPrimaryConnection();
+
+        try {
+            String sql = "SELECT 1 FROM customers WHERE id = ?";
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
+            statement.setInt(1, customerID);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        } finally {
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     @Override
     public ArrayList<Customer> getAllCustomers() throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        return ResultSetStream.toList(streamAllCustomers());
+    }
+
+    /**
+     * streams all customers, with their coupons, without loading them into memory at once.
+     * the stream holds a connection until it is closed, so use it in a try-with-resources block
+     * @return a stream over all customers, in id order
+     * @throws SQLException in case of sql issues
+     */
+    public Stream<Customer> streamAllCustomers() throws SQLException {
+        return streamWithCoupons("select * from customers order by id",
+                "select customer_id, coupons.* from customers_vs_coupons" +
+                        " join coupons on coupon_id = coupons.id order by customer_id, coupon_id");
+    }
+
+    /**
+     * keyset pagination: every page costs the same no matter how deep into the table it is
+     * @param afterID id of the last customer on the previous page, or 0 for the first page
+     * @param limit maximum number of customers to return
+     * @return up to limit customers, with their coupons, whose id is greater than afterID, in id order
+     * @throws SQLException in case of sql issues
+     */
+    public ArrayList<Customer> getCustomersPage(int afterID, int limit) throws SQLException {
+        return ResultSetStream.toList(streamWithCoupons("select * from customers where id > ? order by id limit ?",
+                "select page.id, coupons.* from (select id from customers where id > ? order by id limit ?) page" +
+                        " join customers_vs_coupons on customer_id = page.id" +
+                        " join coupons on coupon_id = coupons.id order by page.id, coupon_id",
+                afterID, limit));
+    }
 
+    /**
+     * loads customers and their coupons with two queries, merged in one pass instead of a coupon query per customer
+     * @param customersSql the customers query, ordered by id
+     * @param couponsSql the purchased coupons query, customer id first, ordered by customer id
+     * @param params parameters set on both queries, in order
+     * @return a stream over the customers with their coupons
+     * @throws SQLException in case of sql issues
+     */
+    private Stream<Customer> streamWithCoupons(String customersSql, String couponsSql, int... params) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
+        PreparedStatement customers = null;
+        PreparedStatement coupons = null;
         try {
-            String sql = "select * from customers";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            ResultSet rs = statement.executeQuery();
-
-            ArrayList<Customer> customers = new ArrayList<>();
-            while (rs.next()) {
-                int id = rs.getInt(1);
-                String firstName = rs.getString(2);
-                String lastName = rs.getString(3);
-                String email = rs.getString(4);
-                String password = rs.getString(5);
-                ArrayList<Coupon> coupons = couponsDBDAO.getCustomerCoupons(id, connection);
-
-                customers.add(new Customer(id, firstName, lastName, email, password, coupons));
+            customers = connection.prepareStatement(customersSql);
+            coupons = connection.prepareStatement(couponsSql);
+            for (int i = 0; i < params.length; i++) {
+                customers.setInt(i + 1, params[i]);
+                coupons.setInt(i + 1, params[i]);
             }
-            return customers;
-        } finally {
-            connectionPool.restoreConnection(connection);
+        } catch (SQLException e) {
+            if (customers != null)
+                customers.close();
+            if (coupons != null)
+                coupons.close();
+            connectionRouter.restoreConnection(connection);
+            throw e;
         }
+        return ResultSetStream.withChildren(connectionRouter, connection,
+                customers, rs -> new Customer(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getString(5), new ArrayList<>()),
+                Customer::getId, coupons, 1, CouponRowMapper.forQuery(couponsSql),
+                (customer, coupon) -> customer.getCoupons().add(coupon));
     }
 
     @Override
     public Customer getOneCustomer(int customerID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
-        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        return getOneCustomer(customerID, false);
+    }
+
+    /**
+     * @param customerID of the customer requested
+     * @param withCoupons true to fetch the coupons in the same round, false to load them only if they are asked for
+     * @return a customer
+     * @throws SQLException in case of sql issues
+     */
+    public Customer getOneCustomer(int customerID, boolean withCoupons) throws SQLException {
+        Connection connection = connectionRouter.getReadConnection();
 
         try {
             String sql = "SELECT * FROM customers WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
-            ResultSet rs = statement.executeQuery();
-
-            Customer customer = null;
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                String firstName = rs.getString(2);
-                String lastName = rs.getString(3);
-                String email = rs.getString(4);
-                String password = rs.getString(5);
-                ArrayList<Coupon> coupons = couponsDBDAO.getCustomerCoupons(id, connection);
-
-                customer = new Customer(id, firstName, lastName, email, password, coupons);
+            try (ResultSet rs = statement.executeQuery()) {
+                Customer customer = null;
+                if (rs.next()) {
+                    int id = rs.getInt(1);
+                    String firstName = rs.getString(2);
+                    String lastName = rs.getString(3);
+                    String email = rs.getString(4);
+                    String password = rs.getString(5);
+
+                    if (withCoupons)
+                        customer = new Customer(id, firstName, lastName, email, password, couponsDBDAO.getCustomerCoupons(id, connection));
+                    else
+                        customer = new Customer(id, firstName, lastName, email, password, () -> couponsDBDAO.getCustomerCouponsByID(id));
+                }
+                return customer;
             }
-            return customer;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     public int getIDByEmail(String email) throws SQLException{
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT id FROM customers WHERE email = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
-            ResultSet rs = statement.executeQuery();
-
-            if (rs.next())
-                return rs.getInt(1);
-            else return -1;
-
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next())
+                    return rs.getInt(1);
+                else return -1;
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
 
     }
 
     public boolean emailAlreadyExists(String email) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT email FROM customers WHERE email = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
-            ResultSet rs = statement.executeQuery();
-
-            return rs.next();
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
+    /**
+     * answered from the PurchaseIndex when it is enabled, so the check normally doesn't reach the database
+     * @param customerID of the buyer
+     * @param coupon_ID of the coupon
+     * @return true if the customer already bought the coupon
+     * @throws SQLException in case of sql issues
+     */
     public boolean alreadyPurchased(int customerID, int coupon_ID) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        if (PurchaseIndex.ENABLED)
+            return PurchaseIndex.getInstance().contains(customerID, coupon_ID);
+
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "SELECT * FROM customers_vs_coupons WHERE customer_id = ? and coupon_id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setInt(1, customerID);
             statement.setInt(2, coupon_ID);
-            ResultSet rs = statement.executeQuery();
-
-            return rs.next();
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 
     public int getID(String email, String password) throws SQLException {
-        Connection connection = connectionPool.getConnection();
+        Connection connection = connectionRouter.getPrimaryConnection();
 
         try {
             String sql = "select id from customers where email = ? and password = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
+            PreparedStatement statement = connectionRouter.prepareStatement(connection, sql);
             statement.setString(1, email);
             statement.setString(2, password);
-            ResultSet rs = statement.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+                else
+                    return -1;
             }
-            else
-                return -1;
         } finally {
-            connectionPool.restoreConnection(connection);
+            connectionRouter.restoreConnection(connection);
         }
     }
 }
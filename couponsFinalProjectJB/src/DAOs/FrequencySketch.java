@@ -0,0 +1,75 @@
+package DAOs;
+
+/**
+ * a count-min sketch of 4-bit counters that estimates how often each key was asked for recently.
+ *
+ * every key has one counter in each of four rows and its estimate is the smallest of the four, so hash collisions can
+ * only overstate it. once sampleSize increments have been recorded every counter is halved, so old popularity fades.
+ * a handful of longs covers thousands of keys.
+ *
+ * not thread-safe; the owner serializes access.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys roughly how many distinct keys the cache holds
+     */
+    FrequencySketch(int expectedKeys) {
+        int size = Integer.highestOneBit(Math.max(64, expectedKeys) - 1) << 1;
+        table = new long[size];
+        sampleSize = 10 * size;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = index(hash, row);
+            int shift = counterShift(hash, row);
+            if (((table[index] >>> shift) & 0xfL) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            frequency = Math.min(frequency, (int) ((table[index(hash, row)] >>> counterShift(hash, row)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (h >>> 40) & (table.length - 1);
+    }
+
+    private static int counterShift(int hash, int row) {
+        return (((hash >>> (row * 8)) & 3) << 2) + (row << 4);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
@@ -0,0 +1,107 @@
+package DAOs;
+
+import java.util.Arrays;
+
+/**
+ * an open-addressing hash map from int keys to int values, kept in two primitive arrays.
+ *
+ * no boxed keys and no entry objects, so a million coupons cost a few megabytes. linear probing, with backward-shift
+ * deletion so no tombstones build up. keys must be positive; 0 marks an empty slot.
+ *
+ * shared by the in-memory tables that index coupons by id. not thread-safe; the owner serializes access.
+ */
+public class IntIntMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @return the value mapped to key, or -1 if there is none
+     */
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return values[i];
+        }
+        return -1;
+    }
+
+    public void put(int key, int value) {
+        if (size + 1 > keys.length * LOAD_FACTOR)
+            resize();
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        if (keys[i] == 0)
+            size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * @return the value that was mapped to key, or -1 if there was none
+     */
+    public int remove(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        if (keys[i] == 0)
+            return -1;
+        int removed = values[i];
+
+        // shift later members of the probe run back into the gap
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        size--;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long estimatedBytes() {
+        return 2 * (16 + 4L * keys.length);
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
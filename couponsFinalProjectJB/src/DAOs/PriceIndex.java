@@ -0,0 +1,331 @@
+package DAOs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * coupon ids sorted by price, partitioned by company and category, for price range and cheapest-n queries.
+ *
+ * every coupon is in two partitions: its company's partition for its category, and the catalog-wide partition for
+ * its category. a partition is a list of sorted chunks of at most CHUNK_SIZE (price, coupon id) pairs, so a range
+ * starts with two binary searches and then walks forward in price order, and inserting or removing shifts at most
+ * one chunk; a full chunk is split in two. a query across categories merges the heads of the few category partitions
+ * involved.
+ *
+ * a bulk load appends without sorting and sorts every partition once at the end, instead of inserting row by row.
+ *
+ * not thread-safe; the owner serializes access.
+ */
+class PriceIndex {
+    private static final int ALL_COMPANIES = 0;
+    private static final int CHUNK_SIZE = 512;
+    private static final int BULK_CHUNK_FILL = CHUNK_SIZE * 3 / 4;
+
+    private final HashMap<Long, Partition> partitions = new HashMap<>();
+    private final int categories;
+    private boolean bulkLoading;
+
+    private static class Chunk {
+        private final double[] prices = new double[CHUNK_SIZE];
+        private final int[] couponIDs = new int[CHUNK_SIZE];
+        private int size;
+
+        /**
+         * @return the first position whose (price, coupon id) is not below the given pair
+         */
+        private int lowerBound(double price, int couponID) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (before(prices[middle], couponIDs[middle], price, couponID))
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+    }
+
+    private static class Partition {
+        private Chunk[] chunks = new Chunk[1];
+        private int chunkCount;
+        private int size;
+
+        // appended during a bulk load, sorted into chunks when it ends
+        private double[] pendingPrices;
+        private int[] pendingCouponIDs;
+        private int pendingSize;
+
+        /**
+         * @return the first chunk whose last pair is not below the given pair, or the last chunk
+         */
+        private int findChunk(double price, int couponID) {
+            int low = 0;
+            int high = chunkCount - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Chunk chunk = chunks[middle];
+                if (before(chunk.prices[chunk.size - 1], chunk.couponIDs[chunk.size - 1], price, couponID))
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        private void insert(double price, int couponID) {
+            if (chunkCount == 0)
+                addChunk(0, new Chunk());
+            int index = findChunk(price, couponID);
+            Chunk chunk = chunks[index];
+            if (chunk.size == CHUNK_SIZE) {
+                Chunk upper = new Chunk();
+                int half = CHUNK_SIZE / 2;
+                System.arraycopy(chunk.prices, half, upper.prices, 0, CHUNK_SIZE - half);
+                System.arraycopy(chunk.couponIDs, half, upper.couponIDs, 0, CHUNK_SIZE - half);
+                upper.size = CHUNK_SIZE - half;
+                chunk.size = half;
+                addChunk(index + 1, upper);
+                if (!before(price, couponID, upper.prices[0], upper.couponIDs[0]))
+                    chunk = upper;
+            }
+            int position = chunk.lowerBound(price, couponID);
+            System.arraycopy(chunk.prices, position, chunk.prices, position + 1, chunk.size - position);
+            System.arraycopy(chunk.couponIDs, position, chunk.couponIDs, position + 1, chunk.size - position);
+            chunk.prices[position] = price;
+            chunk.couponIDs[position] = couponID;
+            chunk.size++;
+            size++;
+        }
+
+        private void remove(double price, int couponID) {
+            if (chunkCount == 0)
+                return;
+            int index = findChunk(price, couponID);
+            Chunk chunk = chunks[index];
+            int position = chunk.lowerBound(price, couponID);
+            if (position == chunk.size || chunk.couponIDs[position] != couponID)
+                return;
+            System.arraycopy(chunk.prices, position + 1, chunk.prices, position, chunk.size - position - 1);
+            System.arraycopy(chunk.couponIDs, position + 1, chunk.couponIDs, position, chunk.size - position - 1);
+            chunk.size--;
+            size--;
+            if (chunk.size == 0) {
+                System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+                chunks[--chunkCount] = null;
+            }
+        }
+
+        private void addChunk(int index, Chunk chunk) {
+            if (chunkCount == chunks.length)
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+            chunks[index] = chunk;
+            chunkCount++;
+        }
+
+        private void append(double price, int couponID) {
+            if (pendingPrices == null) {
+                pendingPrices = new double[16];
+                pendingCouponIDs = new int[16];
+            } else if (pendingSize == pendingPrices.length) {
+                pendingPrices = Arrays.copyOf(pendingPrices, pendingSize * 2);
+                pendingCouponIDs = Arrays.copyOf(pendingCouponIDs, pendingSize * 2);
+            }
+            pendingPrices[pendingSize] = price;
+            pendingCouponIDs[pendingSize++] = couponID;
+        }
+
+        /**
+         * sorts the appended pairs once and merges them with whatever the partition already holds
+         */
+        private void finishBulk() {
+            if (pendingSize == 0)
+                return;
+            int total = size + pendingSize;
+            double[] prices = new double[total];
+            int[] couponIDs = new int[total];
+            int n = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                System.arraycopy(chunks[i].prices, 0, prices, n, chunks[i].size);
+                System.arraycopy(chunks[i].couponIDs, 0, couponIDs, n, chunks[i].size);
+                n += chunks[i].size;
+            }
+            System.arraycopy(pendingPrices, 0, prices, n, pendingSize);
+            System.arraycopy(pendingCouponIDs, 0, couponIDs, n, pendingSize);
+            pendingPrices = null;
+            pendingCouponIDs = null;
+            pendingSize = 0;
+            sort(prices, couponIDs, new double[total], new int[total], 0, total);
+
+            chunks = new Chunk[Math.max(1, (total + BULK_CHUNK_FILL - 1) / BULK_CHUNK_FILL)];
+            chunkCount = 0;
+            for (int from = 0; from < total; from += BULK_CHUNK_FILL) {
+                Chunk chunk = new Chunk();
+                chunk.size = Math.min(BULK_CHUNK_FILL, total - from);
+                System.arraycopy(prices, from, chunk.prices, 0, chunk.size);
+                System.arraycopy(couponIDs, from, chunk.couponIDs, 0, chunk.size);
+                chunks[chunkCount++] = chunk;
+            }
+            size = total;
+        }
+    }
+
+    /**
+     * @param categories the number of categories; category ids run from 1 to categories
+     */
+    PriceIndex(int categories) {
+        this.categories = categories;
+    }
+
+    /**
+     * until finishBulkLoad, added coupons are appended unsorted and are not visible to scans
+     */
+    void startBulkLoad() {
+        bulkLoading = true;
+    }
+
+    void finishBulkLoad() {
+        bulkLoading = false;
+        for (Partition partition: partitions.values()) {
+            partition.finishBulk();
+        }
+    }
+
+    void add(int couponID, int companyID, int categoryID, double price) {
+        Partition company = partitions.computeIfAbsent(key(companyID, categoryID), key -> new Partition());
+        Partition catalog = partitions.computeIfAbsent(key(ALL_COMPANIES, categoryID), key -> new Partition());
+        if (bulkLoading) {
+            company.append(price, couponID);
+            catalog.append(price, couponID);
+        } else {
+            company.insert(price, couponID);
+            catalog.insert(price, couponID);
+        }
+    }
+
+    void remove(int couponID, int companyID, int categoryID, double price) {
+        if (bulkLoading)
+            finishBulkLoad();
+        for (long key: new long[] {key(companyID, categoryID), key(ALL_COMPANIES, categoryID)}) {
+            Partition partition = partitions.get(key);
+            if (partition == null)
+                continue;
+            partition.remove(price, couponID);
+            if (partition.size == 0)
+                partitions.remove(key);
+        }
+    }
+
+    /**
+     * visits the coupons priced from minPrice to maxPrice, cheapest first
+     * @param companyID the company, or 0 for the whole catalog
+     * @param categoryID the category, or 0 for every category
+     * @param visitor is given each coupon id, and returns false to stop the scan
+     */
+    void scan(int companyID, int categoryID, double minPrice, double maxPrice, IntPredicate visitor) {
+        int first = categoryID == 0 ? 1 : categoryID;
+        int last = categoryID == 0 ? categories : categoryID;
+        Partition[] heads = new Partition[last - first + 1];
+        int[] chunkIndexes = new int[heads.length];
+        int[] positions = new int[heads.length];
+        for (int i = 0; i < heads.length; i++) {
+            Partition partition = partitions.get(key(companyID, first + i));
+            if (partition == null || partition.chunkCount == 0)
+                continue;
+            heads[i] = partition;
+            chunkIndexes[i] = partition.findChunk(minPrice, Integer.MIN_VALUE);
+            positions[i] = partition.chunks[chunkIndexes[i]].lowerBound(minPrice, Integer.MIN_VALUE);
+            if (positions[i] == partition.chunks[chunkIndexes[i]].size)
+                heads[i] = null;
+        }
+
+        while (true) {
+            int cheapest = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] == null)
+                    continue;
+                if (cheapest < 0 || before(heads[i].chunks[chunkIndexes[i]], positions[i],
+                        heads[cheapest].chunks[chunkIndexes[cheapest]], positions[cheapest]))
+                    cheapest = i;
+            }
+            if (cheapest < 0)
+                return;
+            Chunk chunk = heads[cheapest].chunks[chunkIndexes[cheapest]];
+            int position = positions[cheapest]++;
+            if (positions[cheapest] == chunk.size) {
+                positions[cheapest] = 0;
+                if (++chunkIndexes[cheapest] == heads[cheapest].chunkCount)
+                    heads[cheapest] = null;
+            }
+            if (chunk.prices[position] > maxPrice || !visitor.test(chunk.couponIDs[position]))
+                return;
+        }
+    }
+
+    void clear() {
+        partitions.clear();
+    }
+
+    long estimatedBytes() {
+        long bytes = 0;
+        for (Partition partition: partitions.values()) {
+            bytes += 64 + 16 + 8L * partition.chunks.length + (32 + 12L * CHUNK_SIZE) * partition.chunkCount;
+        }
+        return bytes;
+    }
+
+    private static boolean before(Chunk a, int i, Chunk b, int j) {
+        return before(a.prices[i], a.couponIDs[i], b.prices[j], b.couponIDs[j]);
+    }
+
+    private static boolean before(double price, int couponID, double otherPrice, int otherCouponID) {
+        int comparison = Double.compare(price, otherPrice);
+        return comparison < 0 || comparison == 0 && couponID < otherCouponID;
+    }
+
+    /**
+     * merge sorts the range of the parallel arrays by (price, coupon id)
+     */
+    private static void sort(double[] prices, int[] couponIDs, double[] bufferPrices, int[] bufferIDs, int from, int to) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                double price = prices[i];
+                int couponID = couponIDs[i];
+                int j = i - 1;
+                while (j >= from && before(price, couponID, prices[j], couponIDs[j])) {
+                    prices[j + 1] = prices[j];
+                    couponIDs[j + 1] = couponIDs[j];
+                    j--;
+                }
+                prices[j + 1] = price;
+                couponIDs[j + 1] = couponID;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(prices, couponIDs, bufferPrices, bufferIDs, from, middle);
+        sort(prices, couponIDs, bufferPrices, bufferIDs, middle, to);
+        if (!before(prices[middle], couponIDs[middle], prices[middle - 1], couponIDs[middle - 1]))
+            return;
+        System.arraycopy(prices, from, bufferPrices, from, to - from);
+        System.arraycopy(couponIDs, from, bufferIDs, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++) {
+            if (j >= to || i < middle && !before(bufferPrices[j], bufferIDs[j], bufferPrices[i], bufferIDs[i])) {
+                prices[k] = bufferPrices[i];
+                couponIDs[k] = bufferIDs[i++];
+            } else {
+                prices[k] = bufferPrices[j];
+                couponIDs[k] = bufferIDs[j++];
+            }
+        }
+    }
+
+    private static long key(int companyID, int categoryID) {
+        return (long) companyID << 32 | categoryID;
+    }
+}
@@ -0,0 +1,366 @@
+package DAOs;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * the ids of the coupons every customer bought, kept in memory so duplicate-purchase checks don't query the database.
+ *
+ * each customer's coupons are one exact-size sorted int array, so a check is a binary search and a customer with n
+ * purchases costs about 64 + 4n bytes. arrays are never modified in place: an update swaps in a new array inside
+ * ConcurrentHashMap.compute, so readers need no lock. a customer is loaded from the primary database on first check,
+ * or everyone at once with warm.
+ *
+ * the DAOs call purchased and the removal methods after every write to customers_vs_coupons. writes that land while
+ * a customer is being loaded are recorded and replayed onto the loaded array, so no update is lost. a coupon missing
+ * from the index only costs a trip to the database, where the purchase is refused anyway; a coupon wrongly present
+ * would refuse a valid purchase, so removals are never skipped.
+ *
+ * the index is only used when the coupons.purchaseIndex.enabled system property is not false.
+ */
+public class PurchaseIndex implements PurchaseIndexMXBean {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("coupons.purchaseIndex.enabled", "true"));
+    private static final int[] EMPTY = new int[0];
+    private static final int REMOVED = 0;
+    private static final int ADDED = 1;
+    private static final int FORGOTTEN = 2;
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final CouponsDBDAO couponsDBDAO;
+    private final ConcurrentHashMap<Integer, Object> customers = new ConcurrentHashMap<>();
+    private final ReentrantLock warmLock = new ReentrantLock();
+    private volatile List<int[]> warmLog;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile PurchaseIndex instance;
+
+    /**
+     * a customer whose purchases are being read from the database, with the writes made to them meanwhile
+     */
+    private static class Loading {
+        private final List<int[]> writes = new ArrayList<>();
+
+        private Loading record(int couponID, int kind) {
+            writes.add(new int[] {couponID, kind});
+            return this;
+        }
+
+        private int[] replay(int[] couponIDs) {
+            for (int[] write: writes) {
+                couponIDs = write[1] == ADDED ? insert(couponIDs, write[0]) : delete(couponIDs, write[0]);
+            }
+            return couponIDs;
+        }
+    }
+
+    private PurchaseIndex() throws SQLException {
+        couponsDBDAO = new CouponsDBDAO();
+        registerMBean();
+    }
+
+    public static PurchaseIndex getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new PurchaseIndex();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param customerID the buyer
+     * @param couponID the coupon
+     * @return true if the customer already bought the coupon
+     * @throws SQLException if the customer's purchases had to be loaded and that failed
+     */
+    public boolean contains(int customerID, int couponID) throws SQLException {
+        checks.increment();
+        Object value = customers.get(customerID);
+        if (value instanceof int[])
+            return Arrays.binarySearch((int[]) value, couponID) >= 0;
+
+        int[] couponIDs = load(customerID);
+        if (couponIDs == null) {
+            // another thread is loading this customer; answer from the database rather than wait
+            fallbacks.increment();
+            return couponsDBDAO.getPurchasedCouponIDs(customerID).contains(couponID);
+        }
+        return Arrays.binarySearch(couponIDs, couponID) >= 0;
+    }
+
+    /**
+     * @param customerID the buyer
+     * @return the ids of the coupons the customer bought, sorted; the array must not be modified
+     * @throws SQLException if the customer's purchases had to be loaded and that failed
+     */
+    int[] getCouponIDs(int customerID) throws SQLException {
+        Object value = customers.get(customerID);
+        if (value instanceof int[])
+            return (int[]) value;
+
+        int[] couponIDs = load(customerID);
+        if (couponIDs == null) {
+            fallbacks.increment();
+            return couponsDBDAO.getPurchasedCouponIDs(customerID).stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+        return couponIDs;
+    }
+
+    /**
+     * loads the purchases of every customer with one streaming query, so no check has to load lazily afterwards
+     * @throws SQLException in case of sql issues
+     */
+    public void warm() throws SQLException {
+        warmLock.lock();
+        try {
+            warmLog = new ArrayList<>();
+        } finally {
+            warmLock.unlock();
+        }
+
+        try (Stream<int[]> purchases = couponsDBDAO.streamPurchases()) {
+            int[] current = {0};
+            int[][] couponIDs = {new int[16]};
+            int[] size = {0};
+            purchases.forEachOrdered(purchase -> {
+                if (purchase[0] != current[0]) {
+                    install(current[0], couponIDs[0], size[0]);
+                    current[0] = purchase[0];
+                    size[0] = 0;
+                }
+                if (size[0] == couponIDs[0].length)
+                    couponIDs[0] = Arrays.copyOf(couponIDs[0], size[0] * 2);
+                couponIDs[0][size[0]++] = purchase[1];
+            });
+            install(current[0], couponIDs[0], size[0]);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        } finally {
+            warmLock.lock();
+            try {
+                for (int[] write: warmLog) {
+                    apply(write[0], write[1], write[2]);
+                }
+                warmLog = null;
+            } finally {
+                warmLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * records a purchase; called after it is committed
+     */
+    static void purchased(int customerID, int couponID) {
+        PurchaseIndex index = instance;
+        if (index != null)
+            index.write(customerID, couponID, ADDED);
+    }
+
+    /**
+     * forgets a purchase; called after it is deleted
+     */
+    static void purchaseRemoved(int customerID, int couponID) {
+        PurchaseIndex index = instance;
+        if (index != null)
+            index.write(customerID, couponID, REMOVED);
+    }
+
+    /**
+     * forgets the purchases of a set of coupons by every customer; called after they are deleted
+     */
+    static void couponsRemoved(List<Integer> couponIDs) {
+        PurchaseIndex index = instance;
+        if (index == null || couponIDs.isEmpty())
+            return;
+        int[] sorted = couponIDs.stream().mapToInt(Integer::intValue).sorted().toArray();
+        for (int customerID: index.customers.keySet()) {
+            Object value = index.customers.get(customerID);
+            if (value instanceof int[] && !intersects((int[]) value, sorted))
+                continue;
+            for (int couponID: sorted) {
+                index.write(customerID, couponID, REMOVED);
+            }
+        }
+    }
+
+    /**
+     * forgets everything known about a customer; called after some or all of their purchases are deleted.
+     * the customer is loaded again on the next check
+     */
+    static void customerRemoved(int customerID) {
+        PurchaseIndex index = instance;
+        if (index != null)
+            index.write(customerID, 0, FORGOTTEN);
+    }
+
+    private void write(int customerID, int couponID, int kind) {
+        if (warmLog != null) {
+            warmLock.lock();
+            try {
+                if (warmLog != null)
+                    warmLog.add(new int[] {customerID, couponID, kind});
+            } finally {
+                warmLock.unlock();
+            }
+        }
+        apply(customerID, couponID, kind);
+    }
+
+    private void apply(int customerID, int couponID, int kind) {
+        if (kind == FORGOTTEN) {
+            customers.remove(customerID);
+            return;
+        }
+        customers.computeIfPresent(customerID, (id, value) -> {
+            if (value instanceof Loading)
+                return ((Loading) value).record(couponID, kind);
+            return kind == ADDED ? insert((int[]) value, couponID) : delete((int[]) value, couponID);
+        });
+    }
+
+    /**
+     * @return the customer's sorted coupon ids, or null if another thread is already loading them
+     */
+    private int[] load(int customerID) throws SQLException {
+        Loading loading = new Loading();
+        Object value = customers.putIfAbsent(customerID, loading);
+        if (value instanceof int[])
+            return (int[]) value;
+        else if (value != null)
+            return null;
+
+        try {
+            int[] couponIDs = couponsDBDAO.getPurchasedCouponIDs(customerID).stream()
+                    .mapToInt(Integer::intValue).sorted().distinct().toArray();
+            loads.increment();
+            Object loaded = customers.computeIfPresent(customerID,
+                    (id, current) -> current == loading ? loading.replay(couponIDs) : current);
+            return loaded instanceof int[] ? (int[]) loaded : loading.replay(couponIDs);
+        } catch (SQLException | RuntimeException e) {
+            customers.remove(customerID, loading);
+            throw e;
+        }
+    }
+
+    private void install(int customerID, int[] couponIDs, int size) {
+        if (size == 0)
+            return;
+        int[] sorted = Arrays.stream(couponIDs, 0, size).sorted().distinct().toArray();
+        customers.putIfAbsent(customerID, sorted);
+    }
+
+    private static int[] insert(int[] couponIDs, int couponID) {
+        int position = Arrays.binarySearch(couponIDs, couponID);
+        if (position >= 0)
+            return couponIDs;
+        position = -position - 1;
+        int[] inserted = new int[couponIDs.length + 1];
+        System.arraycopy(couponIDs, 0, inserted, 0, position);
+        inserted[position] = couponID;
+        System.arraycopy(couponIDs, position, inserted, position + 1, couponIDs.length - position);
+        return inserted;
+    }
+
+    private static int[] delete(int[] couponIDs, int couponID) {
+        int position = Arrays.binarySearch(couponIDs, couponID);
+        if (position < 0)
+            return couponIDs;
+        if (couponIDs.length == 1)
+            return EMPTY;
+        int[] deleted = new int[couponIDs.length - 1];
+        System.arraycopy(couponIDs, 0, deleted, 0, position);
+        System.arraycopy(couponIDs, position + 1, deleted, position, couponIDs.length - position - 1);
+        return deleted;
+    }
+
+    private static boolean intersects(int[] couponIDs, int[] sorted) {
+        for (int couponID: couponIDs) {
+            if (Arrays.binarySearch(sorted, couponID) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getCustomers() {
+        return customers.size();
+    }
+
+    @Override
+    public long getPurchases() {
+        long purchases = 0;
+        for (Object value: customers.values()) {
+            if (value instanceof int[])
+                purchases += ((int[]) value).length;
+        }
+        return purchases;
+    }
+
+    /**
+     * @return the heap held by the index: a map entry and boxed key per customer plus its array, 8-byte aligned
+     */
+    @Override
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Object value: customers.values()) {
+            int length = value instanceof int[] ? ((int[]) value).length : 0;
+            bytes += ENTRY_OVERHEAD_BYTES + ((ARRAY_HEADER_BYTES + 4L * length + 7) & ~7L);
+        }
+        return bytes;
+    }
+
+    @Override
+    public double getBytesPerCustomer() {
+        int customers = getCustomers();
+        return customers == 0 ? 0 : (double) getEstimatedBytes() / customers;
+    }
+
+    @Override
+    public double getBytesPerPurchase() {
+        long purchases = getPurchases();
+        return purchases == 0 ? 0 : (double) getEstimatedBytes() / purchases;
+    }
+
+    @Override
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("DAOs:type=PurchaseIndex");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,16 @@
+package DAOs;
+
+/**
+ * the management view of the purchase index, registered under "DAOs:type=PurchaseIndex"
+ */
+public interface PurchaseIndexMXBean {
+    int getCustomers();
+    long getPurchases();
+    long getEstimatedBytes();
+    double getBytesPerCustomer();
+    double getBytesPerPurchase();
+
+    long getChecks();
+    long getLoads();
+    long getFallbacks();
+}
@@ -0,0 +1,8 @@
+package DAOs;
+
+/**
+ * the outcome of an atomic coupon purchase attempt
+ */
+public enum PurchaseResult {
+    SUCCESS, ALREADY_PURCHASED, OUT_OF_STOCK, EXPIRED, NOT_STARTED, NO_SUCH_COUPON;
+}
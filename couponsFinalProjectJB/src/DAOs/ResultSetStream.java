@@ -0,0 +1,185 @@
+package DAOs;
+
+import Connections.ConnectionRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * turns a query into a lazily-fetched stream of beans.
+ *
+ * the connection is opened with useCursorFetch, so the server hands rows over FETCH_SIZE at a time instead of sending
+ * the whole result at once; heap use stays flat however large the table is. the stream holds its pooled connection
+ * until it is closed, so callers must close it (try-with-resources).
+ */
+final class ResultSetStream {
+    static final int FETCH_SIZE = Integer.getInteger("coupons.db.fetchSize", 1000);
+
+    /**
+     * maps the current row of a result set to a bean
+     */
+    interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private ResultSetStream() {
+    }
+
+    /**
+     * executes the statement and streams its rows. the statement must not come from the statement cache,
+     * since it is closed together with the stream.
+     * @param router the router the connection was borrowed from
+     * @param connection the borrowed connection, restored when the stream is closed
+     * @param statement the statement to execute, with its parameters already set
+     * @param mapper maps each row to a bean
+     * @return a stream over the rows; SQLExceptions while reading surface as RuntimeExceptions
+     * @throws SQLException if the query fails, in which case the connection has already been restored
+     */
+    static <T> Stream<T> of(ConnectionRouter router, Connection connection, PreparedStatement statement,
+                            RowMapper<T> mapper) throws SQLException {
+        ResultSet rs;
+        try {
+            statement.setFetchSize(FETCH_SIZE);
+            rs = statement.executeQuery();
+        } catch (SQLException e) {
+            statement.close();
+            router.restoreConnection(connection);
+            throw e;
+        }
+
+        Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!rs.next())
+                        return false;
+                    action.accept(mapper.map(rs));
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            try {
+                rs.close();
+                statement.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } finally {
+                router.restoreConnection(connection);
+            }
+        });
+    }
+
+    /**
+     * streams parent rows with their child rows attached, with two queries instead of one per parent.
+     *
+     * both queries must be ordered by the parent id; the two cursors are merged in a single pass, so only the current
+     * parent's children are ever held in memory. neither statement may come from the statement cache.
+     * @param router the router the connection was borrowed from
+     * @param connection the borrowed connection, restored when the stream is closed
+     * @param parents the parent query, ordered by parent id
+     * @param parentMapper maps a parent row to a bean
+     * @param parentKey the id of a parent bean
+     * @param children the child query, ordered by parent id
+     * @param childKeyColumn the index of the parent id column in the child query
+     * @param childMapper maps a child row to a bean
+     * @param attach adds a child bean to its parent
+     * @return a stream over the parents; SQLExceptions while reading surface as RuntimeExceptions
+     * @throws SQLException if a query fails, in which case the connection has already been restored
+     */
+    static <P, C> Stream<P> withChildren(ConnectionRouter router, Connection connection,
+                                         PreparedStatement parents, RowMapper<P> parentMapper, ToIntFunction<P> parentKey,
+                                         PreparedStatement children, int childKeyColumn, RowMapper<C> childMapper,
+                                         BiConsumer<P, C> attach) throws SQLException {
+        ResultSet parentRows;
+        ResultSet childRows;
+        try {
+            parents.setFetchSize(FETCH_SIZE);
+            children.setFetchSize(FETCH_SIZE);
+            parentRows = parents.executeQuery();
+            childRows = children.executeQuery();
+        } catch (SQLException e) {
+            parents.close();
+            children.close();
+            router.restoreConnection(connection);
+            throw e;
+        }
+
+        Spliterator<P> rows = new Spliterators.AbstractSpliterator<P>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            private boolean childPending;
+            private boolean childrenDone;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super P> action) {
+                try {
+                    if (!parentRows.next())
+                        return false;
+                    P parent = parentMapper.map(parentRows);
+                    int key = parentKey.applyAsInt(parent);
+                    while (!childrenDone) {
+                        if (!childPending && !(childPending = childRows.next())) {
+                            childrenDone = true;
+                            break;
+                        }
+                        int childKey = childRows.getInt(childKeyColumn);
+                        if (childKey > key)
+                            break;
+                        if (childKey == key)
+                            attach.accept(parent, childMapper.map(childRows));
+                        childPending = false;
+                    }
+                    action.accept(parent);
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            try {
+                parentRows.close();
+                childRows.close();
+                parents.close();
+                children.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } finally {
+                router.restoreConnection(connection);
+            }
+        });
+    }
+
+    /**
+     * drains a stream into a list, closing it
+     * @param stream a stream from this class
+     * @return every element of the stream
+     * @throws SQLException if reading the rows failed
+     */
+    static <T> ArrayList<T> toList(Stream<T> stream) throws SQLException {
+        try (stream) {
+            ArrayList<T> list = new ArrayList<>();
+            stream.forEachOrdered(list::add);
+            return list;
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        }
+    }
+}
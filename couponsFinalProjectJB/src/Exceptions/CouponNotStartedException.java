@@ -0,0 +1,7 @@
+package Exceptions;
+
+public class CouponNotStartedException extends Exception{
+    public CouponNotStartedException() {
+        super("The coupon you requested is not available yet");
+    }
+}
@@ -0,0 +1,330 @@
+package Lifecycle;
+
+import DAOs.CouponsDBDAO;
+import DAOs.IntIntMap;
+import Stock.FlashSaleStockEngine;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * activates and expires coupons at the moment their start and end dates say so.
+ *
+ * every coupon has one timer node in a hierarchical timing wheel: while it is waiting for its start date the node is
+ * set to fire at the start of that day, while it is active at the start of the day after its end date. a ticker
+ * thread turns the wheel every TICK_MS and notifies the listeners of each transition. the wheel is loaded from the
+ * coupons table on first use and kept current by the facades through schedule and remove. the nodes sit in a list,
+ * found by coupon ID through an IntIntMap, with the slots of removed coupons reused.
+ *
+ * the wheel runs on the JVM's time zone, which may disagree with the database's around midnight, so the state is a
+ * hint only; the database decides every purchase. loading the wheel reads the dates of every coupon, so it is only
+ * used when the coupons.lifecycle.enabled system property is true.
+ */
+public class CouponLifecycle {
+    public static final boolean ENABLED = Boolean.getBoolean("coupons.lifecycle.enabled");
+    private static final long TICK_MS = Long.getLong("coupons.lifecycle.tickMs", 1000);
+    private static final byte KIND_NOT_STARTED = 0;
+    private static final byte KIND_ACTIVE = 1;
+    private static final byte KIND_EXPIRED = 2;
+    private static final Logger LOGGER = Logger.getLogger(CouponLifecycle.class.getName());
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TimingWheel wheel;
+    private final IntIntMap slots;
+    private final List<TimingWheel.TimerNode> nodes = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final List<CouponLifecycleListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService ticker;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile CouponLifecycle instance;
+
+    private CouponLifecycle() throws SQLException {
+        wheel = new TimingWheel(TICK_MS, System.currentTimeMillis());
+        slots = new IntIntMap(1024);
+        load();
+
+        if (FlashSaleStockEngine.ENABLED)
+            addListener(new CouponLifecycleListener() {
+                @Override
+                public void couponActivated(int couponID) {
+                }
+
+                @Override
+                public void couponExpired(int couponID) {
+                    try {
+                        FlashSaleStockEngine.getInstance().release(couponID);
+                    } catch (SQLException e) {
+                        LOGGER.log(Level.WARNING, "could not release expired coupon " + couponID
+                                + " from the flash sale engine", e);
+                    }
+                }
+            });
+
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coupons-lifecycle-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static CouponLifecycle getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new CouponLifecycle();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    public void addListener(CouponLifecycleListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CouponLifecycleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * starts tracking a coupon, or re-times it after its dates changed
+     * @param couponID the coupon
+     * @param startDate the first day the coupon can be bought
+     * @param endDate the last day the coupon can be bought
+     */
+    public void schedule(int couponID, Date startDate, Date endDate) {
+        byte before;
+        byte after;
+        lock.writeLock().lock();
+        try {
+            TimingWheel.TimerNode node = node(couponID);
+            if (node == null) {
+                node = new TimingWheel.TimerNode(couponID);
+                addNode(node);
+                before = -1;
+            } else {
+                before = node.kind;
+                wheel.cancel(node);
+            }
+            time(node, (int) startDate.toLocalDate().toEpochDay(), (int) endDate.toLocalDate().toEpochDay(),
+                    System.currentTimeMillis());
+            after = node.kind;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (after != before) {
+            if (after == KIND_ACTIVE)
+                fireActivated(couponID);
+            else if (before == KIND_ACTIVE)
+                fireExpired(couponID);
+        }
+    }
+
+    /**
+     * stops tracking a coupon, after it was deleted
+     * @param couponID the coupon
+     */
+    public void remove(int couponID) {
+        lock.writeLock().lock();
+        try {
+            TimingWheel.TimerNode node = removeNode(couponID);
+            if (node != null)
+                wheel.cancel(node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param couponID the coupon
+     * @return the coupon's state, or UNKNOWN if it is not tracked
+     */
+    public CouponState getState(int couponID) {
+        lock.readLock().lock();
+        try {
+            TimingWheel.TimerNode node = node(couponID);
+            if (node == null)
+                return CouponState.UNKNOWN;
+            switch (node.kind) {
+                case KIND_NOT_STARTED:
+                    return CouponState.NOT_STARTED;
+                case KIND_ACTIVE:
+                    return CouponState.ACTIVE;
+                default:
+                    return CouponState.EXPIRED;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of coupons being tracked
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of pending activation and expiry timers
+     */
+    public int getPendingTimers() {
+        lock.readLock().lock();
+        try {
+            return wheel.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private void load() throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Stream<int[]> dates = new CouponsDBDAO().streamCouponDates()) {
+            lock.writeLock().lock();
+            try {
+                dates.forEach(row -> {
+                    TimingWheel.TimerNode node = new TimingWheel.TimerNode(row[0]);
+                    addNode(node);
+                    time(node, row[1], row[2], now);
+                });
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        }
+    }
+
+    private TimingWheel.TimerNode node(int couponID) {
+        int slot = slots.get(couponID);
+        return slot < 0 ? null : nodes.get(slot);
+    }
+
+    /**
+     * @param node a node whose coupon is not tracked yet
+     */
+    private void addNode(TimingWheel.TimerNode node) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = nodes.size();
+            nodes.add(node);
+        } else
+            nodes.set(slot, node);
+        slots.put(node.couponID, slot);
+    }
+
+    private TimingWheel.TimerNode removeNode(int couponID) {
+        int slot = slots.remove(couponID);
+        if (slot < 0)
+            return null;
+        freeSlots.push(slot);
+        return nodes.set(slot, null);
+    }
+
+    /**
+     * sets a node's state for the given dates and schedules its next transition, if it has one
+     */
+    private void time(TimingWheel.TimerNode node, int startEpochDay, int endEpochDay, long now) {
+        node.endEpochDay = endEpochDay;
+        long activateAt = startOfDay(startEpochDay);
+        long expireAt = startOfDay(endEpochDay + 1L);
+        if (now >= expireAt) {
+            node.kind = KIND_EXPIRED;
+        } else if (now < activateAt) {
+            node.kind = KIND_NOT_STARTED;
+            wheel.schedule(node, activateAt);
+        } else {
+            node.kind = KIND_ACTIVE;
+            wheel.schedule(node, expireAt);
+        }
+    }
+
+    private void tick() {
+        List<TimingWheel.TimerNode> fired = new ArrayList<>();
+        List<int[]> transitions = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            wheel.advanceTo(now, fired);
+            for (TimingWheel.TimerNode node : fired) {
+                if (node.kind == KIND_NOT_STARTED) {
+                    transitions.add(new int[] {node.couponID, KIND_ACTIVE});
+                    long expireAt = startOfDay(node.endEpochDay + 1L);
+                    if (now >= expireAt) {
+                        node.kind = KIND_EXPIRED;
+                        transitions.add(new int[] {node.couponID, KIND_EXPIRED});
+                    } else {
+                        node.kind = KIND_ACTIVE;
+                        wheel.schedule(node, expireAt);
+                    }
+                } else {
+                    node.kind = KIND_EXPIRED;
+                    transitions.add(new int[] {node.couponID, KIND_EXPIRED});
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (int[] transition : transitions) {
+            if (transition[1] == KIND_ACTIVE)
+                fireActivated(transition[0]);
+            else
+                fireExpired(transition[0]);
+        }
+    }
+
+    private long startOfDay(long epochDay) {
+        return LocalDate.ofEpochDay(epochDay).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private void fireActivated(int couponID) {
+        for (CouponLifecycleListener listener : listeners) {
+            try {
+                listener.couponActivated(couponID);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "a lifecycle listener failed on the activation of coupon " + couponID, e);
+            }
+        }
+    }
+
+    private void fireExpired(int couponID) {
+        for (CouponLifecycleListener listener : listeners) {
+            try {
+                listener.couponExpired(couponID);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "a lifecycle listener failed on the expiry of coupon " + couponID, e);
+            }
+        }
+    }
+}
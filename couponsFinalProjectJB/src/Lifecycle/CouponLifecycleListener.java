@@ -0,0 +1,11 @@
+package Lifecycle;
+
+/**
+ * notified when a coupon becomes purchasable or stops being purchasable, so in-memory catalogs can follow.
+ * callbacks run on the lifecycle ticker thread, or on the thread that changed the coupon, and must not block for long.
+ */
+public interface CouponLifecycleListener {
+    void couponActivated(int couponID);
+
+    void couponExpired(int couponID);
+}
@@ -0,0 +1,8 @@
+package Lifecycle;
+
+/**
+ * where a coupon is in its lifetime, as tracked by CouponLifecycle
+ */
+public enum CouponState {
+    UNKNOWN, NOT_STARTED, ACTIVE, EXPIRED;
+}
@@ -0,0 +1,138 @@
+package Lifecycle;
+
+import java.util.List;
+
+/**
+ * a hierarchical timing wheel: LEVELS wheels of WHEEL_SIZE slots, each level's slot spanning a whole turn of the
+ * level below it.
+ *
+ * a timer sits in the slot of the lowest level whose range covers its deadline, and is moved down a level when the
+ * wheel above turns over (cascading). scheduling and cancelling are O(1); advancing one tick is O(1) plus the timers
+ * that fire or cascade. slots are intrusive doubly-linked lists, so a timer costs one small node and nothing else.
+ *
+ * not thread-safe; the owner serializes access.
+ */
+class TimingWheel {
+    static final int WHEEL_BITS = 6;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static final int LEVELS = 5;
+    private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    /**
+     * a timer; owned by at most one slot at a time
+     */
+    static class TimerNode {
+        final int couponID;
+        byte kind;
+        int endEpochDay;
+        long deadline;
+        TimerNode prev;
+        TimerNode next;
+
+        TimerNode(int couponID) {
+            this.couponID = couponID;
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    private final TimerNode[] slots = new TimerNode[LEVELS * WHEEL_SIZE];
+    private final long tickMillis;
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int i = 0; i < slots.length; i++) {
+            TimerNode head = new TimerNode(-1);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+    }
+
+    /**
+     * schedules a timer; a deadline in the past fires on the next tick
+     * @param node a timer that is not currently scheduled
+     * @param deadlineMillis when it should fire, in epoch milliseconds
+     */
+    void schedule(TimerNode node, long deadlineMillis) {
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        node.deadline = Math.max(deadlineTick, currentTick + 1);
+        insert(node);
+        size++;
+    }
+
+    void cancel(TimerNode node) {
+        if (!node.isScheduled())
+            return;
+        unlink(node);
+        size--;
+    }
+
+    /**
+     * turns the wheel up to the given time, collecting every timer that fires on the way
+     * @param nowMillis the current time, in epoch milliseconds
+     * @param fired receives the fired timers, in deadline order; they are no longer scheduled
+     */
+    void advanceTo(long nowMillis, List<TimerNode> fired) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+                    break;
+                cascade(level, (int) (currentTick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1));
+            }
+
+            TimerNode head = slots[(int) currentTick & (WHEEL_SIZE - 1)];
+            while (head.next != head) {
+                TimerNode node = head.next;
+                unlink(node);
+                size--;
+                fired.add(node);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void cascade(int level, int index) {
+        TimerNode head = slots[level * WHEEL_SIZE + index];
+        TimerNode node = head.next;
+        head.next = head;
+        head.prev = head;
+        while (node != head) {
+            TimerNode next = node.next;
+            insert(node);
+            node = next;
+        }
+    }
+
+    private void insert(TimerNode node) {
+        long delta = Math.min(node.deadline - currentTick, MAX_DELTA);
+        long slotTick = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1))))
+            level++;
+        int index = (int) (slotTick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1);
+
+        TimerNode head = slots[level * WHEEL_SIZE + index];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private static void unlink(TimerNode node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+}
@@ -0,0 +1,495 @@
+package Stock;
+
+import DAOs.CouponsDBDAO;
+import DAOs.PurchaseResult;
+import javaBeans.Coupon;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * admits purchases of hot coupons in memory and writes them to the database behind the buyer's back.
+ *
+ * a coupon made hot with loadHotCoupon has its stock held in a StripedStockCounter and its buyers in a concurrent
+ * set, so a purchase is a set insert and a CAS instead of a contended row lock. admitted purchases are journaled and
+ * forced to the disk before the buyer is answered, then written in batches every coupons.flashSale.flushIntervalMs.
+ * on startup, purchases left in the journal by a crash are written to the database before anything else.
+ *
+ * if a batch fails, its purchases are written one by one, and the ones the database refuses for good (a customer or
+ * coupon that is gone, or an amount that would drop below zero) are logged and set aside as dead letters, so one bad
+ * row can't hold back the rest. other failures keep the batch for the next run.
+ *
+ * purchases of coupons that are not hot go through the database inside a fence: a striped read lock that
+ * loadHotCoupon and release take exclusively. so a coupon is never loaded while a database purchase of it is in
+ * flight, and is only taken out of the engine after its purchases are in the database; neither can miss a purchase
+ * and oversell.
+ *
+ * the engine is only used when the coupons.flashSale.enabled system property is true.
+ */
+public class FlashSaleStockEngine {
+    public static final boolean ENABLED = Boolean.getBoolean("coupons.flashSale.enabled");
+    private final Path JOURNAL_PATH = Path.of(System.getProperty("coupons.flashSale.journal", "flash-sale.journal"));
+    private final long FLUSH_INTERVAL_MS = Long.getLong("coupons.flashSale.flushIntervalMs", 50);
+    private static final int FENCE_STRIPES = 256;
+    private static final Logger LOGGER = Logger.getLogger(FlashSaleStockEngine.class.getName());
+
+    private final CouponsDBDAO couponsDBDAO;
+    private final Map<Integer, HotCoupon> hotCoupons = new ConcurrentHashMap<>();
+    private final PurchaseJournal journal;
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private List<int[]> pending = new ArrayList<>();
+    private final List<int[]> unflushed = new ArrayList<>();
+    private final List<int[]> deadLetters = new CopyOnWriteArrayList<>();
+    private final ReentrantReadWriteLock[] fences = new ReentrantReadWriteLock[FENCE_STRIPES];
+    private final ScheduledExecutorService flusher;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+    private static volatile FlashSaleStockEngine instance;
+
+    /**
+     * buys coupons that are not hot through the database
+     */
+    public interface DatabasePurchase {
+        /**
+         * @return the result of each coupon, in order
+         */
+        List<PurchaseResult> purchase(List<Integer> couponIDs) throws SQLException;
+    }
+
+    private static class HotCoupon {
+        private final StripedStockCounter stock;
+        private final Set<Integer> purchasers;
+        private final long startEpochDay;
+        private final long endEpochDay;
+        private volatile boolean released;
+
+        private HotCoupon(int amount, Set<Integer> purchasers, long startEpochDay, long endEpochDay) {
+            this.stock = new StripedStockCounter(amount);
+            this.purchasers = purchasers;
+            this.startEpochDay = startEpochDay;
+            this.endEpochDay = endEpochDay;
+        }
+    }
+
+    private FlashSaleStockEngine() throws SQLException {
+        couponsDBDAO = new CouponsDBDAO();
+        for (int i = 0; i < fences.length; i++) {
+            fences[i] = new ReentrantReadWriteLock();
+        }
+        try {
+            journal = new PurchaseJournal(JOURNAL_PATH);
+            recover();
+        } catch (IOException e) {
+            throw new SQLException("could not open the flash sale journal " + JOURNAL_PATH, e);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coupons-flash-sale-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "could not write flash sale purchases; they stay journaled and are retried", e);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static FlashSaleStockEngine getInstance() throws SQLException {
+        if (instance == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                if (instance == null)
+                    instance = new FlashSaleStockEngine();
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * loads a coupon's stock and buyers into memory so its purchases are admitted by the engine
+     * @param couponID the coupon going on flash sale
+     * @return false if the coupon does not exist
+     * @throws SQLException in case of sql issues
+     */
+    public boolean loadHotCoupon(int couponID) throws SQLException {
+        // no database purchase of the coupon is in flight while its amount and buyers are read
+        ReentrantReadWriteLock.WriteLock fence = fence(couponID).writeLock();
+        fence.lock();
+        try {
+            if (hotCoupons.containsKey(couponID))
+                return true;
+            Coupon coupon = couponsDBDAO.getOneCouponFromPrimary(couponID);
+            if (coupon == null)
+                return false;
+
+            Set<Integer> purchasers = ConcurrentHashMap.newKeySet();
+            purchasers.addAll(couponsDBDAO.getPurchaserIDs(couponID));
+            hotCoupons.put(couponID,
+                    new HotCoupon(coupon.getAmount(), purchasers, coupon.getStartDate().toLocalDate().toEpochDay(),
+                            coupon.getEndDate().toLocalDate().toEpochDay()));
+            return true;
+        } finally {
+            fence.unlock();
+        }
+    }
+
+    /**
+     * takes a coupon out of the engine, after writing all its admitted purchases to the database.
+     * must be called before the coupon's row is changed through any other path.
+     * @param couponID the coupon to release
+     * @throws SQLException in case of sql issues; the coupon stays hot then
+     */
+    public void release(int couponID) throws SQLException {
+        ReentrantReadWriteLock.WriteLock fence = fence(couponID).writeLock();
+        fence.lock();
+        try {
+            HotCoupon coupon = hotCoupons.get(couponID);
+            if (coupon == null)
+                return;
+            // buyers arriving from now on wait at the fence, and go to the database once the flush is in
+            journalLock.lock();
+            try {
+                coupon.released = true;
+            } finally {
+                journalLock.unlock();
+            }
+            try {
+                flush();
+            } catch (SQLException e) {
+                coupon.released = false;
+                throw e;
+            }
+            hotCoupons.remove(couponID, coupon);
+        } finally {
+            fence.unlock();
+        }
+    }
+
+    /**
+     * takes a coupon out of the engine after its row was deleted, dropping its admitted purchases instead of writing
+     * them: they went with the row
+     * @param couponID the deleted coupon
+     */
+    public void discard(int couponID) {
+        ReentrantReadWriteLock.WriteLock fence = fence(couponID).writeLock();
+        fence.lock();
+        try {
+            HotCoupon coupon = hotCoupons.remove(couponID);
+            if (coupon == null)
+                return;
+            flushLock.lock();
+            try {
+                journalLock.lock();
+                try {
+                    coupon.released = true;
+                    removePurchases(purchase -> purchase[1] == couponID);
+                } finally {
+                    journalLock.unlock();
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        } finally {
+            fence.unlock();
+        }
+    }
+
+    /**
+     * drops the admitted purchases of a customer whose row was deleted, giving their stock back
+     * @param customerID the deleted customer
+     */
+    public void discardCustomer(int customerID) {
+        List<int[]> dropped;
+        flushLock.lock();
+        try {
+            journalLock.lock();
+            try {
+                dropped = removePurchases(purchase -> purchase[0] == customerID);
+            } finally {
+                journalLock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        for (int[] purchase: dropped) {
+            HotCoupon coupon = hotCoupons.get(purchase[1]);
+            if (coupon != null && coupon.purchasers.remove(customerID))
+                coupon.stock.increment();
+        }
+    }
+
+    /**
+     * takes the matching purchases out of the pending and unflushed ones; the caller holds both locks
+     * @return the purchases taken out
+     */
+    private List<int[]> removePurchases(Predicate<int[]> matches) {
+        List<int[]> removed = new ArrayList<>();
+        for (List<int[]> purchases: List.of(pending, unflushed)) {
+            purchases.removeIf(purchase -> matches.test(purchase) && removed.add(purchase));
+        }
+        return removed;
+    }
+
+    /**
+     * buys coupons for a customer, admitting the hot ones in memory and the others through the database
+     * @param customerID the buyer
+     * @param couponIDs the coupons being bought
+     * @param database buys the coupons that are not hot, while they are fenced against being loaded
+     * @return the result of each coupon, in order
+     * @throws SQLException in case of sql issues
+     */
+    public List<PurchaseResult> purchase(int customerID, List<Integer> couponIDs, DatabasePurchase database)
+            throws SQLException {
+        List<PurchaseResult> results = new ArrayList<>(Collections.nCopies(couponIDs.size(), (PurchaseResult) null));
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < couponIDs.size(); i++) {
+            PurchaseResult result = tryPurchase(customerID, couponIDs.get(i));
+            if (result == null)
+                positions.add(i);
+            else
+                results.set(i, result);
+        }
+        if (positions.isEmpty())
+            return results;
+
+        // in stripe order, so two carts never wait on each other's fences
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int position: positions) {
+            stripes.add(stripe(couponIDs.get(position)));
+        }
+        List<ReentrantReadWriteLock.ReadLock> locked = new ArrayList<>();
+        try {
+            for (int stripe: stripes) {
+                ReentrantReadWriteLock.ReadLock fence = fences[stripe].readLock();
+                fence.lock();
+                locked.add(fence);
+            }
+
+            // a coupon may have been loaded before its fence was taken
+            List<Integer> databaseIDs = new ArrayList<>();
+            List<Integer> databasePositions = new ArrayList<>();
+            for (int position: positions) {
+                PurchaseResult result = tryPurchase(customerID, couponIDs.get(position));
+                if (result == null) {
+                    databaseIDs.add(couponIDs.get(position));
+                    databasePositions.add(position);
+                } else
+                    results.set(position, result);
+            }
+            if (!databaseIDs.isEmpty()) {
+                List<PurchaseResult> databaseResults = database.purchase(databaseIDs);
+                for (int i = 0; i < databasePositions.size(); i++) {
+                    results.set(databasePositions.get(i), databaseResults.get(i));
+                }
+            }
+            return results;
+        } finally {
+            for (ReentrantReadWriteLock.ReadLock fence: locked) {
+                fence.unlock();
+            }
+        }
+    }
+
+    public boolean isHot(int couponID) {
+        return hotCoupons.containsKey(couponID);
+    }
+
+    /**
+     * @param couponID a hot coupon
+     * @return the stock still available in memory, or -1 if the coupon is not hot
+     */
+    public int getRemainingStock(int couponID) {
+        HotCoupon coupon = hotCoupons.get(couponID);
+        return coupon == null ? -1 : coupon.stock.get();
+    }
+
+    /**
+     * admits or refuses a purchase of a hot coupon without touching the database
+     * @param customerID the buyer
+     * @param couponID the coupon being bought
+     * @return the outcome, or null if the coupon is not hot and the purchase must go through the database
+     * @throws SQLException if the purchase could not be journaled, or was journaled but not forced to the disk; in the
+     * second case it is still written to the database with the next batch
+     */
+    public PurchaseResult tryPurchase(int customerID, int couponID) throws SQLException {
+        HotCoupon coupon = hotCoupons.get(couponID);
+        if (coupon == null)
+            return null;
+
+        if (!coupon.purchasers.add(customerID))
+            return PurchaseResult.ALREADY_PURCHASED;
+        long today = LocalDate.now().toEpochDay();
+        if (today > coupon.endEpochDay) {
+            coupon.purchasers.remove(customerID);
+            return PurchaseResult.EXPIRED;
+        }
+        if (today < coupon.startEpochDay) {
+            coupon.purchasers.remove(customerID);
+            return PurchaseResult.NOT_STARTED;
+        }
+        if (!coupon.stock.tryDecrement()) {
+            coupon.purchasers.remove(customerID);
+            return PurchaseResult.OUT_OF_STOCK;
+        }
+
+        long sequence;
+        journalLock.lock();
+        try {
+            if (coupon.released) {
+                coupon.stock.increment();
+                coupon.purchasers.remove(customerID);
+                return null;
+            }
+            sequence = journal.append(customerID, couponID);
+            pending.add(new int[] {customerID, couponID});
+        } catch (IOException e) {
+            coupon.stock.increment();
+            coupon.purchasers.remove(customerID);
+            throw new SQLException("could not journal the purchase of coupon " + couponID, e);
+        } finally {
+            journalLock.unlock();
+        }
+
+        // forced outside the journal lock, so buyers arriving meanwhile share the next force
+        try {
+            journal.sync(sequence);
+        } catch (IOException e) {
+            throw new SQLException("the purchase of coupon " + couponID + " was admitted but could not be synced to the journal", e);
+        }
+        return PurchaseResult.SUCCESS;
+    }
+
+    /**
+     * writes all admitted purchases to the database in one batch
+     * @throws SQLException in case of sql issues; the purchases stay journaled and are retried
+     */
+    public void flush() throws SQLException {
+        flushLock.lock();
+        try {
+            journalLock.lock();
+            try {
+                if (!pending.isEmpty()) {
+                    journal.rotate();
+                    unflushed.addAll(pending);
+                    pending = new ArrayList<>();
+                }
+            } finally {
+                journalLock.unlock();
+            }
+
+            if (unflushed.isEmpty())
+                return;
+            try {
+                couponsDBDAO.persistPurchases(unflushed);
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "a batch of " + unflushed.size()
+                        + " flash sale purchases failed; writing them one by one", e);
+                persistOneByOne();
+            }
+            unflushed.clear();
+            journal.checkpoint();
+        } catch (IOException e) {
+            throw new SQLException("could not rotate the flash sale journal", e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * writes the unflushed purchases one at a time, setting aside the ones the database refuses for good
+     * @throws SQLException on any other failure; the purchases not written yet stay unflushed
+     */
+    private void persistOneByOne() throws SQLException {
+        for (int i = 0; i < unflushed.size(); i++) {
+            int[] purchase = unflushed.get(i);
+            try {
+                couponsDBDAO.persistPurchases(List.of(purchase));
+            } catch (SQLException e) {
+                if (!refusedForGood(e)) {
+                    unflushed.subList(0, i).clear();
+                    throw e;
+                }
+                deadLetters.add(purchase);
+                LOGGER.log(Level.SEVERE, "the flash sale purchase of coupon " + purchase[1] + " by customer "
+                        + purchase[0] + " was admitted but can't be written; moved to the dead letters", e);
+            }
+        }
+    }
+
+    private static boolean refusedForGood(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLIntegrityConstraintViolationException || cause instanceof SQLDataException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of admitted purchases that could not be written to the database
+     */
+    public int getDeadLetterCount() {
+        return deadLetters.size();
+    }
+
+    /**
+     * @return the admitted purchases that could not be written to the database, as {customer ID, coupon ID} pairs
+     */
+    public List<int[]> getDeadLetters() {
+        return new ArrayList<>(deadLetters);
+    }
+
+    /**
+     * writes out every admitted purchase and stops the background flusher
+     * @throws SQLException in case of sql issues
+     */
+    public void close() throws SQLException {
+        flusher.shutdown();
+        flush();
+        try {
+            journal.close();
+        } catch (IOException ignored) {}
+    }
+
+    private ReentrantReadWriteLock fence(int couponID) {
+        return fences[stripe(couponID)];
+    }
+
+    private static int stripe(int couponID) {
+        return Math.floorMod(couponID * 0x9E3779B9, FENCE_STRIPES);
+    }
+
+    /**
+     * writes purchases journaled before a crash to the database; persistPurchases skips any that already made it
+     */
+    private void recover() throws IOException, SQLException {
+        List<int[]> journaled = journal.readAll();
+        if (!journaled.isEmpty())
+            couponsDBDAO.persistPurchases(journaled);
+        journal.reset();
+    }
+}
@@ -0,0 +1,195 @@
+package Stock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * an append-only log of purchases admitted in memory but not yet written to the database.
+ *
+ * each record is a line "customerID,couponID,crc" where crc is the hex CRC32 of "customerID,couponID". on reading,
+ * only newline-terminated lines with a matching crc count, and reading stops at the first bad one, so a record torn
+ * by a crash mid-write (like "12,3" of "12,34,...") is never taken for a different purchase.
+ *
+ * appended records are written to the operating system at once, and sync forces them to the disk. concurrent buyers
+ * share one force: a sync only forces if no other sync has already covered its record (group commit). with
+ * coupons.flashSale.journalSync set to false nothing is forced, and the journal only survives a process crash, not
+ * an operating system crash or power loss.
+ *
+ * before a batch is written to the database the journal is rotated to a ".flushing" segment, which is deleted once
+ * the batch commits, so after a crash both segments hold exactly the purchases that may be missing from the database.
+ *
+ * appends, rotations and resets must be serialized by the caller; sync may be called from any thread.
+ */
+class PurchaseJournal {
+    private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("coupons.flashSale.journalSync", "true"));
+
+    private final Path current;
+    private final Path flushing;
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private FileChannel channel;
+    private volatile long appended;
+    private long synced;
+
+    PurchaseJournal(Path path) throws IOException {
+        this.current = path;
+        this.flushing = path.resolveSibling(path.getFileName() + ".flushing");
+        this.channel = open();
+    }
+
+    /**
+     * writes a purchase to the current segment
+     * @return the record's sequence number, to pass to sync
+     */
+    long append(int customerID, int couponID) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encode(customerID, couponID));
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        return ++appended;
+    }
+
+    /**
+     * forces the journal to the disk up to the given record, unless another sync already has
+     */
+    void sync(long sequence) throws IOException {
+        if (!SYNC)
+            return;
+        syncLock.lock();
+        try {
+            if (synced >= sequence)
+                return;
+            long target = appended;
+            channel.force(false);
+            synced = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * moves the current segment aside so it can be written to the database, and starts a new one
+     */
+    void rotate() throws IOException {
+        closeChannel();
+        if (Files.exists(flushing)) {
+            // the previous batch never reached the database; keep it and add the new purchases after it
+            try (FileChannel previous = FileChannel.open(flushing, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(current));
+                while (bytes.hasRemaining()) {
+                    previous.write(bytes);
+                }
+                if (SYNC)
+                    previous.force(false);
+            }
+            Files.delete(current);
+        } else {
+            Files.move(current, flushing, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = open();
+    }
+
+    /**
+     * called once the rotated segment is safely in the database
+     */
+    void checkpoint() throws IOException {
+        Files.deleteIfExists(flushing);
+    }
+
+    /**
+     * @return every purchase recorded in either segment, oldest first
+     */
+    List<int[]> readAll() throws IOException {
+        List<int[]> purchases = new ArrayList<>();
+        for (Path path: new Path[] {flushing, current}) {
+            if (Files.exists(path))
+                read(Files.readAllBytes(path), purchases);
+        }
+        return purchases;
+    }
+
+    /**
+     * drops both segments after their purchases were recovered into the database
+     */
+    void reset() throws IOException {
+        closeChannel();
+        Files.deleteIfExists(flushing);
+        Files.deleteIfExists(current);
+        channel = open();
+    }
+
+    void close() throws IOException {
+        closeChannel();
+    }
+
+    static byte[] encode(int customerID, int couponID) {
+        String purchase = customerID + "," + couponID;
+        return (purchase + "," + Long.toHexString(checksum(purchase)) + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * adds the valid records of a segment to purchases, stopping at the first torn or corrupt one
+     */
+    static void read(byte[] segment, List<int[]> purchases) {
+        int start = 0;
+        for (int end = 0; end < segment.length; end++) {
+            if (segment[end] != '\n')
+                continue;
+            String line = new String(segment, start, end - start, StandardCharsets.US_ASCII);
+            start = end + 1;
+            int[] purchase = decode(line);
+            if (purchase == null)
+                return;
+            purchases.add(purchase);
+        }
+        // whatever follows the last newline is a torn record
+    }
+
+    private static int[] decode(String line) {
+        int separator = line.lastIndexOf(',');
+        if (separator < 0)
+            return null;
+        String purchase = line.substring(0, separator);
+        String[] fields = purchase.split(",");
+        try {
+            if (fields.length != 2 || Long.parseLong(line.substring(separator + 1), 16) != checksum(purchase))
+                return null;
+            return new int[] {Integer.parseInt(fields[0]), Integer.parseInt(fields[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long checksum(String purchase) {
+        CRC32 crc = new CRC32();
+        crc.update(purchase.getBytes(StandardCharsets.US_ASCII));
+        return crc.getValue();
+    }
+
+    private void closeChannel() throws IOException {
+        syncLock.lock();
+        try {
+            if (!channel.isOpen())
+                return;
+            if (SYNC)
+                channel.force(false);
+            synced = appended;
+            channel.close();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
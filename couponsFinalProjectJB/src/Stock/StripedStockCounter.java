@@ -0,0 +1,61 @@
+package Stock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * a stock counter split over several cache-line-padded stripes.
+ *
+ * buyers start decrementing at a random stripe and only move to the next one when theirs runs dry, so concurrent
+ * purchases of the same coupon rarely CAS the same memory location.
+ */
+public class StripedStockCounter {
+    private static final int PADDING = 16;
+
+    private final AtomicIntegerArray cells;
+    private final int stripes;
+
+    public StripedStockCounter(int amount) {
+        int wanted = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, amount)));
+        this.stripes = Integer.highestOneBit(wanted * 2 - 1);
+        this.cells = new AtomicIntegerArray(stripes * PADDING);
+        for (int i = 0; i < stripes; i++) {
+            cells.set(i * PADDING, amount / stripes + (i < amount % stripes ? 1 : 0));
+        }
+    }
+
+    /**
+     * takes one unit of stock
+     * @return true if a unit was available and was taken
+     */
+    public boolean tryDecrement() {
+        int start = ThreadLocalRandom.current().nextInt(stripes);
+        for (int i = 0; i < stripes; i++) {
+            int cell = ((start + i) & (stripes - 1)) * PADDING;
+            int current;
+            while ((current = cells.get(cell)) > 0) {
+                if (cells.compareAndSet(cell, current, current - 1))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * gives back a unit taken by tryDecrement
+     */
+    public void increment() {
+        cells.incrementAndGet(ThreadLocalRandom.current().nextInt(stripes) * PADDING);
+    }
+
+    /**
+     * @return the remaining stock, summed over all stripes
+     */
+    public int get() {
+        int sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
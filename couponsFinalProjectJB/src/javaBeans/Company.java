@@ -1,5 +1,6 @@
 package javaBeans;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 public class Company {
@@ -8,6 +9,7 @@ public class Company {
     private String email;
     private String password;
     private ArrayList<Coupon> coupons;
+    private CouponLoader couponLoader;
 
     public Company(String name, String email, String password, ArrayList<Coupon> coupons) {
         this.name = name;
@@ -24,6 +26,17 @@ public class Company {
         this.coupons = coupons;
     }
 
+    /**
+     * creates a company whose coupons are loaded on the first call to getCoupons
+     */
+    public Company(int id, String name, String email, String password, CouponLoader couponLoader) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.password = password;
+        this.couponLoader = couponLoader;
+    }
+
     public int getId() {
         return id;
     }
@@ -56,12 +69,32 @@ public class Company {
         this.password = password;
     }
 
+    /**
+     * @return the coupons, loaded from the database on first access if they were not fetched with the company
+     * @throws RuntimeException wrapping the SQLException if loading them fails
+     */
     public ArrayList<Coupon> getCoupons() {
+        if (couponLoader != null) {
+            try {
+                coupons = couponLoader.loadCoupons();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            couponLoader = null;
+        }
         return coupons;
     }
 
     public void setCoupons(ArrayList<Coupon> coupons) {
         this.coupons = coupons;
+        this.couponLoader = null;
+    }
+
+    /**
+     * @return false if the coupons have not been loaded yet
+     */
+    public boolean isCouponsLoaded() {
+        return couponLoader == null;
     }
 
     @Override
@@ -71,7 +104,7 @@ public class Company {
                 "\nname='" + name + '\'' +
                 "\nemail='" + email + '\'' +
                 "\npassword='" + password + '\'' +
-                "\ncoupons=" + coupons +
+                "\ncoupons=" + (isCouponsLoaded() ? coupons : "<not loaded>") +
                 '}';
     }
 }
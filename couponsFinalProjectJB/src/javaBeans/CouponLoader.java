@@ -0,0 +1,11 @@
+package javaBeans;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * loads a company's or customer's coupons the first time they are asked for
+ */
+public interface CouponLoader {
+    ArrayList<Coupon> loadCoupons() throws SQLException;
+}
@@ -1,5 +1,6 @@
 package javaBeans;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 public class Customer {
@@ -9,6 +10,7 @@ public class Customer {
     private String email;
     private String password;
     private ArrayList<Coupon> coupons;
+    private CouponLoader couponLoader;
 
     public Customer(String firstName, String lastName, String email, String password, ArrayList<Coupon> coupons) {
         this.firstName = firstName;
@@ -27,6 +29,18 @@ public class Customer {
         this.coupons = coupons;
     }
 
+    /**
+     * creates a customer whose coupons are loaded on the first call to getCoupons
+     */
+    public Customer(int id, String firstName, String lastName, String email, String password, CouponLoader couponLoader) {
+        this.id = id;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+        this.password = password;
+        this.couponLoader = couponLoader;
+    }
+
     public int getId() {
         return id;
     }
@@ -67,12 +81,32 @@ public class Customer {
         this.password = password;
     }
 
+    /**
+     * @return the coupons, loaded from the database on first access if they were not fetched with the customer
+     * @throws RuntimeException wrapping the SQLException if loading them fails
+     */
     public ArrayList<Coupon> getCoupons() {
+        if (couponLoader != null) {
+            try {
+                coupons = couponLoader.loadCoupons();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            couponLoader = null;
+        }
         return coupons;
     }
 
     public void setCoupons(ArrayList<Coupon> coupons) {
         this.coupons = coupons;
+        this.couponLoader = null;
+    }
+
+    /**
+     * @return false if the coupons have not been loaded yet
+     */
+    public boolean isCouponsLoaded() {
+        return couponLoader == null;
     }
 
     @Override
@@ -83,7 +117,7 @@ public class Customer {
                 "\nlastName='" + lastName + '\'' +
                 "\nemail='" + email + '\'' +
                 "\npassword='" + password + '\'' +
-                "\ncoupons=" + coupons +
+                "\ncoupons=" + (isCouponsLoaded() ? coupons : "<not loaded>") +
                 '}';
     }
 }
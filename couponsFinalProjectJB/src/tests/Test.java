@@ -2,15 +2,51 @@ package tests;
 
 import BL.*;
 import CleanupThread.CouponExpirationDailyJob;
+import CleanupThread.ExpirationRunMetrics;
+import Connections.ConnectionPool;
+import DAOs.CouponColumns;
+import DAOs.CouponRowMapper;
+import DAOs.CouponSearchIndex;
 import DAOs.CouponsDBDAO;
+import DAOs.PurchaseIndex;
+import Exceptions.InvalidCredentialsException;
+import Exceptions.OutOfStockException;
+import Lifecycle.CouponLifecycle;
+import Lifecycle.CouponLifecycleListener;
+import Lifecycle.CouponState;
+import Stock.FlashSaleStockEngine;
 import javaBeans.Category;
 import javaBeans.Company;
 import javaBeans.Coupon;
 import javaBeans.Customer;
 
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class Test {
     public static void testAll() {
@@ -23,12 +59,34 @@ public class Test {
 
             //logs in the admin
             LoginManger manger = LoginManger.getInstance();
-            AdminFacade adminFacade = (AdminFacade) manger.login("admin@admin.com", "admin", ClientType.ADMINISTRATOR);
+            SessionContext admin = manger.login("admin@admin.com", "admin", ClientType.ADMINISTRATOR);
+            AdminFacade adminFacade = AdminFacade.getInstance();
 
             //tests the facades
-            testAdminFacade(adminFacade);
-            testCompanyFacade(adminFacade);
-            testCustomerFacade(adminFacade);
+            testAdminFacade(adminFacade, admin);
+            testCompanyFacade(adminFacade, admin);
+            testCustomerFacade(adminFacade, admin);
+            testPurchaseContention(adminFacade, admin);
+            testFlashSaleRecovery(adminFacade, admin);
+            benchmarkConnectionPool();
+            benchmarkCartPurchase(adminFacade, admin);
+            benchmarkAdminLists(adminFacade, admin);
+            benchmarkCouponMapping();
+            benchmarkPurchaseIndex(adminFacade, admin);
+            benchmarkCouponColumns(adminFacade, admin);
+            benchmarkCouponSearch(adminFacade, admin);
+            benchmarkSessions(adminFacade, admin);
+            benchmarkAsyncFacade(adminFacade, admin);
+
+            //checks the optimized paths against plain answers
+            check("lifecycle transitions", Test::checkLifecycleTransitions);
+            check("import dedup", () -> checkImportDedup(adminFacade, admin));
+            check("pagination and streaming", () -> checkPagination(adminFacade, admin));
+            check("expiration", () -> checkExpiration(adminFacade, admin));
+            check("cascade delete", () -> checkCascadeDelete(adminFacade, admin));
+            check("cache invalidation", () -> checkCacheInvalidation(adminFacade, admin));
+            check("price range", () -> checkPriceRange(adminFacade, admin));
+            check("search", () -> checkSearch(adminFacade, admin));
 
             job.stop();
             thread.interrupt();
@@ -38,74 +96,75 @@ public class Test {
         }
     }
 
-    public static void testAdminFacade(AdminFacade adminFacade) throws Exception {
+    public static void testAdminFacade(AdminFacade adminFacade, SessionContext admin) throws Exception {
         Company company = new Company("toyota", "toyota@gmail.com", "bla", new ArrayList<>());
-        adminFacade.addCompany(company);
+        adminFacade.addCompany(admin, company);
         company.setPassword("yadda");
-        adminFacade.updateCompany(company);
-        adminFacade.deleteCompany(company.getId());
+        adminFacade.updateCompany(admin, company);
+        adminFacade.deleteCompany(admin, company.getId());
 
-        ArrayList<Company> companies = adminFacade.getAllCompanies();
+        ArrayList<Company> companies = adminFacade.getAllCompanies(admin);
         System.out.println("showing all companies:\n");
         for (Company c: companies) {
             System.out.println(c + "\n");
         }
         System.out.println("showing one company\n");
-        System.out.println(adminFacade.getOneCompany(2) + "\n");
+        System.out.println(adminFacade.getOneCompany(admin, 2) + "\n");
 
         Customer customer = new Customer("Bill", "Black", "billblack@gmail.com", "billy", new ArrayList<>());
-        adminFacade.addCustomer(customer);
+        adminFacade.addCustomer(admin, customer);
         customer.setPassword("bob");
-        adminFacade.updateCustomer(customer);
-        adminFacade.deleteCustomer(customer.getId());
+        adminFacade.updateCustomer(admin, customer);
+        adminFacade.deleteCustomer(admin, customer.getId());
 
         System.out.println("showing all customers:\n");
-        ArrayList<Customer> customers = adminFacade.getAllCustomers();
+        ArrayList<Customer> customers = adminFacade.getAllCustomers(admin);
         for (Customer c: customers) {
             System.out.println(c + "\n");
         }
         System.out.println("showing one customer\n");
-        System.out.println(adminFacade.getOneCustomer(1) + "\n");
+        System.out.println(adminFacade.getOneCustomer(admin, 1) + "\n");
     }
 
-    public static void testCompanyFacade(AdminFacade adminFacade) throws Exception {
+    public static void testCompanyFacade(AdminFacade adminFacade, SessionContext admin) throws Exception {
         Company company = new Company("toyota", "toyota@gmail.com", "bla", new ArrayList<>());
-        adminFacade.addCompany(company);
+        adminFacade.addCompany(admin, company);
         LoginManger manger = LoginManger.getInstance();
-        CompanyFacade companyFacade = (CompanyFacade) manger.login(company.getEmail(), company.getPassword(), ClientType.COMPANY);
+        SessionContext companySession = manger.login(company.getEmail(), company.getPassword(), ClientType.COMPANY);
+        CompanyFacade companyFacade = CompanyFacade.getInstance();
         Coupon coupon1 = new Coupon(company.getId(), Category.ELECTRICITY, "Electric car", "Vroom", generateDate("13/09/2023"), generateDate("19/09/2023"), 100, 10_000,"img");
         Coupon coupon2 = new Coupon(company.getId(), Category.VACATION, "car ride", "trip to the country", generateDate("13/09/2023"), generateDate("19/09/2023"), 100, 5_000,"img");
-        companyFacade.addCoupon(coupon1);
-        companyFacade.addCoupon(coupon2);
+        companyFacade.addCoupon(companySession, coupon1);
+        companyFacade.addCoupon(companySession, coupon2);
         coupon1.setAmount(200);
-        companyFacade.updateCoupon(coupon1);
+        companyFacade.updateCoupon(companySession, coupon1);
 
-        ArrayList<Coupon> coupons = companyFacade.getCompanyCoupons();
+        ArrayList<Coupon> coupons = companyFacade.getCompanyCoupons(companySession);
         System.out.println("showing all company coupons\n");
         for (Coupon c: coupons) {
             System.out.println(c + "\n");
         }
 
-        ArrayList<Coupon> priceCoupons = companyFacade.getCompanyCoupons(6000);
+        ArrayList<Coupon> priceCoupons = companyFacade.getCompanyCoupons(companySession, 6000);
         System.out.println("showing all price coupons:\n");
         for (Coupon c: priceCoupons) {
             System.out.println(c + "\n");
         }
 
-        ArrayList<Coupon> categoryCoupons = companyFacade.getCompanyCoupons(Category.ELECTRICITY);
+        ArrayList<Coupon> categoryCoupons = companyFacade.getCompanyCoupons(companySession, Category.ELECTRICITY);
         System.out.println("showing all category coupons:\n");
         for (Coupon c: categoryCoupons) {
             System.out.println(c + "\n");
         }
 
         System.out.println("showing company details:\n");
-        System.out.println(companyFacade.getCompanyDetails() + "\n");
+        System.out.println(companyFacade.getCompanyDetails(companySession) + "\n");
 
-        companyFacade.deleteCoupon(coupon1.getId());
-        adminFacade.deleteCompany(company.getId());
+        companyFacade.deleteCoupon(companySession, coupon1.getId());
+        adminFacade.deleteCompany(admin, company.getId());
     }
 
-    public static void testCustomerFacade(AdminFacade adminFacade) throws Exception {
+    public static void testCustomerFacade(AdminFacade adminFacade, SessionContext admin) throws Exception {
         CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
         Coupon coupon1 = new Coupon(2, Category.FOOD, "double pizza", "yum", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2024"), 100, 1000,"img");
         couponsDBDAO.addCoupon(coupon1);
@@ -113,39 +172,877 @@ public class Test {
         couponsDBDAO.addCoupon(coupon2);
 
         Customer customer = new Customer("Bruce", "Willis", "@gmail.com", "boom", new ArrayList<>());
-        adminFacade.addCustomer(customer);
+        adminFacade.addCustomer(admin, customer);
 
         LoginManger manger = LoginManger.getInstance();
-        CustomerFacade customerFacade = (CustomerFacade) manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
-        customerFacade.purchaseCoupon(coupon1);
-        customerFacade.purchaseCoupon(coupon2);
+        SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        CustomerFacade customerFacade = CustomerFacade.getInstance();
+        customerFacade.purchaseCoupon(customerSession, coupon1);
+        customerFacade.purchaseCoupon(customerSession, coupon2);
 
-        ArrayList<Coupon> coupons = customerFacade.getCustomerCoupons();
+        ArrayList<Coupon> coupons = customerFacade.getCustomerCoupons(customerSession);
         System.out.println("showing all customer coupons:\n");
         for (Coupon c: coupons) {
             System.out.println(c + "\n");
         }
 
-        ArrayList<Coupon> priceCoupons = customerFacade.getCustomerCoupons(100);
+        ArrayList<Coupon> priceCoupons = customerFacade.getCustomerCoupons(customerSession, 100);
         System.out.println("showing all price coupons:\n");
         for (Coupon c: priceCoupons) {
             System.out.println(c + "\n");
         }
 
-        ArrayList<Coupon> categoryCoupons = customerFacade.getCustomerCoupons(Category.FOOD);
+        ArrayList<Coupon> categoryCoupons = customerFacade.getCustomerCoupons(customerSession, Category.FOOD);
         System.out.println("showing all category coupons:\n");
         for (Coupon c: categoryCoupons) {
             System.out.println(c + "\n");
         }
 
         System.out.println("showing customer details:\n");
-        System.out.println(customerFacade.getCustomerDetails());
+        System.out.println(customerFacade.getCustomerDetails(customerSession));
 
-        adminFacade.deleteCustomer(customer.getId());
+        adminFacade.deleteCustomer(admin, customer.getId());
         couponsDBDAO.deleteCoupon(coupon1.getId());
         couponsDBDAO.deleteCoupon(coupon2.getId());
     }
 
+    public static void testPurchaseContention(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        int stock = 10;
+        int buyers = 50;
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Coupon coupon = new Coupon(2, Category.FOOD, "flash pizza", "hot", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), stock, 10,"img");
+        couponsDBDAO.addCoupon(coupon);
+
+        ArrayList<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < buyers; i++) {
+            Customer customer = new Customer("Buyer", "no. " + i, "buyer" + i + "@gmail.com", "buy", new ArrayList<>());
+            adminFacade.addCustomer(admin, customer);
+            customers.add(customer);
+        }
+
+        LoginManger manger = LoginManger.getInstance();
+        AtomicInteger sold = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(buyers);
+        long start = System.nanoTime();
+        for (Customer customer: customers) {
+            executor.submit(() -> {
+                SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+                CustomerFacade customerFacade = CustomerFacade.getInstance();
+                try {
+                    customerFacade.purchaseCoupon(customerSession, couponsDBDAO.getOneCoupon(coupon.getId()));
+                    sold.incrementAndGet();
+                } catch (OutOfStockException e) {
+                    refused.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        int remaining = couponsDBDAO.getOneCoupon(coupon.getId()).getAmount();
+        System.out.println("sold " + sold + " and refused " + refused + " of " + stock + " coupons to " + buyers
+                + " concurrent buyers in " + millis + "ms, remaining stock: " + remaining);
+
+        for (Customer customer: customers) {
+            adminFacade.deleteCustomer(admin, customer.getId());
+        }
+        couponsDBDAO.deleteCoupon(coupon.getId());
+        if (sold.get() != stock || remaining != 0)
+            throw new IllegalStateException("oversold or undersold: sold " + sold + " with " + remaining
+                    + " left, expected exactly " + stock + " purchases");
+    }
+
+    public static void testFlashSaleRecovery(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        if (FlashSaleStockEngine.ENABLED) {
+            System.out.println("flash sale recovery check skipped: the engine is already running\n");
+            return;
+        }
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Coupon coupon = new Coupon(2, Category.FOOD, "recovered pizza", "journaled", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 10, 10,"img");
+        couponsDBDAO.addCoupon(coupon);
+        Customer journaled = new Customer("Journaled", "Buyer", "journaled@gmail.com", "journal", new ArrayList<>());
+        adminFacade.addCustomer(admin, journaled);
+        Customer torn = new Customer("Torn", "Buyer", "torn@gmail.com", "journal", new ArrayList<>());
+        adminFacade.addCustomer(admin, torn);
+
+        // one complete record, then a record cut off by a crash in the middle of its coupon ID
+        Path journal = Files.createTempFile("flash-sale", ".journal");
+        String tornRecord = journalRecord(torn.getId(), coupon.getId());
+        Files.writeString(journal, journalRecord(journaled.getId(), coupon.getId())
+                + tornRecord.substring(0, tornRecord.indexOf(',') + 2));
+        System.setProperty("coupons.flashSale.journal", journal.toString());
+        FlashSaleStockEngine.getInstance().close();
+
+        ArrayList<Integer> purchasers = couponsDBDAO.getPurchaserIDs(coupon.getId());
+        int remaining = couponsDBDAO.getOneCouponFromPrimary(coupon.getId()).getAmount();
+        System.out.println("recovered purchasers " + purchasers + " from the journal, remaining stock: " + remaining + "\n");
+
+        adminFacade.deleteCustomer(admin, journaled.getId());
+        adminFacade.deleteCustomer(admin, torn.getId());
+        couponsDBDAO.deleteCoupon(coupon.getId());
+        Files.deleteIfExists(journal);
+        if (!purchasers.equals(List.of(journaled.getId())) || remaining != 9)
+            throw new IllegalStateException("journal recovery wrote " + purchasers + " instead of only the complete record");
+    }
+
+    private static String journalRecord(int customerID, int couponID) {
+        String purchase = customerID + "," + couponID;
+        CRC32 crc = new CRC32();
+        crc.update(purchase.getBytes(StandardCharsets.US_ASCII));
+        return purchase + "," + Long.toHexString(crc.getValue()) + "\n";
+    }
+
+    public static void benchmarkConnectionPool() throws Exception {
+        ConnectionPool pool = ConnectionPool.getInstance();
+        System.out.println("pool startup: first connection served " + pool.getMillisToFirstConnection()
+                + "ms after the pool was created, " + pool.getTotalConnections() + " connections open");
+
+        int cycles = 2000;
+        for (int threads: new int[] {1, 2, 4, 8, 16, 32, 64}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < cycles; i++) {
+                        Connection connection = pool.getConnection();
+                        try (ResultSet rs = pool.prepareStatement(connection, "SELECT 1").executeQuery()) {
+                            rs.next();
+                        } finally {
+                            pool.restoreConnection(connection);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future: futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            executor.shutdown();
+            System.out.println(threads + " threads: " + (long) threads * cycles * 1_000_000_000L / nanos
+                    + " borrow/query/return cycles per second, " + pool.getTotalConnections() + " of "
+                    + pool.getMaxConnections() + " connections open, acquire wait p99 so far "
+                    + pool.getAcquireWaitP99Micros() + "us");
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkCartPurchase(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        LoginManger manger = LoginManger.getInstance();
+
+        for (int cartSize: new int[] {1, 5, 20, 50}) {
+            ArrayList<Coupon> cart = new ArrayList<>();
+            for (int i = 0; i < cartSize; i++) {
+                Coupon coupon = new Coupon(2, Category.FOOD, "cart coupon " + cartSize + "-" + i, "bulk", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 100, 10,"img");
+                couponsDBDAO.addCoupon(coupon);
+                cart.add(coupon);
+            }
+            Customer customer = new Customer("Cart", "Buyer", "cart" + cartSize + "@gmail.com", "cart", new ArrayList<>());
+            adminFacade.addCustomer(admin, customer);
+            SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+            CustomerFacade customerFacade = CustomerFacade.getInstance();
+
+            long start = System.nanoTime();
+            customerFacade.purchaseCoupons(customerSession, cart);
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            System.out.println("cart of " + cartSize + ": " + micros + "us total, " + micros / cartSize + "us per item");
+
+            adminFacade.deleteCustomer(admin, customer.getId());
+            for (Coupon coupon: cart) {
+                couponsDBDAO.deleteCoupon(coupon.getId());
+            }
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkAdminLists(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        ArrayList<Company> seeded = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Company company = new Company("bench company " + i, "bench" + i + "@gmail.com", "bench", new ArrayList<>());
+            adminFacade.addCompany(admin, company);
+            for (int j = 0; j < 5; j++) {
+                couponsDBDAO.addCoupon(new Coupon(company.getId(), Category.FOOD, "bench coupon " + j, "bulk", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 100, 10,"img"));
+            }
+            seeded.add(company);
+        }
+
+        // the old shape: one query for the company list, then one coupon query per company
+        ArrayList<Company> companies = adminFacade.getAllCompanies(admin);
+        long questions = serverQuestions();
+        long start = System.nanoTime();
+        for (Company company: companies) {
+            couponsDBDAO.getCompanyCouponsByID(company.getId());
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println("per-company coupon queries: " + (serverQuestions() - questions - 1) + " queries + 1 for the list, " + micros + "us for " + companies.size() + " companies");
+
+        questions = serverQuestions();
+        start = System.nanoTime();
+        companies = adminFacade.getAllCompanies(admin);
+        micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println("getAllCompanies: " + (serverQuestions() - questions - 1) + " queries, " + micros + "us for " + companies.size() + " companies");
+
+        questions = serverQuestions();
+        start = System.nanoTime();
+        ArrayList<Customer> customers = adminFacade.getAllCustomers(admin);
+        micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println("getAllCustomers: " + (serverQuestions() - questions - 1) + " queries, " + micros + "us for " + customers.size() + " customers");
+
+        for (Company company: seeded) {
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkCouponMapping() throws Exception {
+        String[] labels = {"id", "company_id", "category_id", "title", "description", "start_date", "end_date", "amount", "price", "image"};
+        Date date = Test.generateDate("15/09/2030");
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(Test.class.getClassLoader(),
+                new Class<?>[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount": return labels.length;
+                        case "getColumnLabel": return labels[(int) args[0] - 1];
+                        case "getTableName": return "coupons";
+                        default: throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        // an in-memory row, so only the mapping is measured; both sides pay the same stub cost
+        ResultSet rs = (ResultSet) Proxy.newProxyInstance(Test.class.getClassLoader(),
+                new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getInt": return (int) args[0] == 3 ? 2 : 7;
+                        case "getString": return "text";
+                        case "getDate": return date;
+                        case "getDouble": return 9.5;
+                        case "getMetaData": return metaData;
+                        default: throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        int rows = 2_000_000;
+        CouponRowMapper mapper = CouponRowMapper.forQuery("benchmark");
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (int i = 0; i < rows; i++) {
+                Coupon coupon = new Coupon(rs.getInt(1), rs.getInt(2), Category.values()[rs.getInt(3)-1], rs.getString(4), rs.getString(5), rs.getDate(6), rs.getDate(7), rs.getInt(8), rs.getDouble(9), rs.getString(10));
+                checksum += coupon.getAmount();
+            }
+            long oldNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                checksum += mapper.map(rs).getAmount();
+            }
+            long newNanos = System.nanoTime() - start;
+            System.out.println("round " + round + ": hardcoded mapping " + rows * 1_000_000_000L / oldNanos + " rows/s, CouponRowMapper " + rows * 1_000_000_000L / newNanos + " rows/s (" + checksum + ")");
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkPurchaseIndex(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        ArrayList<Coupon> coupons = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Coupon coupon = new Coupon(2, Category.FOOD, "index coupon " + i, "bulk", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 100000, 10,"img");
+            couponsDBDAO.addCoupon(coupon);
+            coupons.add(coupon);
+        }
+        ArrayList<Customer> customers = new ArrayList<>();
+        ArrayList<int[]> purchases = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Customer customer = new Customer("Index", "Buyer", "index" + i + "@gmail.com", "index", new ArrayList<>());
+            adminFacade.addCustomer(admin, customer);
+            customers.add(customer);
+            // a realistic spread: most customers own a few coupons, some own all of them
+            for (int j = 0; j < 1 + i % coupons.size(); j++) {
+                purchases.add(new int[] {customer.getId(), coupons.get(j).getId()});
+            }
+        }
+        couponsDBDAO.persistPurchases(purchases);
+
+        PurchaseIndex index = PurchaseIndex.getInstance();
+        long start = System.nanoTime();
+        index.warm();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println("warm: " + micros + "us for " + index.getCustomers() + " customers, " + index.getPurchases() + " purchases");
+        System.out.println("memory: " + index.getEstimatedBytes() + " bytes, " + Math.round(index.getBytesPerCustomer()) + " per customer, " + Math.round(index.getBytesPerPurchase()) + " per purchase");
+
+        int checks = 1_000_000;
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            if (index.contains(customers.get(i % customers.size()).getId(), coupons.get(i % coupons.size()).getId()))
+                found++;
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println("checks: " + checks * 1_000_000_000L / nanos + " per second (" + found + " owned)");
+
+        for (Customer customer: customers) {
+            adminFacade.deleteCustomer(admin, customer.getId());
+        }
+        for (Coupon coupon: coupons) {
+            couponsDBDAO.deletePurchaseByCouponID(coupon.getId());
+            couponsDBDAO.deleteCoupon(coupon.getId());
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkCouponColumns(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        if (!largeBenchmarks("benchmarkCouponColumns"))
+            return;
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("columns company", "columns@gmail.com", "columns", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        try {
+            Category[] categories = Category.values();
+            int total = 1_000_000;
+            for (int i = 0; i < total; i += 1000) {
+                ArrayList<Coupon> chunk = new ArrayList<>();
+                for (int j = i; j < i + 1000; j++) {
+                    chunk.add(new Coupon(company.getId(), categories[j % categories.length], "columns coupon " + j, "bulk", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 100, j % 500, "img"));
+                }
+                couponsDBDAO.addCoupons(chunk);
+            }
+
+            CouponColumns columns = CouponColumns.getInstance();
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            columns.ensureLoaded();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.gc();
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            System.out.println("columns load: " + millis + "ms for " + columns.size() + " coupons, " + (heapAfter - heapBefore) / 1024 / 1024 + "MB heap (" + columns.getEstimatedBytes() / 1024 / 1024 + "MB estimated)");
+
+            String sql = "SELECT * FROM coupons WHERE company_id = ? and category_id = ? and price <= ?";
+            CouponColumns.Query query = new CouponColumns.Query().company(company.getId()).category(Category.FOOD).upToPrice(10);
+            for (int round = 0; round < 3; round++) {
+                ConnectionPool pool = ConnectionPool.getInstance();
+                Connection connection = pool.getConnection();
+                int sqlRows = 0;
+                start = System.nanoTime();
+                try (java.sql.PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setInt(1, company.getId());
+                    statement.setInt(2, CouponRowMapper.toCategoryID(Category.FOOD));
+                    statement.setDouble(3, 10);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        CouponRowMapper mapper = CouponRowMapper.forQuery(sql);
+                        while (rs.next()) {
+                            mapper.map(rs);
+                            sqlRows++;
+                        }
+                    }
+                } finally {
+                    pool.restoreConnection(connection);
+                }
+                long sqlMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                int columnRows = columns.find(query).size();
+                long columnMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                System.out.println("round " + round + ": SQL " + sqlMicros + "us (" + sqlRows + " rows), columns " + columnMicros + "us (" + columnRows + " rows)");
+            }
+
+            String cheapestSql = "SELECT * FROM coupons WHERE category_id = ? ORDER BY price, id LIMIT 20";
+            CouponColumns.Query cheapest = new CouponColumns.Query().category(Category.FOOD);
+            for (int round = 0; round < 3; round++) {
+                ConnectionPool pool = ConnectionPool.getInstance();
+                Connection connection = pool.getConnection();
+                start = System.nanoTime();
+                try (java.sql.PreparedStatement statement = connection.prepareStatement(cheapestSql)) {
+                    statement.setInt(1, CouponRowMapper.toCategoryID(Category.FOOD));
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            CouponRowMapper.forQuery(cheapestSql).map(rs);
+                        }
+                    }
+                } finally {
+                    pool.restoreConnection(connection);
+                }
+                long sqlMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                columns.findCheapest(cheapest, 20);
+                long indexMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                System.out.println("cheapest 20, round " + round + ": SQL " + sqlMicros + "us, price index " + indexMicros + "us");
+            }
+        } finally {
+            couponsDBDAO.deleteCouponsByCompanyID(company.getId());
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+        System.out.println();
+    }
+
+    public static void benchmarkCouponSearch(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        if (!largeBenchmarks("benchmarkCouponSearch"))
+            return;
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("search company", "search@gmail.com", "search", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        try {
+            String[] words = {"pizza", "sushi", "spa", "cinema", "hotel", "laptop", "flight", "yoga", "burger", "museum"};
+            Category[] categories = Category.values();
+            int total = 1_000_000;
+            for (int i = 0; i < total; i += 1000) {
+                ArrayList<Coupon> chunk = new ArrayList<>();
+                for (int j = i; j < i + 1000; j++) {
+                    String title = words[j % words.length] + " deal " + j;
+                    String description = "half price " + words[(j / words.length) % words.length] + " for two";
+                    chunk.add(new Coupon(company.getId(), categories[j % categories.length], title, description, Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 100, j % 500, "img"));
+                }
+                couponsDBDAO.addCoupons(chunk);
+            }
+
+            CouponSearchIndex index = CouponSearchIndex.getInstance();
+            long start = System.nanoTime();
+            index.rebuild();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("search index build: " + millis + "ms for " + index.getDocuments() + " coupons, " + index.getWords() + " words, " + index.getEstimatedBytes() / 1024 / 1024 + "MB estimated");
+
+            String sql = "SELECT id FROM coupons WHERE (title LIKE ? OR description LIKE ?) AND (title LIKE ? OR description LIKE ?) LIMIT 20";
+            for (int round = 0; round < 3; round++) {
+                ConnectionPool pool = ConnectionPool.getInstance();
+                Connection connection = pool.getConnection();
+                int sqlRows = 0;
+                start = System.nanoTime();
+                try (java.sql.PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setString(1, "%pizza%");
+                    statement.setString(2, "%pizza%");
+                    statement.setString(3, "%sushi%");
+                    statement.setString(4, "%sushi%");
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next())
+                            sqlRows++;
+                    }
+                } finally {
+                    pool.restoreConnection(connection);
+                }
+                long sqlMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                int indexRows = index.search("pizza sushi", 20).length;
+                long indexMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                System.out.println("round " + round + ": LIKE " + sqlMicros + "us (" + sqlRows + " rows), search index " + indexMicros + "us (" + indexRows + " rows)");
+            }
+        } finally {
+            couponsDBDAO.deleteCouponsByCompanyID(company.getId());
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+        System.out.println();
+    }
+
+    /**
+     * the large benchmarks insert a million coupons, so they only run with -Dcoupons.benchmarks.large=true, and are
+     * meant to be pointed at a scratch schema with -Dcoupons.db.url
+     */
+    private static boolean largeBenchmarks(String name) {
+        if (Boolean.getBoolean("coupons.benchmarks.large"))
+            return true;
+        System.out.println(name + " skipped: run with -Dcoupons.benchmarks.large=true against a scratch schema\n");
+        return false;
+    }
+
+    public static void benchmarkSessions(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        LoginManger manger = LoginManger.getInstance();
+        Customer customer = new Customer("Session", "User", "session@gmail.com", "session", new ArrayList<>());
+        adminFacade.addCustomer(admin, customer);
+        int logins = 10_000;
+
+        long questions = serverQuestions();
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        }
+        long loginMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        long loginQueries = serverQuestions() - questions - 1;
+
+        String token = manger.startSession(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            manger.resolve(token);
+        }
+        long resolveMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println(logins + " logins: " + loginMicros + "us (" + loginQueries + " queries), " + logins + " session resolves: " + resolveMicros + "us");
+
+        SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        customer.setPassword("changed");
+        adminFacade.updateCustomer(admin, customer);
+        try {
+            manger.resolve(token);
+            System.out.println("session survived a password change");
+        } catch (InvalidCredentialsException e) {
+            System.out.println("session ended by the password change");
+        }
+        try {
+            CustomerFacade.getInstance().getCustomerDetails(customerSession);
+            System.out.println("session context survived a password change");
+        } catch (InvalidCredentialsException e) {
+            System.out.println("session context rejected after the password change");
+        }
+        adminFacade.deleteCustomer(admin, customer.getId());
+        System.out.println();
+    }
+
+    public static void benchmarkAsyncFacade(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        LoginManger manger = LoginManger.getInstance();
+        Customer customer = new Customer("Async", "Buyer", "async@gmail.com", "async", new ArrayList<>());
+        adminFacade.addCustomer(admin, customer);
+        SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        AsyncCustomerFacade asyncFacade = AsyncCustomerFacade.getInstance();
+        FacadeExecutor executor = FacadeExecutor.getInstance();
+
+        int requests = 10_000;
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            futures[i] = asyncFacade.getCheapestCoupons(customerSession, Category.FOOD, 10);
+        }
+        CompletableFuture.allOf(futures).join();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(requests + " async requests: " + millis + "ms, at most "
+                + executor.getMaxConcurrency() + " at once");
+
+        Coupon soldOut = new Coupon(2, Category.FOOD, "async sold out", "bulk", Test.generateDate("13/09/2023"), Test.generateDate("15/09/2030"), 0, 10, "img");
+        couponsDBDAO.addCoupon(soldOut);
+        try {
+            asyncFacade.purchaseCoupon(customerSession, soldOut).get();
+        } catch (ExecutionException e) {
+            System.out.println("async purchase of a sold out coupon failed with " + e.getCause().getClass().getSimpleName());
+        }
+
+        couponsDBDAO.deleteCoupon(soldOut.getId());
+        adminFacade.deleteCustomer(admin, customer.getId());
+        System.out.println();
+    }
+
+    /**
+     * an assertion case; throws an IllegalStateException when an answer is not what it should be
+     */
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private static void check(String name, Check check) {
+        try {
+            check.run();
+            System.out.println("check passed: " + name);
+        } catch (Exception e) {
+            System.out.println("check FAILED: " + name + ": " + e);
+        }
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+
+    private static TreeSet<Integer> ids(List<Coupon> coupons) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        for (Coupon coupon: coupons) {
+            ids.add(coupon.getId());
+        }
+        return ids;
+    }
+
+    private static java.sql.Date daysFromNow(int days) {
+        return java.sql.Date.valueOf(LocalDate.now().plusDays(days));
+    }
+
+    public static void checkLifecycleTransitions() throws Exception {
+        CouponLifecycle lifecycle = CouponLifecycle.getInstance();
+        int couponID = Integer.MAX_VALUE - 1;
+        List<String> events = new ArrayList<>();
+        CouponLifecycleListener listener = new CouponLifecycleListener() {
+            @Override
+            public void couponActivated(int id) {
+                if (id == couponID)
+                    events.add("activated");
+            }
+
+            @Override
+            public void couponExpired(int id) {
+                if (id == couponID)
+                    events.add("expired");
+            }
+        };
+        lifecycle.addListener(listener);
+        try {
+            lifecycle.schedule(couponID, daysFromNow(1), daysFromNow(10));
+            expect(lifecycle.getState(couponID) == CouponState.NOT_STARTED, "a coupon starting tomorrow is " + lifecycle.getState(couponID));
+            lifecycle.schedule(couponID, daysFromNow(0), daysFromNow(0));
+            expect(lifecycle.getState(couponID) == CouponState.ACTIVE, "a coupon of today only is " + lifecycle.getState(couponID));
+            lifecycle.schedule(couponID, daysFromNow(-10), daysFromNow(-1));
+            expect(lifecycle.getState(couponID) == CouponState.EXPIRED, "a coupon that ended yesterday is " + lifecycle.getState(couponID));
+            expect(events.equals(List.of("activated", "expired")), "transitions fired: " + events);
+            lifecycle.remove(couponID);
+            expect(lifecycle.getState(couponID) == CouponState.UNKNOWN, "a removed coupon is " + lifecycle.getState(couponID));
+        } finally {
+            lifecycle.removeListener(listener);
+            lifecycle.remove(couponID);
+        }
+    }
+
+    public static void checkImportDedup(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        Company company = new Company("import check", "importcheck@gmail.com", "import", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        try {
+            SessionContext companySession = LoginManger.getInstance().login(company.getEmail(), company.getPassword(), ClientType.COMPANY);
+            CompanyFacade companyFacade = CompanyFacade.getInstance();
+            companyFacade.addCoupon(companySession, new Coupon(company.getId(), Category.FOOD, "existing", "already there", daysFromNow(0), daysFromNow(30), 10, 10, "img"));
+
+            List<Coupon> imported = List.of(
+                    new Coupon(0, Category.FOOD, "existing", "taken title", daysFromNow(0), daysFromNow(30), 10, 10, "img"),
+                    new Coupon(0, Category.FOOD, "new", "first of two", daysFromNow(0), daysFromNow(30), 10, 10, "img"),
+                    new Coupon(0, Category.FOOD, "new", "second of two", daysFromNow(0), daysFromNow(30), 10, 10, "img"),
+                    new Coupon(0, Category.FOOD, "backwards", "ends before it starts", daysFromNow(30), daysFromNow(0), 10, 10, "img"));
+            CouponImportReport report = companyFacade.importCoupons(companySession, imported.iterator(), null);
+            expect(report.getProcessed() == 4 && report.getImported() == 1 && report.getRejected() == 3, "import report " + report);
+
+            ArrayList<String> titles = new ArrayList<>();
+            for (Coupon coupon: companyFacade.getCompanyCoupons(companySession)) {
+                titles.add(coupon.getTitle());
+            }
+            Collections.sort(titles);
+            expect(titles.equals(List.of("existing", "new")), "company titles after the import: " + titles);
+        } finally {
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+    }
+
+    public static void checkPagination(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        ArrayList<Company> added = new ArrayList<>();
+        try {
+            for (int i = 0; i < 12; i++) {
+                Company company = new Company("page check " + i, "pagecheck" + i + "@gmail.com", "page", new ArrayList<>());
+                adminFacade.addCompany(admin, company);
+                added.add(company);
+            }
+
+            ArrayList<Integer> all = new ArrayList<>();
+            for (Company company: adminFacade.getAllCompanies(admin)) {
+                all.add(company.getId());
+            }
+            Collections.sort(all);
+
+            ArrayList<Integer> paged = new ArrayList<>();
+            int afterID = 0;
+            ArrayList<Company> page;
+            while (!(page = adminFacade.getCompaniesPage(admin, afterID, 5)).isEmpty()) {
+                expect(page.size() <= 5, "a page of " + page.size() + " companies with a limit of 5");
+                for (Company company: page) {
+                    expect(company.getId() > afterID, "company " + company.getId() + " on the page after " + afterID);
+                    paged.add(company.getId());
+                }
+                afterID = page.get(page.size() - 1).getId();
+            }
+            expect(paged.equals(all), "paged companies " + paged + " but listed " + all);
+
+            ArrayList<Integer> streamed = new ArrayList<>();
+            try (Stream<Company> companies = adminFacade.streamAllCompanies(admin)) {
+                companies.forEach(company -> streamed.add(company.getId()));
+            }
+            Collections.sort(streamed);
+            expect(streamed.equals(all), "streamed companies " + streamed + " but listed " + all);
+        } finally {
+            for (Company company: added) {
+                adminFacade.deleteCompany(admin, company.getId());
+            }
+        }
+    }
+
+    public static void checkExpiration(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("expiration check", "expirationcheck@gmail.com", "expire", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        try {
+            Coupon expired = new Coupon(company.getId(), Category.FOOD, "expired", "ended yesterday", daysFromNow(-10), daysFromNow(-1), 10, 10, "img");
+            Coupon lastDay = new Coupon(company.getId(), Category.FOOD, "last day", "ends today", daysFromNow(-10), daysFromNow(0), 10, 10, "img");
+            couponsDBDAO.addCoupon(expired);
+            couponsDBDAO.addCoupon(lastDay);
+
+            ExpirationRunMetrics run = new CouponExpirationDailyJob().removeExpiredCoupons();
+            expect(run.getFailure() == null, "the expiration run failed: " + run.getFailure());
+            expect(run.getRowsRemoved() >= 1, "the expiration run removed " + run.getRowsRemoved() + " rows");
+            expect(couponsDBDAO.getOneCoupon(expired.getId()) == null, "an expired coupon survived the run");
+            expect(couponsDBDAO.getOneCoupon(lastDay.getId()) != null, "a coupon on its last day was removed");
+        } finally {
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+    }
+
+    public static void checkCascadeDelete(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        LoginManger manger = LoginManger.getInstance();
+        Company company = new Company("cascade check", "cascadecheck@gmail.com", "cascade", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        Customer customer = new Customer("Cascade", "Check", "cascadecheck@gmail.com", "cascade", new ArrayList<>());
+        adminFacade.addCustomer(admin, customer);
+
+        Coupon first = new Coupon(company.getId(), Category.FOOD, "cascade one", "bought", daysFromNow(0), daysFromNow(30), 10, 10, "img");
+        Coupon second = new Coupon(company.getId(), Category.FOOD, "cascade two", "not bought", daysFromNow(0), daysFromNow(30), 10, 10, "img");
+        couponsDBDAO.addCoupon(first);
+        couponsDBDAO.addCoupon(second);
+        SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+        CustomerFacade.getInstance().purchaseCoupon(customerSession, first);
+
+        adminFacade.deleteCompany(admin, company.getId());
+        expect(couponsDBDAO.getOneCoupon(first.getId()) == null && couponsDBDAO.getOneCoupon(second.getId()) == null,
+                "coupons of a deleted company survived");
+        expect(couponsDBDAO.getCompanyCouponIDs(company.getId(), Integer.MAX_VALUE).isEmpty(), "a deleted company still has coupons");
+        expect(couponsDBDAO.getCustomerCouponsByID(customer.getId()).isEmpty(), "a purchase of a deleted coupon survived");
+
+        adminFacade.deleteCustomer(admin, customer.getId());
+        try {
+            manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+            throw new IllegalStateException("a deleted customer can still log in");
+        } catch (InvalidCredentialsException expected) {
+        }
+    }
+
+    public static void checkCacheInvalidation(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("cache check", "cachecheck@gmail.com", "cache", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        try {
+            SessionContext companySession = LoginManger.getInstance().login(company.getEmail(), company.getPassword(), ClientType.COMPANY);
+            CompanyFacade companyFacade = CompanyFacade.getInstance();
+            Coupon coupon = new Coupon(company.getId(), Category.FOOD, "cached", "read twice", daysFromNow(0), daysFromNow(30), 10, 10, "img");
+            companyFacade.addCoupon(companySession, coupon);
+            couponsDBDAO.getOneCoupon(coupon.getId());
+            couponsDBDAO.getOneCoupon(coupon.getId());
+
+            coupon.setAmount(42);
+            companyFacade.updateCoupon(companySession, coupon);
+            for (int read = 0; read < 2; read++) {
+                int amount = couponsDBDAO.getOneCoupon(coupon.getId()).getAmount();
+                expect(amount == 42, "read an amount of " + amount + " after updating it to 42");
+            }
+
+            companyFacade.deleteCoupon(companySession, coupon.getId());
+            expect(couponsDBDAO.getOneCoupon(coupon.getId()) == null, "a deleted coupon is still read");
+        } finally {
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+    }
+
+    public static void checkPriceRange(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("price check", "pricecheck@gmail.com", "price", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        Customer customer = new Customer("Price", "Check", "pricecheck@gmail.com", "price", new ArrayList<>());
+        adminFacade.addCustomer(admin, customer);
+        try {
+            LoginManger manger = LoginManger.getInstance();
+            SessionContext companySession = manger.login(company.getEmail(), company.getPassword(), ClientType.COMPANY);
+            SessionContext customerSession = manger.login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+            Category[] categories = Category.values();
+            ArrayList<Coupon> coupons = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                coupons.add(new Coupon(company.getId(), categories[i % categories.length], "priced " + i, "price check",
+                        daysFromNow(0), daysFromNow(30), 10, (i * 37) % 100 + 0.5, "img"));
+            }
+            couponsDBDAO.addCoupons(coupons);
+
+            TreeSet<Integer> companyExpected = new TreeSet<>();
+            for (Coupon coupon: CompanyFacade.getInstance().getCompanyCoupons(companySession)) {
+                if (coupon.getPrice() >= 20 && coupon.getPrice() <= 60)
+                    companyExpected.add(coupon.getId());
+            }
+            TreeSet<Integer> companyFound = ids(CompanyFacade.getInstance().getCompanyCoupons(companySession, 20, 60));
+            expect(companyFound.equals(companyExpected), "company price range " + companyFound + " but scanned " + companyExpected);
+
+            Category category = categories[1];
+            ArrayList<Coupon> all = couponsDBDAO.getAllCoupons();
+            TreeSet<Integer> storeExpected = new TreeSet<>();
+            ArrayList<Double> prices = new ArrayList<>();
+            for (Coupon coupon: all) {
+                if (coupon.getCategory() == category && coupon.getPrice() >= 20 && coupon.getPrice() <= 60)
+                    storeExpected.add(coupon.getId());
+                if (coupon.getCategory() == category)
+                    prices.add(coupon.getPrice());
+            }
+            CustomerFacade customerFacade = CustomerFacade.getInstance();
+            TreeSet<Integer> storeFound = ids(customerFacade.getCouponsInPriceRange(customerSession, category, 20, 60));
+            expect(storeFound.equals(storeExpected), "store price range " + storeFound + " but scanned " + storeExpected);
+
+            Collections.sort(prices);
+            List<Double> cheapestExpected = prices.subList(0, Math.min(5, prices.size()));
+            ArrayList<Double> cheapestFound = new ArrayList<>();
+            for (Coupon coupon: customerFacade.getCheapestCoupons(customerSession, category, 5)) {
+                cheapestFound.add(coupon.getPrice());
+            }
+            Collections.sort(cheapestFound);
+            expect(cheapestFound.equals(cheapestExpected), "cheapest prices " + cheapestFound + " but scanned " + cheapestExpected);
+        } finally {
+            adminFacade.deleteCustomer(admin, customer.getId());
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+    }
+
+    public static void checkSearch(AdminFacade adminFacade, SessionContext admin) throws Exception {
+        CouponsDBDAO couponsDBDAO = new CouponsDBDAO();
+        Company company = new Company("search check", "searchcheck@gmail.com", "search", new ArrayList<>());
+        adminFacade.addCompany(admin, company);
+        Customer customer = new Customer("Search", "Check", "searchcheck@gmail.com", "search", new ArrayList<>());
+        adminFacade.addCustomer(admin, customer);
+        try {
+            String[] words = {"quokka", "narwhal", "axolotl"};
+            ArrayList<Coupon> coupons = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                String title = words[i % words.length] + " deal " + i;
+                String description = "with a " + words[(i / words.length) % words.length];
+                java.sql.Date end = i % 7 == 0 ? daysFromNow(-1) : daysFromNow(30);
+                coupons.add(new Coupon(company.getId(), Category.FOOD, title, description, daysFromNow(-10), end, 10, 10, "img"));
+            }
+            couponsDBDAO.addCoupons(coupons);
+            if (CouponSearchIndex.ENABLED)
+                CouponSearchIndex.getInstance().rebuild();
+
+            SessionContext customerSession = LoginManger.getInstance().login(customer.getEmail(), customer.getPassword(), ClientType.CUSTOMER);
+            for (String text: new String[] {"quokka", "narwhal axolotl", "QUOKKA Deal"}) {
+                TreeSet<Integer> expected = new TreeSet<>();
+                for (Coupon coupon: coupons) {
+                    String document = (coupon.getTitle() + " " + coupon.getDescription()).toLowerCase();
+                    boolean matches = !coupon.getEndDate().before(daysFromNow(0));
+                    for (String word: text.toLowerCase().split(" ")) {
+                        matches &= Arrays.asList(document.split(" ")).contains(word);
+                    }
+                    if (matches)
+                        expected.add(coupon.getId());
+                }
+                TreeSet<Integer> found = ids(CustomerFacade.getInstance().searchCoupons(customerSession, text, 100));
+                expect(found.equals(expected), "search for '" + text + "' found " + found + " but scanned " + expected);
+            }
+        } finally {
+            adminFacade.deleteCustomer(admin, customer.getId());
+            adminFacade.deleteCompany(admin, company.getId());
+        }
+    }
+
+    /**
+     * @return the server's statement counter; the query reading it counts as one
+     */
+    private static long serverQuestions() throws SQLException {
+        ConnectionPool pool = ConnectionPool.getInstance();
+        Connection connection = pool.getConnection();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SHOW GLOBAL STATUS LIKE 'Questions'")) {
+            rs.next();
+            return rs.getLong(2);
+        } finally {
+            pool.restoreConnection(connection);
+        }
+    }
+
     public static java.sql.Date generateDate(String dateString) {
         SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
         java.util.Date utilDate = null;